@@ -0,0 +1,214 @@
+package com.mjs.wet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mjs.wet.Wet.Pair;
+
+/**
+ * JMH benchmarks for the parsing, normalizing and join hot paths in {@link Data}.
+ * <p>
+ * Inputs come from the bundled resources: the WBAN master list, the CSA list, and
+ * fields taken from them. There is no bundled precip file, so a precip month is
+ * generated for the US stations of the master list, one row per hour. The legacy
+ * String-based paths are measured next to the paths that replaced them.
+ * <p>
+ * Build with jmh-core and jmh-generator-annprocess on the classpath along with
+ * src/main/java and resources, then run this class, or org.openjdk.jmh.Main for
+ * the usual JMH options. Throughput is reported per second, and the gc profiler
+ * adds the allocation rate, gc.alloc.rate.norm being bytes per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataBenchmark {
+	private String wbanText;
+	private String csaText;
+	private String precipText;
+	private byte[] precipBytes;
+	private String[] csaLines;
+	private String[] rawCounties;
+	private String[] rawStates;
+	private List<Pair<String, String>> countyStates;
+	private Map<String, String> countyMsas;
+	private int next;
+
+	/**
+	 * Run all benchmarks with the gc profiler
+	 * @param args optional regex selecting benchmarks, e.g. "normalize"
+	 * @throws RunnerException if JMH fails
+	 */
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(DataBenchmark.class.getSimpleName() + (args.length > 0 ? "." + args[0] : ""))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		wbanText = readAll(Wet.getReader("wbanmasterlist.psv"));
+		csaText = readAll(Wet.getReader("2013Feb_CSAList1.csv"));
+
+		// raw county and state fields as they appear in both files, quotes included
+		List<String> counties = new ArrayList<String>();
+		List<String> states = new ArrayList<String>();
+		List<String> wbans = new ArrayList<String>();
+		String[] wbanLines = wbanText.split("\n");
+		for (int i = 1; i < wbanLines.length; i++) {
+			String[] fields = wbanLines[i].split("\\|", -1);
+			if (fields.length > 5 && fields[5].equals("\"US\"") && fields[4].length() > 2) {
+				counties.add(fields[4]);
+				states.add(fields[3]);
+				wbans.add(Data.normalizeField(fields[1]));
+			}
+		}
+		String[] lines = csaText.split("\n");
+		csaLines = new String[lines.length - 1];
+		System.arraycopy(lines, 1, csaLines, 0, csaLines.length);
+		DelimitedTokenizer tokenizer = new DelimitedTokenizer(',');
+		for (String line : csaLines) {
+			if (tokenizer.tokenize(line) > 8) {
+				counties.add(tokenizer.getString(7));
+				states.add(tokenizer.getString(8));
+			}
+		}
+		rawCounties = counties.toArray(new String[counties.size()]);
+		rawStates = states.toArray(new String[states.size()]);
+
+		countyMsas = Data.loadMsaCountyMap(new BufferedReader(new StringReader(csaText)));
+		countyStates = new ArrayList<Pair<String, String>>(
+				Data.loadWBANCountyMap(new BufferedReader(new StringReader(wbanText))).values());
+
+		// a month of hourly rows per US station, with dry, wet, trace and blank hours
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		String[] values = { "0.00", "0.01", "0.12", "  T", " ", "1.05" };
+		int row = 0;
+		for (String wban : wbans) {
+			for (int day = 1; day <= 31; day++) {
+				for (int hour = 1; hour <= 24; hour++) {
+					precip.append(wban).append(",201505").append(day < 10 ? "0" : "").append(day).append(',')
+						.append(hour < 10 ? "0" : "").append(hour).append(',')
+						.append(values[row++ % values.length]).append(",\n");
+				}
+			}
+		}
+		precipText = precip.toString();
+		precipBytes = precipText.getBytes("US-ASCII");
+	}
+
+	@Benchmark
+	public void getDaytimePrecip(Blackhole bh) throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(precipText));
+		reader.readLine();
+		Pair<String, Double> rain;
+		while ((rain = Data.getDaytimePrecip(reader, 0, 2, 3)) != null) {
+			bh.consume(rain);
+		}
+	}
+
+	@Benchmark
+	public StationTotals sumDaytimePrecip() throws IOException {
+		// the byte-level parser that replaced getDaytimePrecip, for comparison
+		return Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(precipBytes)));
+	}
+
+	@Benchmark
+	public String normalizeField() {
+		return Data.normalizeField(rawCounties[nextIndex(rawCounties.length)]);
+	}
+
+	@Benchmark
+	public String normalizeCounty() {
+		return Data.normalizeCounty(rawCounties[nextIndex(rawCounties.length)]);
+	}
+
+	@Benchmark
+	public String normalizeState() {
+		return Data.normalizeState(rawStates[nextIndex(rawStates.length)]);
+	}
+
+	@Benchmark
+	public String[] splitEmbeddedCommaRegex() {
+		return csaLines[nextIndex(csaLines.length)].split(Utilities.embeddedCommaRegex());
+	}
+
+	@Benchmark
+	public int tokenizeCsaLine(TokenizerState state) {
+		// the tokenizer that replaced the regex split, for comparison
+		return state.tokenizer.tokenize(csaLines[nextIndex(csaLines.length)]);
+	}
+
+	@Benchmark
+	public Map<String, Pair<String, String>> loadWBANCountyMap() {
+		return Data.loadWBANCountyMap(new BufferedReader(new StringReader(wbanText)));
+	}
+
+	@Benchmark
+	public Map<String, String> loadMsaCountyMap() {
+		return Data.loadMsaCountyMap(new BufferedReader(new StringReader(csaText)));
+	}
+
+	@Benchmark
+	public String getMSAForCounty() {
+		return Data.getMSAForCounty(countyStates.get(nextIndex(countyStates.size())), countyMsas);
+	}
+
+	/*
+	 * Cycle through the inputs so every call sees a different one
+	 */
+	private int nextIndex(int length) {
+		int i = next < length ? next : 0;
+		next = i + 1;
+		return i;
+	}
+
+	private static String readAll(BufferedReader reader) throws IOException {
+		StringBuilder text = new StringBuilder();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				text.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return text.toString();
+	}
+
+	/**
+	 * One tokenizer per benchmark thread, since it reuses its buffers
+	 */
+	@State(Scope.Thread)
+	public static class TokenizerState {
+		final DelimitedTokenizer tokenizer = new DelimitedTokenizer(',');
+	}
+}
@@ -0,0 +1,237 @@
+package com.mjs.wet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * End-to-end benchmark of people-inches over synthetic precip data at several scales,
+ * reporting the wall time and peak heap of each stage, and rows per second for the
+ * precip stage.
+ * <p>
+ * At scale n the {@link PrecipGenerator} writes n years of May for the stations of the
+ * WBAN master list, so 1x is about the size of a real month. A real precip file can be
+ * run instead with -precip. Each result is exported as a csv. With -precip and -golden, it
+ * is compared to the peopleinches.csv in the golden directory, which must come from a
+ * trusted run on the same file, e.g. of Wet. The peopleinches.csv committed with the
+ * project predates the fix to the first row of each station, so it does not match.
+ * Synthetic data has no reference results, so -golden only applies to -precip.
+ * <p>
+ * Usage: PersonWetnessBenchmark [-scales 1,10,100] [-stations n] [-shuffled] [-parallel]
+ * [-dir directory] [-keep]
+ * <br>
+ * or: PersonWetnessBenchmark -precip file [-parallel] [-dir directory] [-golden directory]
+ */
+public class PersonWetnessBenchmark {
+	private static final LocalDate EXTRAPOLATION_DATE = LocalDate.of(2015, Month.MAY, 15);
+
+	private final ForkJoinPool pool;
+	private final Path outDir;
+	private final Path goldenDir;
+	private final List<String> report = new ArrayList<String>();
+	private int mismatches;
+
+	/**
+	 * @param args options, see the class description
+	 */
+	public static void main(String[] args) throws Exception {
+		String scales = "1,10,100";
+		int stations = Integer.MAX_VALUE;
+		boolean shuffled = false;
+		boolean parallel = false;
+		boolean keep = false;
+		Path precip = null;
+		Path dir = null;
+		Path golden = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-scales"))
+				scales = args[++i];
+			else if (args[i].equals("-stations"))
+				stations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-shuffled"))
+				shuffled = true;
+			else if (args[i].equals("-parallel"))
+				parallel = true;
+			else if (args[i].equals("-keep"))
+				keep = true;
+			else if (args[i].equals("-precip"))
+				precip = Paths.get(args[++i]);
+			else if (args[i].equals("-dir"))
+				dir = Paths.get(args[++i]);
+			else if (args[i].equals("-golden"))
+				golden = Paths.get(args[++i]);
+		}
+		if (golden != null && precip == null) {
+			System.err.println("-golden needs -precip: synthetic data has no reference results");
+			System.exit(2);
+		}
+		if (dir == null)
+			dir = Files.createTempDirectory("wetbench");
+		else
+			Files.createDirectories(dir);
+		PersonWetnessBenchmark benchmark = new PersonWetnessBenchmark(parallel ? ForkJoinPool.commonPool() : null,
+				dir, golden);
+		if (precip != null) {
+			benchmark.run(precip.getFileName().toString(), precip, countRows(precip), "peopleinches.csv");
+		} else {
+			int[] wbans = PrecipGenerator.getStationWbans(Data.loadStationTable(Wet.getReader("wbanmasterlist.psv")),
+					stations);
+			for (String scale : scales.split(",")) {
+				int years = Integer.parseInt(scale.trim());
+				PrecipGenerator generator = new PrecipGenerator(wbans);
+				generator.setYears(years);
+				generator.setShuffled(shuffled);
+				Path file = dir.resolve("precip-" + years + "x.txt");
+				long start = System.nanoTime();
+				long rows = generator.write(file);
+				System.out.printf("generated %s: %d rows, %d stations, %d MB in %.1f s%n", file, rows, wbans.length,
+						Files.size(file) >> 20, (System.nanoTime() - start) / 1e9);
+				try {
+					benchmark.run(years + "x", file, rows, "peopleinches-" + years + "x.csv");
+				} finally {
+					if (!keep)
+						Files.delete(file);
+				}
+			}
+		}
+		for (String line : benchmark.report) {
+			System.out.println(line);
+		}
+		if (benchmark.mismatches > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * @param pool ForkJoinPool to read precip files on in parallel chunks, or null to read sequentially
+	 * @param outDir directory for the exported results
+	 * @param goldenDir directory of expected results, or null
+	 */
+	public PersonWetnessBenchmark(ForkJoinPool pool, Path outDir, Path goldenDir) {
+		this.pool = pool;
+		this.outDir = outDir;
+		this.goldenDir = goldenDir;
+		report.add(String.format("%-8s %-10s %10s %12s %14s", "run", "stage", "wall ms", "peak heap MB", "rows/s"));
+	}
+
+	/**
+	 * Run the whole pipeline on one precip file, timing each stage
+	 * @param name name of the run in the report
+	 * @param precipFile precip file
+	 * @param rows number of rows in the precip file
+	 * @param resultName file name of the exported result
+	 * @throws Exception if a stage fails
+	 */
+	public void run(String name, final Path precipFile, long rows, String resultName) throws Exception {
+		final ReferenceData referenceData = stage(name, "reference", 0, new Callable<ReferenceData>() {
+			@Override
+			public ReferenceData call() throws IOException {
+				return new ReferenceData(Wet.getReader("wbanmasterlist.psv"), Wet.getReader("2013Feb_CSAList1.csv"),
+						Wet.getReader("CBSA-EST2012-01.csv"));
+			}
+		});
+		final StationTotals stationRain = stage(name, "precip", rows, new Callable<StationTotals>() {
+			@Override
+			public StationTotals call() throws IOException {
+				return Data.sumDaytimePrecip(precipFile, pool);
+			}
+		});
+		final Map<String, Double> peopleInches = stage(name, "join", 0, new Callable<Map<String, Double>>() {
+			@Override
+			public Map<String, Double> call() {
+				return Wet.getPersonWetness(referenceData, stationRain, EXTRAPOLATION_DATE);
+			}
+		});
+		final Path result = outDir.resolve(resultName);
+		stage(name, "export", 0, new Callable<Void>() {
+			@Override
+			public Void call() {
+				Utilities.exportMap(peopleInches, result.toString(), "MSA,PeopleInches");
+				return null;
+			}
+		});
+		if (goldenDir != null)
+			compare(name, result, goldenDir.resolve(resultName));
+	}
+
+	/*
+	 * Run a stage and add its wall time and peak heap to the report
+	 */
+	private <T> T stage(String name, String stage, long rows, Callable<T> work) throws Exception {
+		List<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heap.add(pool);
+			}
+		}
+		long start = System.nanoTime();
+		T result = work.call();
+		long nanos = System.nanoTime() - start;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heap) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		report.add(String.format("%-8s %-10s %10.1f %12.1f %14s", name, stage, nanos / 1e6, peak / (double) (1 << 20),
+				rows > 0 ? String.format("%.0f", rows * 1e9 / nanos) : ""));
+		return result;
+	}
+
+	/*
+	 * Compare an exported result to the expected one, MSA by MSA as formatted
+	 */
+	private void compare(String name, Path result, Path golden) throws IOException {
+		if (!Files.exists(golden)) {
+			report.add(name + ": no golden file " + golden);
+			return;
+		}
+		Map<String, String> expected = readResult(golden);
+		Map<String, String> actual = readResult(result);
+		int differences = 0;
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			String value = actual.get(entry.getKey());
+			if (!entry.getValue().equals(value)) {
+				if (differences++ < 10)
+					report.add(name + ": " + entry.getKey() + " expected " + entry.getValue() + " got " + value);
+			}
+		}
+		for (String msa : actual.keySet()) {
+			if (!expected.containsKey(msa) && differences++ < 10)
+				report.add(name + ": unexpected " + msa);
+		}
+		report.add(name + ": " + (differences == 0 ? "matches " : differences + " differences from ") + golden);
+		mismatches += differences;
+	}
+
+	private static Map<String, String> readResult(Path file) throws IOException {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		DelimitedTokenizer tokenizer = new DelimitedTokenizer(',');
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			reader.readLine();
+			while (tokenizer.readRecord(reader) >= 2) {
+				result.put(tokenizer.getString(0), tokenizer.getString(1));
+			}
+		}
+		return result;
+	}
+
+	private static long countRows(Path precipFile) throws IOException {
+		try (PrecipParser parser = new PrecipParser(PrecipArchive.open(precipFile))) {
+			while (parser.next()) {
+			}
+			return parser.getRowCount();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.mjs.wet;
+
+/**
+ * How hourly precip rows are summed into station totals
+ */
+public enum Aggregation {
+	/**
+	 * Rows are sorted by WBAN; each run of rows for one WBAN becomes one station total.
+	 * A WBAN that appears in two separate runs gets two totals.
+	 */
+	SORTED,
+	/**
+	 * Every row is added to its station's total through a hash lookup, so row order does
+	 * not matter
+	 */
+	HASH,
+	/**
+	 * Runs of rows for one WBAN are summed as for SORTED, and each run total is added to
+	 * its station through a hash lookup. Gives correct totals for any row order, at the
+	 * cost of one lookup per run, which for sorted input is one per station.
+	 */
+	AUTO
+}
@@ -0,0 +1,88 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+
+/**
+ * Counties and the Metropolitan Statistical Areas they belong to, as int ids.
+ * <p>
+ * Counties are keyed by normalized County|State and carry their 5-digit FIPS code
+ * (state code * 1000 + county code). MSA names get ids of their own, so a county's
+ * MSA is an int array lookup.
+ */
+public class CountyMsaTable {
+	static public final int NO_MSA = SymbolTable.NONE;
+	static public final int NO_FIPS = -1;
+
+	private final SymbolTable counties = new SymbolTable();
+	private final SymbolTable states = new SymbolTable();
+	private final SymbolTable msas = new SymbolTable();
+	private int[] msaByCounty = new int[256];
+	private int[] stateByCounty = new int[msaByCounty.length];
+	private int[] fipsByCounty = new int[msaByCounty.length];
+
+	/**
+	 * Record a county
+	 * @param county normalized county name, e.g. TRAVIS
+	 * @param state normalized state, e.g. TX
+	 * @param fips 5-digit FIPS code, or NO_FIPS
+	 * @param msa name of the MSA the county is in, or null if it is in none
+	 * @return id of the county
+	 */
+	public int put(String county, String state, int fips, String msa) {
+		String key = Utilities.createCountyStateKey(county, state);
+		int id = counties.getId(key);
+		if (id == SymbolTable.NONE) {
+			id = counties.intern(key);
+			if (id == msaByCounty.length) {
+				msaByCounty = Arrays.copyOf(msaByCounty, id * 2);
+				stateByCounty = Arrays.copyOf(stateByCounty, id * 2);
+				fipsByCounty = Arrays.copyOf(fipsByCounty, id * 2);
+			}
+			msaByCounty[id] = NO_MSA;
+		}
+		if (msa != null)
+			msaByCounty[id] = msas.intern(msa);
+		stateByCounty[id] = states.intern(state);
+		fipsByCounty[id] = fips;
+		return id;
+	}
+
+	/**
+	 * @param county normalized county name
+	 * @param state normalized state
+	 * @return id of the county, or SymbolTable.NONE if it is unknown
+	 */
+	public int getCountyId(String county, String state) {
+		return counties.getId(Utilities.createCountyStateKey(county, state));
+	}
+
+	/** @return number of counties */
+	public int getCountyCount() {
+		return counties.size();
+	}
+
+	/** @return id of the MSA of a county, or NO_MSA */
+	public int getMsaId(int countyId) {
+		return msaByCounty[countyId];
+	}
+
+	/** @return 5-digit FIPS code of a county, or NO_FIPS */
+	public int getFips(int countyId) {
+		return fipsByCounty[countyId];
+	}
+
+	/** @return id of the state of a county */
+	public int getStateId(int countyId) {
+		return stateByCounty[countyId];
+	}
+
+	/** @return dictionary of state ids */
+	public SymbolTable getStates() {
+		return states;
+	}
+
+	/** @return dictionary of MSA ids */
+	public SymbolTable getMsas() {
+		return msas;
+	}
+}
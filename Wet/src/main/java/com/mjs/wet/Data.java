@@ -2,15 +2,18 @@ package com.mjs.wet;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.text.NumberFormat;
-import java.text.ParseException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
-import java.time.Month;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
 
 import com.mjs.wet.Wet.Pair;
 
@@ -23,82 +26,396 @@ import com.mjs.wet.Wet.Pair;
 public class Data {
 	static Map<String, String> states = new HashMap<String,String>();
 	
+	/** precipitation is counted for the hours after this one, i.e. 8AM (hour ending at 8) through midnight */
+	static final int LAST_NIGHT_HOUR = 7;
+
 	/**
 	 * 
 	 * @param counties HashMap of MSA to List of counties
-	 * @param precipReader BufferedReader for WBAN precip. data
+	 * @param precipStream InputStream for WBAN precip. data
 	 * @param wbanCounties Map of WBAN to county
 	 * @return Map of MSA name to list of inches of rain for each WBAN in MSA
 	 */
 	static public Map<String, List<Double>> mergeRainWithCounties(
 			Map<String, String> counties, 
-			BufferedReader precipReader,
+			InputStream precipStream,
 			Map<String, Pair<String,String>> wbanCounties)
 	{
 		// the precip list is huge, so instead of loading all into memory,
-		// stream it. It is sorted by WBAN
+		// stream it, in blocks, to one subscriber that sums daytime rain per station
 		//
 		// 	until reach end of precip 
 		//  	get and sum precip for 7am - midnight until wban changes
 		// 		look up the county and state for this wban
 		//  	get MSA for county,state
 		//  	save rain for msa
-		Map<String, List<Double>> msaRain = new HashMap<String, List<Double>>();
-		
-		boolean reachedEOF = false;
-		/*
-		 * Precip file header and sample line:
-		 * Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag
-		 * 00103,20150523,03,0.01,
-		 */
+		PrecipPublisher publisher;
 		try {
-			List<String> fieldList = getHeaderFields(precipReader, ",");
-			int WBAN_INDEX = fieldList.indexOf("Wban");
-			int HOUR_INDEX = fieldList.indexOf("Hour");
-			int PRECIP_INDEX = fieldList.indexOf("Precipitation");
+			publisher = new PrecipPublisher(new PrecipParser(precipStream));
+		}catch(IOException e) {
+			PipelineMetrics.getDefault().error("reading precip data", e);
+			return mergeRainWithCounties(counties, new StationTotals(), wbanCounties);
+		}
+		CompletableFuture<Map<String, List<Double>>> msaRain = mergeRainWithCounties(counties, publisher, wbanCounties);
+		publisher.run();
+		return msaRain.join();
+	}
+
+	/**
+	 * Subscribe to a precip stream, e.g. next to quality checks or archival, and join the
+	 * daytime rain per station to MSAs when the stream completes. If the stream fails the
+	 * error is recorded and the MSAs get no rain, as for a precip file that cannot be read.
+	 * @param counties HashMap of MSA to List of counties
+	 * @param publisher precip stream, not yet started
+	 * @param wbanCounties Map of WBAN to county
+	 * @return Map of MSA name to list of inches of rain for each WBAN in MSA, once the stream completes
+	 */
+	static public CompletableFuture<Map<String, List<Double>>> mergeRainWithCounties(
+			final Map<String, String> counties,
+			PrecipPublisher publisher,
+			final Map<String, Pair<String,String>> wbanCounties)
+	{
+		StationTotalsSubscriber aggregation = new StationTotalsSubscriber();
+		publisher.subscribe(aggregation);
+		return aggregation.getResult().handle(new BiFunction<StationTotals, Throwable, Map<String, List<Double>>>() {
+			@Override
+			public Map<String, List<Double>> apply(StationTotals stationRain, Throwable error) {
+				if (error != null) {
+					PipelineMetrics.getDefault().error("reading precip data",
+							error instanceof Exception ? (Exception) error : new RuntimeException(error));
+					stationRain = new StationTotals();
+				}
+				return mergeRainWithCounties(counties, stationRain, wbanCounties);
+			}
+		});
+	}
+
+	/**
+	 * Join per-station rain totals to MSAs
+	 * @param counties HashMap of MSA to List of counties
+	 * @param stationRain daytime rain total per WBAN
+	 * @param wbanCounties Map of WBAN to county
+	 * @return Map of MSA name to list of inches of rain for each WBAN in MSA
+	 */
+	static public Map<String, List<Double>> mergeRainWithCounties(
+			Map<String, String> counties,
+			StationTotals stationRain,
+			Map<String, Pair<String,String>> wbanCounties)
+	{
+		Map<String, List<Double>> msaRain = new HashMap<String, List<Double>>();
+		for (int i = 0; i < stationRain.size(); i++) {
+			// TODO: there is a complication, due to the possibility that an MSA can contain multiple
+			// counties, each with its own WBAN. 
+			// We would ideally come up with an MSA rainfall value based on the combination
+			// of the values from each county, weighted by county population. We don't have county
+			// population. Should we take the average? The max?
+			// The current implementation simply takes the last county we encounter in the MSA as
+			// representative, and uses its rainfall value for the whole MSA.
 			
-			Pair<String, Double> wbanPrecip = getDaytimePrecip(precipReader, WBAN_INDEX, HOUR_INDEX, PRECIP_INDEX); //"00102", 0.01
-			double totalRain = 0.0d;
-			String oldWban;
-			while(!reachedEOF && wbanPrecip != null) {
-				oldWban = wbanPrecip.getElement0();
-				totalRain = wbanPrecip.getElement1().doubleValue();
-				do{
-					wbanPrecip = getDaytimePrecip(precipReader, WBAN_INDEX, HOUR_INDEX, PRECIP_INDEX);
-					if (wbanPrecip == null) 
-						reachedEOF = true;
-					else {
-						totalRain += wbanPrecip.getElement1().doubleValue();
-					}
-				}while(wbanPrecip != null && wbanPrecip.getElement0().equals(oldWban));
-				// at this point, totalRain is the sum for oldWban
-				
-				// TODO: there is a complication, due to the possibility that an MSA can contain multiple
-				// counties, each with its own WBAN. 
-				// We would ideally come up with an MSA rainfall value based on the combination
-				// of the values from each county, weighted by county population. We don't have county
-				// population. Should we take the average? The max?
-				// The current implementation simply takes the last county we encounter in the MSA as
-				// representative, and uses its rainfall value for the whole MSA.
-				
-				Pair<String, String> countyState = getNormalizedCountyState(wbanCounties, oldWban);
-				if (countyState != null) {
-					String MSA = getMSAForCounty(countyState, counties);
-					if (MSA != null) {
-					    if (!msaRain.containsKey(MSA)){
-					        msaRain.put(MSA,  new ArrayList<Double>());
-					    }
-					    List<Double> stationRains = msaRain.get(MSA);
-						stationRains.add(totalRain);
-					}
+			Pair<String, String> countyState = getNormalizedCountyState(wbanCounties, formatWban(stationRain.wban(i)));
+			if (countyState != null) {
+				String MSA = getMSAForCounty(countyState, counties);
+				if (MSA != null) {
+				    if (!msaRain.containsKey(MSA)){
+				        msaRain.put(MSA,  new ArrayList<Double>());
+				    }
+				    List<Double> stationRains = msaRain.get(MSA);
+					stationRains.add(stationRain.total(i));
 				}
 			}
-		}catch(IOException e) {
-			System.out.println(e.getMessage());
 		}
 		return msaRain;
 	}
 
+	/**
+	 * Combine per-station rain totals per MSA id
+	 * @param stationRain daytime rain total per WBAN
+	 * @param stations WBAN to county table
+	 * @param msaIds MSA id indexed by county id of the station table, see {@link StationTable#getMsaIds(CountyMsaTable)}
+	 * @param msaCount number of MSA ids
+	 * @return rain of the stations in each MSA
+	 */
+	static public MsaRainfall mergeRainByMsa(StationTotals stationRain, StationTable stations,
+			int[] msaIds, int msaCount)
+	{
+		return mergeRainByMsa(stationRain, stations, msaIds, msaCount, false);
+	}
+
+	/**
+	 * Combine per-station rain totals per MSA id. Each station is weighted by one over the
+	 * number of stations in its county, see {@link RainStrategy#WEIGHTED}.
+	 * @param stationRain daytime rain total per WBAN
+	 * @param stations WBAN to county table
+	 * @param msaIds MSA id indexed by county id of the station table, see {@link StationTable#getMsaIds(CountyMsaTable)}
+	 * @param msaCount number of MSA ids
+	 * @param keepValues true to keep each station's total, e.g. for {@link RainStrategy#MEDIAN}
+	 * @return rain of the stations in each MSA
+	 */
+	static public MsaRainfall mergeRainByMsa(StationTotals stationRain, StationTable stations,
+			int[] msaIds, int msaCount, boolean keepValues)
+	{
+		MsaRainfall msaRain = new MsaRainfall(msaCount, keepValues);
+		int[] countyStations = new int[msaIds.length];
+		int wbansWithoutCounty = 0;
+		for (int i = 0; i < stationRain.size(); i++) {
+			int countyId = stations.getCountyId(stationRain.wban(i));
+			if (countyId != StationTable.NO_COUNTY)
+				countyStations[countyId]++;
+			else
+				wbansWithoutCounty++;
+		}
+		PipelineMetrics.getDefault().setPrecipWbansWithoutCounty(wbansWithoutCounty);
+		for (int i = 0; i < stationRain.size(); i++) {
+			int countyId = stations.getCountyId(stationRain.wban(i));
+			if (countyId == StationTable.NO_COUNTY) continue;
+			int msaId = msaIds[countyId];
+			if (msaId != CountyMsaTable.NO_MSA)
+				msaRain.add(msaId, stationRain.total(i), 1.0d / countyStations[countyId]);
+		}
+		return msaRain;
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station, in any row order. See {@link Aggregation#AUTO}.
+	 * <p>
+	 * Precip file header and sample line:
+	 * Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag
+	 * 00103,20150523,03,0.01,
+	 * @param parser precip records positioned before the first record
+	 * @return daytime rain total per WBAN, in order of first appearance
+	 * @throws IOException if the parser encounters a problem other than EOF
+	 */
+	static public StationTotals sumDaytimePrecip(PrecipRecords parser) throws IOException {
+		return sumDaytimePrecip(parser, Aggregation.AUTO);
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station
+	 * @param parser precip records positioned before the first record
+	 * @param aggregation how rows are summed into station totals
+	 * @return daytime rain total per WBAN, in order of first appearance
+	 * @throws IOException if the parser encounters a problem other than EOF
+	 */
+	static public StationTotals sumDaytimePrecip(PrecipRecords parser, Aggregation aggregation) throws IOException {
+		StationTotals stationRain = new StationTotals();
+		sumDaytimePrecip(parser, aggregation, stationRain);
+		return stationRain;
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station into existing totals, e.g. to
+	 * combine several precip files without sorting them together first
+	 * @param parser precip records positioned before the first record
+	 * @param aggregation how rows are summed into station totals
+	 * @param stationRain totals to add to
+	 * @throws IOException if the parser encounters a problem other than EOF
+	 */
+	static public void sumDaytimePrecip(PrecipRecords parser, Aggregation aggregation, StationTotals stationRain)
+			throws IOException
+	{
+		sumPrecip(parser, LAST_NIGHT_HOUR + 1, 24, aggregation, stationRain);
+	}
+
+	/**
+	 * Sum the rain in a window of hours for each station into existing totals. Hour h is
+	 * the hour ending at h o'clock, 1 to 24.
+	 * @param parser precip records positioned before the first record
+	 * @param firstHour first hour counted
+	 * @param lastHour last hour counted
+	 * @param aggregation how rows are summed into station totals
+	 * @param stationRain totals to add to
+	 * @throws IOException if the parser encounters a problem other than EOF
+	 */
+	static public void sumPrecip(PrecipRecords parser, int firstHour, int lastHour, Aggregation aggregation,
+			StationTotals stationRain) throws IOException
+	{
+		long rows = 0;
+		long traces = 0;
+		if (aggregation == Aggregation.HASH) {
+			while (parser.next()) {
+				rows++;
+				if (parser.isTrace())
+					traces++;
+				int hour = parser.hour();
+				if (hour >= firstHour && hour <= lastHour)
+					stationRain.accumulate(parser.wban(), parser.precip());
+				else if (stationRain.indexOf(parser.wban()) < 0)
+					stationRain.add(parser.wban(), 0.0d);
+			}
+		} else {
+			boolean haveRow = parser.next();
+			while(haveRow) {
+				int oldWban = parser.wban();
+				double totalRain = 0.0d;
+				do{
+					rows++;
+					if (parser.isTrace())
+						traces++;
+					int hour = parser.hour();
+					if (hour >= firstHour && hour <= lastHour)
+						totalRain += parser.precip();
+					haveRow = parser.next();
+				}while(haveRow && parser.wban() == oldWban);
+				// at this point, totalRain is the sum for this run of oldWban
+				if (aggregation == Aggregation.SORTED)
+					stationRain.add(oldWban, totalRain);
+				else
+					stationRain.accumulate(oldWban, totalRain);
+			}
+		}
+		stationRain.addRowCount(rows);
+		long rejected = parser instanceof PrecipParser ? ((PrecipParser) parser).getRejectedCount() : 0;
+		PipelineMetrics.getDefault().addPrecipRows(rows, rejected, traces);
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station of a precip file on disk, in any
+	 * row order, from its cache if there is a fresh one
+	 * @param precipFile path to WBAN precip. data
+	 * @param pool ForkJoinPool to sum the text file on in parallel chunks, or null to read sequentially
+	 * @return daytime rain total per WBAN
+	 * @throws IOException if the file cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(Path precipFile, ForkJoinPool pool) throws IOException {
+		return sumDaytimePrecip(precipFile, pool, Aggregation.AUTO);
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station of a precip file on disk, from
+	 * its cache if there is a fresh one. The file may be a .zip or .gz, see {@link PrecipArchive}.
+	 * @param precipFile path to WBAN precip. data
+	 * @param pool ForkJoinPool to sum a plain text file on in parallel chunks, or null to read sequentially
+	 * @param aggregation how rows are summed into station totals
+	 * @return daytime rain total per WBAN
+	 * @throws IOException if the file cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(Path precipFile, ForkJoinPool pool, Aggregation aggregation)
+			throws IOException
+	{
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		StationTotals stationRain = readDaytimePrecip(precipFile, pool, aggregation);
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, stationRain.getRowCount());
+		return stationRain;
+	}
+
+	/*
+	 * Sum a precip file from its cache, in parallel chunks, or sequentially
+	 */
+	private static StationTotals readDaytimePrecip(Path precipFile, ForkJoinPool pool, Aggregation aggregation)
+			throws IOException
+	{
+		Path cache = PrecipCache.cachePath(precipFile);
+		if (PrecipCache.isFresh(precipFile, cache)) {
+			try (PrecipRecords records = PrecipCache.open(cache)) {
+				return sumDaytimePrecip(records, aggregation);
+			}
+		}
+		boolean archive = PrecipArchive.isArchive(precipFile.getFileName().toString());
+		if (pool != null && !archive)
+			return ParallelPrecipReader.sumDaytimePrecip(precipFile, pool, aggregation);
+		try (PrecipRecords records = new PrecipParser(PrecipArchive.open(precipFile))) {
+			return sumDaytimePrecip(records, aggregation);
+		}
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station of a precip file in any order,
+	 * e.g. by date, that is too large to sort in memory. The rows are sorted by an external
+	 * merge sort and summed as {@link Aggregation#SORTED}. A fresh cache is already sorted
+	 * by WBAN and is summed directly. The file may be a .zip or .gz, see {@link PrecipArchive}.
+	 * @param precipFile path to WBAN precip. data
+	 * @param sorter external sort, with its memory limit and temporary directory
+	 * @return daytime rain total per WBAN, in WBAN order
+	 * @throws IOException if the file cannot be read or sorted
+	 */
+	static public StationTotals sumDaytimePrecipSorted(Path precipFile, PrecipSorter sorter) throws IOException {
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		StationTotals stationRain;
+		Path cache = PrecipCache.cachePath(precipFile);
+		if (PrecipCache.isFresh(precipFile, cache)) {
+			try (PrecipRecords records = PrecipCache.open(cache)) {
+				stationRain = sumDaytimePrecip(records, Aggregation.SORTED);
+			}
+		} else {
+			try (PrecipRecords input = new PrecipParser(PrecipArchive.open(precipFile));
+					PrecipRecords records = sorter.sort(input)) {
+				stationRain = sumDaytimePrecip(records, Aggregation.SORTED);
+			}
+		}
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, stationRain.getRowCount());
+		return stationRain;
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station of one part of an off-heap store,
+	 * e.g. one month of a multi-year dataset
+	 * @param store off-heap precip records
+	 * @param part index of the part
+	 * @param pool ForkJoinPool to sum the store's segments on in parallel, or null to read sequentially
+	 * @return daytime rain total per WBAN
+	 * @throws IOException if the records cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(OffHeapPrecipStore store, int part, ForkJoinPool pool)
+			throws IOException
+	{
+		return sumPrecip(store, store.getPartStart(part), store.getPartEnd(part), LAST_NIGHT_HOUR + 1, 24, pool);
+	}
+
+	/**
+	 * Sum the rain in a window of hours for each station over a range of rows of an
+	 * off-heap store, in any row order. Hour h is the hour ending at h o'clock, 1 to 24.
+	 * @param store off-heap precip records
+	 * @param fromRow first row
+	 * @param toRow row after the last row
+	 * @param firstHour first hour counted
+	 * @param lastHour last hour counted
+	 * @param pool ForkJoinPool to sum the store's segments on in parallel, or null to read sequentially
+	 * @return rain total per WBAN
+	 * @throws IOException if the records cannot be read
+	 */
+	static public StationTotals sumPrecip(OffHeapPrecipStore store, long fromRow, long toRow, int firstHour,
+			int lastHour, ForkJoinPool pool) throws IOException
+	{
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		StationTotals stationRain = store.sumPrecip(fromRow, toRow, firstHour, lastHour, pool);
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, stationRain.getRowCount());
+		return stationRain;
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station over several precip files, as if
+	 * they were concatenated. Stations found in more than one file get one combined total.
+	 * @param precipFiles paths to WBAN precip. data
+	 * @param pool ForkJoinPool to sum each text file on in parallel chunks, or null to read sequentially
+	 * @return daytime rain total per WBAN
+	 * @throws IOException if a file cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(List<Path> precipFiles, ForkJoinPool pool) throws IOException {
+		StationTotals stationRain = new StationTotals();
+		for (Path precipFile : precipFiles) {
+			stationRain.accumulateAll(sumDaytimePrecip(precipFile, pool, Aggregation.AUTO));
+		}
+		return stationRain;
+	}
+
+	/**
+	 * Format a numeric WBAN id the way the WBAN master list keys it: 103 to 00103
+	 * @param wban numeric WBAN id
+	 * @return 5-digit WBAN string
+	 */
+	static public String formatWban(int wban) {
+		if (wban > 99999)
+			return Integer.toString(wban);
+		char[] digits = {'0', '0', '0', '0', '0'};
+		for (int i = digits.length - 1; wban > 0; i--, wban /= 10) {
+			digits[i] = (char) ('0' + wban % 10);
+		}
+		return new String(digits);
+	}
+
 	/**
 	 * Create a map of County|State to MSA.
 	 * <p>
@@ -125,47 +442,116 @@ public class Data {
 		
 		HashMap<String, String> msaMap = new HashMap<String, String>();
 		
-		int lineCount;
-		String line;
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		int lineCount = 0;
 
 		try {
-			String[] fields;
-			for (lineCount = 0; (line = reader.readLine()) != null; ++lineCount) {
-				fields = line.split(Utilities.embeddedCommaRegex(), -1);
+			DelimitedTokenizer fields = new DelimitedTokenizer(',');
+			FieldNormalizer normalizer = new FieldNormalizer();
+			for (lineCount = 0; fields.readRecord(reader) >= 0; ++lineCount) {
 				// we assume header row is first line, and all subsequent rows are data
 				if (lineCount ==0) {
 					// parse header line for field names
-					ArrayList<String> fieldList = new ArrayList<String>(Arrays.asList(fields));
-
 					for(int pi = 0; pi < properties.length; pi++) {
-						indexes[pi] = fieldList.indexOf(properties[pi]);							
+						indexes[pi] = fields.indexOf(properties[pi]);							
 					}
 				}else {
 					// get MSA, county, state
-					String MSA = normalizeField(fields[indexes[MSA_PROPERTY]]);
-					boolean isMetro = (fields[indexes[METRO_MICRO_PROPERTY]].equals(MSA_STRING));
-					String county = normalizeCounty(fields[indexes[COUNTY_PROPERTY]]);
-					String state = normalizeState(fields[indexes[STATE_PROPERTY]]);
-					String countyStateKey = Utilities.createCountyStateKey(county, state);
-		
+					boolean isMetro = fields.fieldEquals(indexes[METRO_MICRO_PROPERTY], MSA_STRING);
 					if (isMetro) {
+						String MSA = normalizer.field(fields.getField(indexes[MSA_PROPERTY]));
+						String county = normalizer.county(fields.getField(indexes[COUNTY_PROPERTY]));
+						String state = normalizer.state(fields.getField(indexes[STATE_PROPERTY]));
+						String countyStateKey = Utilities.createCountyStateKey(county, state);
 						msaMap.put(countyStateKey, MSA);
 					}
 				}
 			}
 		} catch (IOException io) {
-			System.err.println("IOException: " + io.getMessage());
+			metrics.error("loading CSA list", io);
 		}finally {
 			if (reader != null)
 				try {
 					reader.close();
 				} catch (IOException e) {
-					e.printStackTrace();
+					metrics.error("closing CSA list", e);
 				}
 		}
+		metrics.stop(PipelineMetrics.Stage.CSA_LOAD, start, Math.max(lineCount - 1, 0));
 		return msaMap;
 	}
 	
+	/**
+	 * Create a table of counties, with their FIPS codes, and the MSA ids they belong to.
+	 * Only Metropolitan Statistical Areas get an MSA id.
+	 * @param reader BufferedReader for table of MSAs and their counties
+	 * @return CountyMsaTable of county to MSA
+	 */
+	static public CountyMsaTable loadCountyMsaTable(BufferedReader reader){
+		final String MSA_STRING = "Metropolitan Statistical Area";
+		final String[] properties = {
+			"CBSA Title",
+			"Metropolitan/Micropolitan Statistical Area",
+			"County/County Equivalent",
+			"State Name",
+			"FIPS State Code",
+			"FIPS County Code"
+		};
+		final int MSA_PROPERTY = 0;
+		final int METRO_MICRO_PROPERTY = 1;
+		final int COUNTY_PROPERTY = 2;
+		final int STATE_PROPERTY = 3;
+		final int FIPS_STATE_PROPERTY = 4;
+		final int FIPS_COUNTY_PROPERTY = 5;
+
+		// field index of given property in the data lines
+		int[] indexes = new int[properties.length];
+		
+		CountyMsaTable countyMsas = new CountyMsaTable();
+		
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		int lineCount = 0;
+
+		try {
+			DelimitedTokenizer fields = new DelimitedTokenizer(',');
+			FieldNormalizer normalizer = new FieldNormalizer();
+			for (lineCount = 0; fields.readRecord(reader) >= 0; ++lineCount) {
+				// we assume header row is first line, and all subsequent rows are data
+				if (lineCount ==0) {
+					for(int pi = 0; pi < properties.length; pi++) {
+						indexes[pi] = fields.indexOf(properties[pi]);							
+					}
+				}else {
+					boolean isMetro = fields.fieldEquals(indexes[METRO_MICRO_PROPERTY], MSA_STRING);
+					String MSA = isMetro ? normalizer.field(fields.getField(indexes[MSA_PROPERTY])) : null;
+					String county = normalizer.county(fields.getField(indexes[COUNTY_PROPERTY]));
+					String state = normalizer.state(fields.getField(indexes[STATE_PROPERTY]));
+					int fips = CountyMsaTable.NO_FIPS;
+					if (indexes[FIPS_STATE_PROPERTY] >= 0 && indexes[FIPS_COUNTY_PROPERTY] >= 0) {
+						int fipsState = fields.getInt(indexes[FIPS_STATE_PROPERTY], -1);
+						int fipsCounty = fields.getInt(indexes[FIPS_COUNTY_PROPERTY], -1);
+						if (fipsState >= 0 && fipsCounty >= 0)
+							fips = fipsState * 1000 + fipsCounty;
+					}
+					countyMsas.put(county, state, fips, MSA);
+				}
+			}
+		} catch (IOException io) {
+			metrics.error("loading CSA list", io);
+		}finally {
+			if (reader != null)
+				try {
+					reader.close();
+				} catch (IOException e) {
+					metrics.error("closing CSA list", e);
+				}
+		}
+		metrics.stop(PipelineMetrics.Stage.CSA_LOAD, start, Math.max(lineCount - 1, 0));
+		return countyMsas;
+	}
+	
 	/**
 	 * Create a map of WBANs to Counties 
 	 * @param wbanReader BufferedReader to master WBAN list
@@ -183,38 +569,87 @@ public class Data {
 		 * 
 		 */
 		Map<String, Pair<String, String>> wbanCounties = new HashMap<String, Pair<String,String>>();
-		List<String> fieldList;
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		long records = 0;
 		try {
-			fieldList = getHeaderFields(wbanReader, "\\|");
-			int WBAN_ID_INDEX = fieldList.indexOf("\"WBAN_ID\"");
-			int COUNTY_INDEX = fieldList.indexOf("\"COUNTY\"");
-			int STATE_INDEX = fieldList.indexOf("\"STATE_PROVINCE\"");
+			DelimitedTokenizer fields = new DelimitedTokenizer('|');
+			FieldNormalizer normalizer = new FieldNormalizer();
+			if (fields.readRecord(wbanReader) < 0)
+				throw new IOException("unable to read header from file");
+			int WBAN_ID_INDEX = fields.indexOf("WBAN_ID");
+			int COUNTY_INDEX = fields.indexOf("COUNTY");
+			int STATE_INDEX = fields.indexOf("STATE_PROVINCE");
 			String wban="", county="", state="";
 			int maxIndex = Integer.max(WBAN_ID_INDEX, COUNTY_INDEX);
 			maxIndex = Integer.max(maxIndex, STATE_INDEX);
 
-			String line;
-			while((line = wbanReader.readLine()) != null) {
-				String[] fields = line.split("\\|");
-				if (fields.length < maxIndex+1) continue;
-				wban = normalizeField(fields[WBAN_ID_INDEX]);
-				county = normalizeCounty(fields[COUNTY_INDEX]);
+			int fieldCount;
+			while((fieldCount = fields.readRecord(wbanReader)) >= 0) {
+				records++;
+				if (fieldCount < maxIndex+1) continue;
+				county = normalizer.county(fields.getField(COUNTY_INDEX));
 				if (!county.isEmpty()) {
-					state = normalizeState(fields[STATE_INDEX]);
-					if (!state.isEmpty())
+					state = normalizer.state(fields.getField(STATE_INDEX));
+					if (state != null && !state.isEmpty()) {
+						wban = normalizeField(fields.getString(WBAN_ID_INDEX));
 						wbanCounties.put(wban, Pair.createPair(county, state));						
+					}
 				}
 				
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			metrics.error("loading WBAN list", e);
 		}
+		metrics.stop(PipelineMetrics.Stage.WBAN_LOAD, start, records);
 
 		return wbanCounties;
 	}
 	
 	/**
-	 * extrapolate populations for MSAs to a given date.
+	 * Create a table of WBANs to Counties, indexed by numeric WBAN
+	 * @param wbanReader BufferedReader to master WBAN list
+	 * @return StationTable of WBAN to county
+	 */
+	static public StationTable loadStationTable(BufferedReader wbanReader) {
+		StationTable stations = new StationTable();
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		long records = 0;
+		try {
+			DelimitedTokenizer fields = new DelimitedTokenizer('|');
+			FieldNormalizer normalizer = new FieldNormalizer();
+			if (fields.readRecord(wbanReader) < 0)
+				throw new IOException("unable to read header from file");
+			int WBAN_ID_INDEX = fields.indexOf("WBAN_ID");
+			int COUNTY_INDEX = fields.indexOf("COUNTY");
+			int STATE_INDEX = fields.indexOf("STATE_PROVINCE");
+			int maxIndex = Integer.max(WBAN_ID_INDEX, COUNTY_INDEX);
+			maxIndex = Integer.max(maxIndex, STATE_INDEX);
+
+			int fieldCount;
+			while((fieldCount = fields.readRecord(wbanReader)) >= 0) {
+				records++;
+				if (fieldCount < maxIndex+1) continue;
+				int wban = fields.getInt(WBAN_ID_INDEX, -1);
+				if (wban < 0 || wban > StationTable.MAX_WBAN) continue;
+				String county = fields.getField(COUNTY_INDEX).length() == 0 ? ""
+						: normalizer.county(fields.getField(COUNTY_INDEX));
+				String state = county.isEmpty() ? null : normalizer.state(fields.getField(STATE_INDEX));
+				if (state != null && !state.isEmpty())
+					stations.put(wban, county, state);
+				else
+					stations.putWithoutCounty(wban);
+			}
+		} catch (IOException e) {
+			metrics.error("loading WBAN list", e);
+		}
+		metrics.stop(PipelineMetrics.Stage.WBAN_LOAD, start, records);
+		return stations;
+	}
+	
+	/**
+	 * extrapolate populations for MSAs to a given date, using the latest estimate.
 	 * We have hard-coded dependency on the specific data file. 
 	 * @param popReader BufferedReader to population data
 	 * @param extrapolationDate LocalDate for population estimate
@@ -223,56 +658,43 @@ public class Data {
 	static public Map<String, Integer> getExtrapolatedPopulations(
 			BufferedReader popReader, LocalDate extrapolationDate) 
 	{
-
-		/*
-		 * Population file header and sample data: (numbers as of July 1 of given year)
-		 * CBSA Code,Metro Division Code,Metropolitan statistical areas,Census,Estimates base,2010,2011,2012
-		 * 10180,,"Abilene, TX","165,252","165,252","165,578","166,481","166,963"
-		 */
+		// the table names its own MSAs, so it is parsed once
 		Map<String, Integer> msaPop = new HashMap<String, Integer>();
-		List<String> fieldList;
 		try {
-			String regex = Utilities.embeddedCommaRegex();
-			fieldList = getHeaderFields(popReader, ",");
-			int MSA_INDEX = fieldList.indexOf("Metropolitan statistical areas");
-			int INDEX_2010 = fieldList.indexOf("2010");
-			int INDEX_2011 = fieldList.indexOf("2011");
-			int INDEX_2012 = fieldList.indexOf("2012");
-			String line;
-			while ((line = popReader.readLine()) != null) {
-				String[] fields = line.split(regex, -1);
-				String msa = normalizeField(fields[MSA_INDEX]);
-				Number pop2010 = NumberFormat.getNumberInstance(java.util.Locale.US).parse(normalizeField(fields[INDEX_2010]));
-				Number pop2011 = NumberFormat.getNumberInstance(java.util.Locale.US).parse(normalizeField(fields[INDEX_2011]));
-				Number pop2012 = NumberFormat.getNumberInstance(java.util.Locale.US).parse(normalizeField(fields[INDEX_2012]));
-				Pair<Number, LocalDate> val2010 = Pair.createPair(pop2010, LocalDate.of(2010, Month.JULY, 1));
-				Pair<Number, LocalDate> val2011 = Pair.createPair(pop2011, LocalDate.of(2011, Month.JULY, 1));
-				Pair<Number, LocalDate> val2012 = Pair.createPair(pop2012, LocalDate.of(2012, Month.JULY, 1));
-				int extPop = extrapolate(val2010, val2011, val2012, extrapolationDate);
-				msaPop.put(msa, extPop);
+			PopulationTable table = new PopulationTable(popReader);
+			SymbolTable msas = table.getMsas();
+			int[] populations = table.getPopulations(extrapolationDate, PopulationModel.LATEST);
+			for (int msaId = 0; msaId < populations.length; msaId++) {
+				if (populations[msaId] >= 0)
+					msaPop.put(msas.getName(msaId), populations[msaId]);
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ParseException e) {
-			e.printStackTrace();
+			PipelineMetrics.getDefault().error("loading populations", e);
 		}
-
 		return msaPop;
 	}
 
-	/*
-	 * Extrapolate population from three different times to a given future time
+	/**
+	 * extrapolate populations for MSAs to a given date, indexed by MSA id, using the latest
+	 * estimate. To extrapolate to many dates, or with another model, see {@link PopulationTable}.
+	 * @param popReader BufferedReader to population data
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @param msas dictionary of MSA ids
+	 * @return population indexed by MSA id, -1 where the population is unknown
 	 */
-	static int extrapolate(Pair<Number, LocalDate> val2010,
-			Pair<Number, LocalDate> val2011, Pair<Number, LocalDate> val2012,
-			LocalDate extrapolationDate) {
-		// TODO: experiment with cubic fit (parabola fit to 3 points),
-		// least-square fit, or spline.
-		// In the interest of time, here we simply use the latest value
-		return val2012.getElement0().intValue();
+	static public int[] getExtrapolatedPopulations(
+			BufferedReader popReader, LocalDate extrapolationDate, SymbolTable msas) 
+	{
+		try {
+			return new PopulationTable(popReader, msas).getPopulations(extrapolationDate, PopulationModel.LATEST);
+		} catch (IOException e) {
+			PipelineMetrics.getDefault().error("loading populations", e);
+			int[] msaPop = new int[msas.size()];
+			Arrays.fill(msaPop, -1);
+			return msaPop;
+		}
 	}
 
-	
  
 	/**
 	 * Get the name of the MSA that a county belongs to, e.g.:
@@ -325,7 +747,7 @@ public class Data {
 		try {
 			int hour = Integer.parseUnsignedInt(fields[hourIndex]); // 1...24 are the hours ending at 1AM...midnight
 			String sRain = fields[precipIndex];	
-			if (hour > 7) {
+			if (hour > LAST_NIGHT_HOUR) {
 				rain = Double.parseDouble(sRain);	// on "" or "T" throws 			
 			}		
 		}catch(NumberFormatException ex) {
@@ -361,7 +783,7 @@ public class Data {
 	 */
 	static public String normalizeField(String field) {
 		// remove surrounding double quotes
-		return field.replaceAll("^\"|\"$", "");
+		return FieldNormalizer.stripQuotes(field);
 	}
 
 	/**
@@ -370,10 +792,7 @@ public class Data {
 	 * @return normalized form of state name
 	 */
 	static public String normalizeState(String state) {		
-		String trimmed = normalizeField(state).trim();
-		if (trimmed.length() > 2)
-			trimmed = states.get(trimmed);
-		return trimmed;
+		return FieldNormalizer.toState(state);
 	}
 
 	/**
@@ -382,12 +801,7 @@ public class Data {
 	 * @return normalized county name
 	 */
 	static public String normalizeCounty(String county) {
-		String trimmed = normalizeField(county).trim().toUpperCase();
-		int countyIndex = trimmed.indexOf("COUNTY");
-		if (countyIndex >= 0) {
-			trimmed = trimmed.substring(0, countyIndex).trim();
-		}
-		return trimmed;
+		return FieldNormalizer.toCounty(county);
 	}
 	
 	static {
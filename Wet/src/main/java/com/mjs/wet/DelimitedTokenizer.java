@@ -0,0 +1,302 @@
+package com.mjs.wet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single-pass tokenizer for one record of a delimited file, csv or psv, following RFC 4180 quoting:
+ * a field may be enclosed in double quotes, inside which the delimiter and line breaks are literal
+ * and a doubled quote stands for one quote. No regex is involved and each line is scanned once, also when a record spans several lines.
+ * <p>
+ * Fields are exposed as CharSequence views over a buffer that is reused for every line, so
+ * a caller only allocates the fields it keeps, e.g. with {@link #getString(int)}. The views
+ * are only valid until the next call to {@link #tokenize(CharSequence)}.
+ */
+public class DelimitedTokenizer {
+	/* scan states: at the start of a field, inside quotes, and in the rest of a field */
+	private static final int FIELD_START = 0;
+	private static final int QUOTED = 1;
+	private static final int UNQUOTED = 2;
+
+	private final char delimiter;
+	private char[] chars = new char[256];
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private Field[] views = new Field[0];
+	private int fieldCount;
+	private boolean complete;
+	// end of the scanned characters, and start of the field being scanned
+	private int out;
+	private int fieldStart;
+
+	/**
+	 * @param delimiter field delimiter, e.g. ',' or '|'
+	 */
+	public DelimitedTokenizer(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Split a line into fields, removing the enclosing quotes and un-doubling inner quotes
+	 * @param line a line without its line terminator
+	 * @return number of fields, including empty trailing fields
+	 */
+	public int tokenize(CharSequence line) {
+		fieldCount = 0;
+		out = 0;
+		fieldStart = 0;
+		scan(line, FIELD_START);
+		return fieldCount;
+	}
+
+	/*
+	 * Continue a record whose last field was left open by a quoted line break, scanning only the new line
+	 */
+	private void continueRecord(CharSequence line) {
+		fieldCount--;
+		ensureCapacity(1);
+		chars[out++] = '\n';
+		scan(line, QUOTED);
+	}
+
+	/*
+	 * Scan a line from the given state, appending its fields; the last field stays open if
+	 * the line ends inside quotes
+	 */
+	private void scan(CharSequence line, int state) {
+		int length = line.length();
+		ensureCapacity(length);
+		int i = 0;
+		while (i < length) {
+			char c = line.charAt(i);
+			if (state == FIELD_START && c == '"') {
+				// quoted field; runs to the closing quote, then to the delimiter
+				state = QUOTED;
+				i++;
+			} else if (state == QUOTED) {
+				if (c != '"') {
+					chars[out++] = c;
+				} else if (i + 1 < length && line.charAt(i + 1) == '"') {
+					chars[out++] = '"';
+					i++;
+				} else {
+					// anything between the closing quote and the delimiter is kept as is
+					state = UNQUOTED;
+				}
+				i++;
+			} else if (c == delimiter) {
+				addField(fieldStart, out);
+				fieldStart = out;
+				state = FIELD_START;
+				i++;
+			} else {
+				chars[out++] = c;
+				state = UNQUOTED;
+				i++;
+			}
+		}
+		complete = state != QUOTED;
+		addField(fieldStart, out);
+	}
+
+	private void ensureCapacity(int more) {
+		if (chars.length < out + more)
+			chars = Arrays.copyOf(chars, Math.max(out + more, chars.length * 2));
+	}
+
+	/**
+	 * A quoted field may contain a line break, in which case the line ends inside the
+	 * quotes and the record continues on the next line
+	 * @return false if the line ended inside a quoted field
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Read a whole record, joining lines while a quoted field spans a line break, and tokenize it
+	 * @param reader BufferedReader positioned at the start of a record
+	 * @return number of fields, or -1 at EOF
+	 * @throws IOException if the reader encounters a problem other than EOF
+	 */
+	public int readRecord(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null)
+			return -1;
+		tokenize(line);
+		while (!complete && (line = reader.readLine()) != null) {
+			continueRecord(line);
+		}
+		return fieldCount;
+	}
+
+	/** @return number of fields in the current line */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @param index field index
+	 * @return reusable view of the field, valid until the next line is tokenized
+	 */
+	public CharSequence getField(int index) {
+		checkIndex(index);
+		return views[index];
+	}
+
+	/**
+	 * @param index field index
+	 * @return the field as a new String
+	 */
+	public String getString(int index) {
+		checkIndex(index);
+		return new String(chars, starts[index], ends[index] - starts[index]);
+	}
+
+	/**
+	 * Compare a field to a String without allocating
+	 * @param index field index
+	 * @param value value to compare to
+	 * @return true if the field equals the value
+	 */
+	public boolean fieldEquals(int index, String value) {
+		checkIndex(index);
+		int start = starts[index];
+		int length = ends[index] - start;
+		if (length != value.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (chars[start + i] != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a field as an unsigned int, ignoring surrounding blanks
+	 * @param index field index
+	 * @param defaultValue value to return if the field is empty or not a number
+	 * @return the field's value
+	 */
+	public int getInt(int index, int defaultValue) {
+		checkIndex(index);
+		int start = starts[index];
+		int end = ends[index];
+		while (start < end && chars[start] == ' ') start++;
+		while (end > start && chars[end - 1] == ' ') end--;
+		if (start == end || end - start > 9)
+			return defaultValue;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = chars[i] - '0';
+			if (digit < 0 || digit > 9)
+				return defaultValue;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse a field as an unsigned int with thousands separators, e.g. 165,252
+	 * @param index field index
+	 * @param defaultValue value to return if the field is empty or not a number
+	 * @return the field's value
+	 */
+	public int getGroupedInt(int index, int defaultValue) {
+		checkIndex(index);
+		int start = starts[index];
+		int end = ends[index];
+		while (start < end && chars[start] == ' ') start++;
+		while (end > start && chars[end - 1] == ' ') end--;
+		int value = 0;
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			if (chars[i] == ',')
+				continue;
+			int digit = chars[i] - '0';
+			if (digit < 0 || digit > 9 || ++digits > 9)
+				return defaultValue;
+			value = value * 10 + digit;
+		}
+		return digits == 0 ? defaultValue : value;
+	}
+
+	/**
+	 * Find a field, e.g. a column name in a header line
+	 * @param value value to look for
+	 * @return index of the first field equal to the value, or -1
+	 */
+	public int indexOf(String value) {
+		for (int i = 0; i < fieldCount; i++) {
+			if (fieldEquals(i, value))
+				return i;
+		}
+		return -1;
+	}
+
+	/** @return all fields of the current line as new Strings */
+	public List<String> getStrings() {
+		List<String> fields = new ArrayList<String>(fieldCount);
+		for (int i = 0; i < fieldCount; i++) {
+			fields.add(getString(i));
+		}
+		return fields;
+	}
+
+	private void addField(int start, int end) {
+		if (fieldCount == starts.length) {
+			starts = Arrays.copyOf(starts, fieldCount * 2);
+			ends = Arrays.copyOf(ends, fieldCount * 2);
+		}
+		if (fieldCount == views.length) {
+			views = Arrays.copyOf(views, Math.max(fieldCount * 2, 16));
+			for (int i = fieldCount; i < views.length; i++) {
+				views[i] = new Field(i);
+			}
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount] = end;
+		fieldCount++;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= fieldCount)
+			throw new IndexOutOfBoundsException("field " + index + " of " + fieldCount);
+	}
+
+	/*
+	 * View of one field of the current line
+	 */
+	private class Field implements CharSequence {
+		private final int index;
+
+		Field(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public int length() {
+			return ends[index] - starts[index];
+		}
+
+		@Override
+		public char charAt(int i) {
+			if (i < 0 || i >= length())
+				throw new IndexOutOfBoundsException(Integer.toString(i));
+			return chars[starts[index] + i];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return getString(index);
+		}
+	}
+}
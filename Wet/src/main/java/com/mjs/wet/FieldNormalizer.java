@@ -0,0 +1,185 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Normalizes raw fields, counties and states as {@link Data#normalizeField(String)},
+ * {@link Data#normalizeCounty(String)} and {@link Data#normalizeState(String)} do, without
+ * regular expressions, and remembers the results.
+ * <p>
+ * The same few thousand county and state names repeat over every row of the reference
+ * tables, so each kind of field has a bounded cache keyed by the raw characters. A raw
+ * value seen before is looked up straight from a reusable {@link CharSequence}, such as
+ * {@link DelimitedTokenizer#getField(int)}, and returns the same canonical String without
+ * allocating. A full cache is cleared and refilled, so memory stays bounded on any input.
+ * <p>
+ * A normalizer is not thread-safe; each loader uses its own.
+ */
+public class FieldNormalizer {
+	/** default most entries per cache */
+	static final int DEFAULT_CAPACITY = 4096;
+
+	private final Cache fields;
+	private final Cache counties;
+	private final Cache states;
+
+	public FieldNormalizer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity most raw values remembered per kind of field
+	 */
+	public FieldNormalizer(int capacity) {
+		fields = new Cache(capacity) {
+			@Override
+			String normalize(String raw) {
+				return stripQuotes(raw);
+			}
+		};
+		counties = new Cache(capacity) {
+			@Override
+			String normalize(String raw) {
+				return toCounty(raw);
+			}
+		};
+		states = new Cache(capacity) {
+			@Override
+			String normalize(String raw) {
+				return toState(raw);
+			}
+		};
+	}
+
+	/**
+	 * @param raw field, e.g. "Foo" with the quotes
+	 * @return the field without one leading and one trailing double quote, e.g. Foo
+	 */
+	public String field(CharSequence raw) {
+		return fields.get(raw);
+	}
+
+	/**
+	 * @param raw county, e.g. Travis County
+	 * @return upper case county without "COUNTY", e.g. TRAVIS
+	 */
+	public String county(CharSequence raw) {
+		return counties.get(raw);
+	}
+
+	/**
+	 * @param raw state, e.g. Texas or "TX"
+	 * @return state abbreviation, e.g. TX, or null for a name that is not a known state
+	 */
+	public String state(CharSequence raw) {
+		return states.get(raw);
+	}
+
+	/**
+	 * @param field a field from a line of a delimited file
+	 * @return the field without one leading and one trailing double quote
+	 */
+	static String stripQuotes(String field) {
+		int start = 0;
+		int end = field.length();
+		if (end > 0 && field.charAt(0) == '"')
+			start++;
+		if (end > start && field.charAt(end - 1) == '"')
+			end--;
+		return start == 0 && end == field.length() ? field : field.substring(start, end);
+	}
+
+	/**
+	 * @param county county name
+	 * @return upper case county name, cut before "COUNTY" if it has it
+	 */
+	static String toCounty(String county) {
+		String trimmed = stripQuotes(county).trim().toUpperCase(Locale.ROOT);
+		int countyIndex = trimmed.indexOf("COUNTY");
+		if (countyIndex >= 0)
+			trimmed = trimmed.substring(0, countyIndex).trim();
+		return trimmed;
+	}
+
+	/**
+	 * @param state state name or abbreviation
+	 * @return state abbreviation, or null for a name that is not a known state
+	 */
+	static String toState(String state) {
+		String trimmed = stripQuotes(state).trim();
+		if (trimmed.length() > 2)
+			trimmed = Data.states.get(trimmed);
+		return trimmed;
+	}
+
+	/*
+	 * Open-addressing table of raw value to canonical value. Hashes are String hashes, so a
+	 * raw value is found from any CharSequence of the same characters.
+	 */
+	private static abstract class Cache {
+		private static final String NULL = new String("null");
+
+		private final int maxSize;
+		private final String[] keys;
+		private final String[] values;
+		private final int[] hashes;
+		private int size;
+
+		Cache(int capacity) {
+			maxSize = Math.max(capacity, 1);
+			int tableSize = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+			keys = new String[tableSize];
+			values = new String[tableSize];
+			hashes = new int[tableSize];
+		}
+
+		abstract String normalize(String raw);
+
+		String get(CharSequence raw) {
+			int hash = hash(raw);
+			int mask = keys.length - 1;
+			int slot = hash & mask;
+			for (String key; (key = keys[slot]) != null; slot = (slot + 1) & mask) {
+				if (hashes[slot] == hash && contentEquals(key, raw)) {
+					String value = values[slot];
+					return value == NULL ? null : value;
+				}
+			}
+			String key = raw.toString();
+			String value = normalize(key);
+			if (size == maxSize) {
+				Arrays.fill(keys, null);
+				Arrays.fill(values, null);
+				size = 0;
+				slot = hash & mask;
+			}
+			keys[slot] = key;
+			values[slot] = value == null ? NULL : value;
+			hashes[slot] = hash;
+			size++;
+			return value;
+		}
+
+		private static int hash(CharSequence raw) {
+			if (raw instanceof String)
+				return raw.hashCode();
+			int hash = 0;
+			for (int i = 0; i < raw.length(); i++) {
+				hash = 31 * hash + raw.charAt(i);
+			}
+			return hash;
+		}
+
+		private static boolean contentEquals(String key, CharSequence raw) {
+			int length = key.length();
+			if (raw.length() != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (key.charAt(i) != raw.charAt(i))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.mjs.wet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * People-inches kept up to date as precip data arrives, without summing the history again.
+ * <p>
+ * The daytime rain per station and, per precip source, the last day ingested are kept
+ * and can be saved to a checkpoint. {@link #ingest(Path)} reads a new daily or monthly
+ * file, or a month file republished with more days, and sums only the rows after the last
+ * day seen for that file. Each station's new rain is added to its total and only the
+ * people-inches of the MSAs it touched are recomputed, combining their stations with the
+ * {@link RainStrategy} the reference data had when this was made, so the cost of an update
+ * is the new data and the stations of those MSAs, not the total history. The last day of
+ * a source is taken as complete.
+ * <p>
+ * Checkpoint format: the magic number {@link #MAGIC}, a version, the sources as count then
+ * (UTF name, int yyyymmdd), the station totals as count then (int WBAN, double inches), and
+ * the long count of rows ingested. Checkpoints are written to a temporary file and moved
+ * into place, so a crash leaves the previous checkpoint.
+ * <p>
+ * Not thread-safe.
+ */
+public class IncrementalWetness {
+	/** first int of a checkpoint */
+	static final int MAGIC = 0x5745544b; // WETK
+	static final int VERSION = 1;
+
+	private final ReferenceData referenceData;
+	private final RainStrategy rainStrategy;
+	private final int[] msaPeople;
+	private final StationTotals stationRain = new StationTotals();
+	private final Map<String, Integer> lastDays = new HashMap<String, Integer>();
+	// positions in stationRain of the stations of each MSA, in order of first appearance
+	private final int[][] msaStations;
+	private final int[] msaStationCounts;
+	// stations with rain per county id, for the WEIGHTED strategy
+	private final int[] countyStations;
+	private final double[] msaPeopleInches;
+
+	/**
+	 * Start with no precip data
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param extrapolationDate LocalDate for population estimate
+	 */
+	public IncrementalWetness(ReferenceData referenceData, LocalDate extrapolationDate) {
+		this.referenceData = referenceData;
+		rainStrategy = referenceData.getRainStrategy();
+		msaPeople = referenceData.getPopulations(extrapolationDate);
+		int msaCount = referenceData.getMsas().size();
+		msaStations = new int[msaCount][];
+		msaStationCounts = new int[msaCount];
+		countyStations = new int[referenceData.getStations().getCountyCount()];
+		msaPeopleInches = new double[msaCount];
+		Arrays.fill(msaPeopleInches, Double.NaN);
+	}
+
+	/**
+	 * Resume from a checkpoint
+	 * @param checkpoint checkpoint file; if it does not exist, start with no precip data
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @return the restored state
+	 * @throws IOException if the checkpoint cannot be read
+	 */
+	static public IncrementalWetness load(Path checkpoint, ReferenceData referenceData, LocalDate extrapolationDate)
+			throws IOException
+	{
+		IncrementalWetness wetness = new IncrementalWetness(referenceData, extrapolationDate);
+		if (!Files.exists(checkpoint))
+			return wetness;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(checkpoint + " is not a wetness checkpoint");
+			int sources = in.readInt();
+			for (int i = 0; i < sources; i++) {
+				String source = in.readUTF();
+				wetness.lastDays.put(source, in.readInt());
+			}
+			int stations = in.readInt();
+			StationTotals totals = new StationTotals(stations);
+			for (int i = 0; i < stations; i++) {
+				int wban = in.readInt();
+				totals.add(wban, in.readDouble());
+			}
+			totals.addRowCount(in.readLong());
+			wetness.apply(totals);
+		}
+		return wetness;
+	}
+
+	/**
+	 * Write the state to a checkpoint, replacing any earlier one
+	 * @param checkpoint checkpoint file
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	public void save(Path checkpoint) throws IOException {
+		Path dir = checkpoint.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir, checkpoint.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(lastDays.size());
+				for (Map.Entry<String, Integer> entry : lastDays.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue());
+				}
+				out.writeInt(stationRain.size());
+				for (int i = 0; i < stationRain.size(); i++) {
+					out.writeInt(stationRain.wban(i));
+					out.writeDouble(stationRain.total(i));
+				}
+				out.writeLong(stationRain.getRowCount());
+			}
+			Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Add the rows of a precip file after the last day ingested from it, from its cache if
+	 * there is a fresh one. Files are known by name, so a republished file resumes where
+	 * the last one stopped. The file may be a .zip or .gz, see {@link PrecipArchive}.
+	 * @param precipFile precip file
+	 * @return number of rows ingested
+	 * @throws IOException if the file cannot be read
+	 */
+	public long ingest(Path precipFile) throws IOException {
+		Path cache = PrecipCache.cachePath(precipFile);
+		try (PrecipRecords records = PrecipCache.isFresh(precipFile, cache) ? PrecipCache.open(cache)
+				: new PrecipParser(PrecipArchive.open(precipFile))) {
+			return ingest(precipFile.getFileName().toString(), records);
+		}
+	}
+
+	/**
+	 * Add the records after the last day ingested from a source
+	 * @param source name of the source, e.g. 201505precip.txt
+	 * @param records precip records positioned before the first record; not closed
+	 * @return number of rows ingested
+	 * @throws IOException if the records cannot be read
+	 */
+	public long ingest(String source, PrecipRecords records) throws IOException {
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		NewRecords newRecords = new NewRecords(records, getLastDay(source));
+		StationTotals delta = new StationTotals();
+		Data.sumDaytimePrecip(newRecords, Aggregation.AUTO, delta);
+		if (newRecords.lastDay > getLastDay(source))
+			lastDays.put(source, newRecords.lastDay);
+		apply(delta);
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, delta.getRowCount());
+		return delta.getRowCount();
+	}
+
+	/**
+	 * @param source name of a source, e.g. 201505precip.txt
+	 * @return last day ingested from it as yyyymmdd, or 0 if none
+	 */
+	public int getLastDay(String source) {
+		Integer lastDay = lastDays.get(source);
+		return lastDay != null ? lastDay : 0;
+	}
+
+	/** @return daytime rain total per WBAN over everything ingested */
+	public StationTotals getStationRain() {
+		return stationRain;
+	}
+
+	/** @return people-inches indexed by MSA id, NaN for MSAs without stations or population */
+	public double[] getPeopleInches() {
+		return msaPeopleInches.clone();
+	}
+
+	/**
+	 * @return Map of MSA to people-inches, sorted descending by wetness
+	 */
+	public Map<String, Double> getPersonWetness() {
+		SymbolTable msas = referenceData.getMsas();
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (int msaId = 0; msaId < msaPeopleInches.length; msaId++) {
+			if (!Double.isNaN(msaPeopleInches[msaId]))
+				result.put(msas.getName(msaId), msaPeopleInches[msaId]);
+		}
+		return Wet.sortDescending(result);
+	}
+
+	/*
+	 * Add new station rain, recomputing the MSAs it falls in
+	 */
+	private void apply(StationTotals delta) {
+		StationTable stations = referenceData.getStations();
+		boolean[] touched = new boolean[msaPeopleInches.length];
+		boolean anyTouched = false;
+		for (int i = 0; i < delta.size(); i++) {
+			int wban = delta.wban(i);
+			boolean newStation = stationRain.indexOf(wban) < 0;
+			stationRain.accumulate(wban, delta.total(i));
+			int msaId = referenceData.getMsaId(wban);
+			if (msaId == CountyMsaTable.NO_MSA)
+				continue;
+			if (newStation) {
+				countyStations[stations.getCountyId(wban)]++;
+				addStation(msaId, stationRain.indexOf(wban));
+			}
+			touched[msaId] = true;
+			anyTouched = true;
+		}
+		stationRain.addRowCount(delta.getRowCount());
+		if (!anyTouched)
+			return;
+
+		// combine the stations of the touched MSAs as Data.mergeRainByMsa does for all of them
+		MsaRainfall msaRain = new MsaRainfall(touched.length, rainStrategy.needsValues());
+		for (int msaId = 0; msaId < touched.length; msaId++) {
+			if (!touched[msaId])
+				continue;
+			for (int j = 0; j < msaStationCounts[msaId]; j++) {
+				int station = msaStations[msaId][j];
+				int countyId = stations.getCountyId(stationRain.wban(station));
+				msaRain.add(msaId, stationRain.total(station), 1.0d / countyStations[countyId]);
+			}
+			int people = msaPeople[msaId];
+			msaPeopleInches[msaId] = people < 0 ? Double.NaN : rainStrategy.combine(msaRain, msaId) * people;
+		}
+	}
+
+	private void addStation(int msaId, int station) {
+		int count = msaStationCounts[msaId];
+		if (msaStations[msaId] == null)
+			msaStations[msaId] = new int[4];
+		else if (count == msaStations[msaId].length)
+			msaStations[msaId] = Arrays.copyOf(msaStations[msaId], count * 2);
+		msaStations[msaId][count] = station;
+		msaStationCounts[msaId] = count + 1;
+	}
+
+	/*
+	 * The records after a day, noting the last day read
+	 */
+	private static class NewRecords implements PrecipRecords {
+		private final PrecipRecords records;
+		private final int afterDay;
+		int lastDay;
+
+		NewRecords(PrecipRecords records, int afterDay) {
+			this.records = records;
+			this.afterDay = afterDay;
+			lastDay = afterDay;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			while (records.next()) {
+				int day = records.day();
+				if (day > afterDay) {
+					if (day > lastDay)
+						lastDay = day;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int wban() { return records.wban(); }
+
+		@Override
+		public int day() { return records.day(); }
+
+		@Override
+		public int hour() { return records.hour(); }
+
+		@Override
+		public double precip() { return records.precip(); }
+
+		@Override
+		public boolean isTrace() { return records.isTrace(); }
+
+		@Override
+		public boolean isMissing() { return records.isMissing(); }
+
+		@Override
+		public void close() throws IOException {
+			records.close();
+		}
+	}
+}
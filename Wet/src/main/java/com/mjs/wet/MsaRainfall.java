@@ -0,0 +1,141 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+
+/**
+ * Station rain totals combined per MSA id, in primitive arrays: the count, sum, weighted
+ * sum, minimum and maximum of each MSA's stations, and optionally the station values
+ * themselves. A {@link RainStrategy} turns them into one rain figure per MSA.
+ */
+public class MsaRainfall {
+	private final double[] sums;
+	private final int[] counts;
+	private final double[] weightedSums;
+	private final double[] weights;
+	private final double[] mins;
+	private final double[] maxs;
+	// station values per MSA, only when kept; grown by doubling
+	private final double[][] values;
+
+	/**
+	 * @param msaCount number of MSA ids
+	 */
+	public MsaRainfall(int msaCount) {
+		this(msaCount, false);
+	}
+
+	/**
+	 * @param msaCount number of MSA ids
+	 * @param keepValues true to keep each station's value, e.g. for {@link RainStrategy#MEDIAN}
+	 */
+	public MsaRainfall(int msaCount, boolean keepValues) {
+		sums = new double[msaCount];
+		counts = new int[msaCount];
+		weightedSums = new double[msaCount];
+		weights = new double[msaCount];
+		mins = new double[msaCount];
+		maxs = new double[msaCount];
+		values = keepValues ? new double[msaCount][] : null;
+	}
+
+	/**
+	 * Add the rain total of one station in an MSA
+	 * @param msaId MSA id
+	 * @param rain inches of rain
+	 */
+	public void add(int msaId, double rain) {
+		add(msaId, rain, 1.0d);
+	}
+
+	/**
+	 * Add the rain total of one station in an MSA, with a weight for {@link RainStrategy#WEIGHTED}
+	 * @param msaId MSA id
+	 * @param rain inches of rain
+	 * @param weight weight of the station, more than 0
+	 */
+	public void add(int msaId, double rain, double weight) {
+		int count = counts[msaId];
+		if (count == 0 || rain < mins[msaId])
+			mins[msaId] = rain;
+		if (count == 0 || rain > maxs[msaId])
+			maxs[msaId] = rain;
+		sums[msaId] += rain;
+		weightedSums[msaId] += rain * weight;
+		weights[msaId] += weight;
+		if (values != null) {
+			double[] msaValues = values[msaId];
+			if (msaValues == null)
+				msaValues = values[msaId] = new double[4];
+			else if (count == msaValues.length)
+				msaValues = values[msaId] = Arrays.copyOf(msaValues, count * 2);
+			msaValues[count] = rain;
+		}
+		counts[msaId] = count + 1;
+	}
+
+	/** @return number of MSA ids */
+	public int size() {
+		return sums.length;
+	}
+
+	/** @return true if the station values are kept */
+	public boolean hasValues() {
+		return values != null;
+	}
+
+	/** @return number of stations reporting in an MSA */
+	public int getCount(int msaId) {
+		return counts[msaId];
+	}
+
+	/** @return sum of the station totals of an MSA */
+	public double getSum(int msaId) {
+		return sums[msaId];
+	}
+
+	/** @return mean station total of an MSA, or 0 if it has no stations */
+	public double getMean(int msaId) {
+		return counts[msaId] > 0 ? sums[msaId] / counts[msaId] : 0.0d;
+	}
+
+	/** @return weighted mean station total of an MSA, or 0 if it has no stations */
+	public double getWeightedMean(int msaId) {
+		return weights[msaId] > 0.0d ? weightedSums[msaId] / weights[msaId] : 0.0d;
+	}
+
+	/** @return least station total of an MSA, or 0 if it has no stations */
+	public double getMin(int msaId) {
+		return mins[msaId];
+	}
+
+	/** @return greatest station total of an MSA, or 0 if it has no stations */
+	public double getMax(int msaId) {
+		return maxs[msaId];
+	}
+
+	/**
+	 * @return median station total of an MSA, the mean of the middle two for an even
+	 * count, or 0 if it has no stations
+	 * @throws IllegalStateException if the station values are not kept
+	 */
+	public double getMedian(int msaId) {
+		if (values == null)
+			throw new IllegalStateException("station values are not kept");
+		int count = counts[msaId];
+		if (count == 0)
+			return 0.0d;
+		double[] sorted = Arrays.copyOf(values[msaId], count);
+		Arrays.sort(sorted);
+		return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2.0d;
+	}
+
+	/**
+	 * @return copy of the station totals of an MSA, in the order they were added
+	 * @throws IllegalStateException if the station values are not kept
+	 */
+	public double[] getValues(int msaId) {
+		if (values == null)
+			throw new IllegalStateException("station values are not kept");
+		return counts[msaId] == 0 ? new double[0] : Arrays.copyOf(values[msaId], counts[msaId]);
+	}
+}
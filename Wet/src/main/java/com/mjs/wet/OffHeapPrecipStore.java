@@ -0,0 +1,298 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Hourly precip records held outside the Java heap, so years of data can stay resident
+ * for repeated analysis with a small heap and nothing for the collector to trace.
+ * <p>
+ * Rows are appended to fixed-size segments, each one direct ByteBuffer holding the rows
+ * as columns in the encoding of {@link PrecipCache}:
+ * <pre>
+ * int WBAN[rows], int yyyymmdd[rows], int precip[rows] in thousandths of an inch, byte hour[rows]
+ * </pre>
+ * where the hour byte also carries the trace and missing flags. That is 13 bytes a row, so
+ * a decade of hourly data for every station is a few GB, which needs a matching
+ * -XX:MaxDirectMemorySize. Each appended source is a part, e.g. one month; the records
+ * of a part or of the whole store are read back through {@link #records(int)} and
+ * {@link #records()}, which the summing code in {@link Data} scans like any other
+ * {@link PrecipRecords}. Rows keep their order, so sorted sources stay sorted within a part.
+ * <p>
+ * Appending is not thread-safe; once appending is done, any number of threads may read.
+ * The memory is released when the store is collected.
+ */
+public class OffHeapPrecipStore {
+	/** rows per segment */
+	static final int SEGMENT_ROWS = 1 << 20;
+	/** bytes per row, over all columns */
+	static final int ROW_BYTES = 13;
+
+	private final int segmentRows;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long[] partStarts = new long[16];
+	private int parts;
+	private long rowCount;
+
+	public OffHeapPrecipStore() {
+		this(SEGMENT_ROWS);
+	}
+
+	/**
+	 * @param segmentRows rows per segment
+	 */
+	OffHeapPrecipStore(int segmentRows) {
+		this.segmentRows = segmentRows;
+	}
+
+	/**
+	 * Append all records, e.g. one month of precip data, as a new part
+	 * @param records precip records positioned before the first record; not closed
+	 * @return index of the new part
+	 * @throws IOException if the records cannot be read
+	 */
+	public int append(PrecipRecords records) throws IOException {
+		if (parts == partStarts.length)
+			partStarts = Arrays.copyOf(partStarts, parts * 2);
+		partStarts[parts] = rowCount;
+		while (records.next()) {
+			int offset = (int) (rowCount % segmentRows);
+			if (offset == 0)
+				segments.add(new Segment(segmentRows));
+			segments.get(segments.size() - 1).put(offset, records);
+			rowCount++;
+		}
+		return parts++;
+	}
+
+	/**
+	 * Append a precip file as a new part, from its cache if there is a fresh one. The file
+	 * may be a .zip or .gz, see {@link PrecipArchive}.
+	 * @param precipFile precip file
+	 * @return index of the new part
+	 * @throws IOException if the file cannot be read
+	 */
+	public int append(Path precipFile) throws IOException {
+		Path cache = PrecipCache.cachePath(precipFile);
+		try (PrecipRecords records = PrecipCache.isFresh(precipFile, cache) ? PrecipCache.open(cache)
+				: new PrecipParser(PrecipArchive.open(precipFile))) {
+			return append(records);
+		}
+	}
+
+	/** @return number of rows */
+	public long getRowCount() { return rowCount; }
+
+	/** @return number of parts appended */
+	public int getPartCount() { return parts; }
+
+	/** @return first row of a part */
+	public long getPartStart(int part) { return partStarts[checkPart(part)]; }
+
+	/** @return row after the last row of a part */
+	public long getPartEnd(int part) { return checkPart(part) + 1 < parts ? partStarts[part + 1] : rowCount; }
+
+	/** @return rows per segment; readers split work at segment boundaries */
+	public int getSegmentRows() { return segmentRows; }
+
+	/** @return bytes of direct memory allocated */
+	public long getOffHeapBytes() { return (long) segments.size() * segmentRows * ROW_BYTES; }
+
+	/**
+	 * @return cursor over all rows, in order
+	 */
+	public PrecipRecords records() {
+		return records(0, rowCount);
+	}
+
+	/**
+	 * @param part index of a part
+	 * @return cursor over the rows of the part, in order
+	 */
+	public PrecipRecords records(int part) {
+		return records(getPartStart(part), getPartEnd(part));
+	}
+
+	/**
+	 * @param fromRow first row
+	 * @param toRow row after the last row
+	 * @return cursor over the rows, in order
+	 */
+	public PrecipRecords records(long fromRow, long toRow) {
+		if (fromRow < 0 || toRow > rowCount || fromRow > toRow)
+			throw new IndexOutOfBoundsException("rows " + fromRow + " to " + toRow + " of " + rowCount);
+		return new Cursor(fromRow, toRow);
+	}
+
+	/**
+	 * Sum the rain in a window of hours for each station over a range of rows, one segment
+	 * per task. Runs of a station split across segments are combined, so the rows need not
+	 * be sorted.
+	 * @param fromRow first row
+	 * @param toRow row after the last row
+	 * @param firstHour first hour counted
+	 * @param lastHour last hour counted
+	 * @param pool ForkJoinPool to sum the segments on, or null to sum sequentially
+	 * @return rain total per WBAN, in order of first appearance
+	 * @throws IOException if the records cannot be read
+	 */
+	StationTotals sumPrecip(long fromRow, long toRow, int firstHour, int lastHour, ForkJoinPool pool)
+			throws IOException
+	{
+		if (pool == null || toRow - fromRow <= segmentRows) {
+			StationTotals stationRain = new StationTotals();
+			Data.sumPrecip(records(fromRow, toRow), firstHour, lastHour, Aggregation.AUTO, stationRain);
+			return stationRain;
+		}
+		// task bounds at segment boundaries, so each task reads one buffer
+		long[] bounds = new long[(int) ((toRow - 1) / segmentRows - fromRow / segmentRows) + 2];
+		bounds[0] = fromRow;
+		for (int i = 1; i < bounds.length - 1; i++) {
+			bounds[i] = (fromRow / segmentRows + i) * segmentRows;
+		}
+		bounds[bounds.length - 1] = toRow;
+		try {
+			return pool.invoke(new SegmentTask(bounds, 0, bounds.length - 1, firstHour, lastHour));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private int checkPart(int part) {
+		if (part < 0 || part >= parts)
+			throw new IndexOutOfBoundsException("part " + part + " of " + parts);
+		return part;
+	}
+
+	/*
+	 * One direct buffer, cut into columns
+	 */
+	private static final class Segment {
+		final IntBuffer wbans;
+		final IntBuffer days;
+		final IntBuffer precips;
+		final ByteBuffer hours;
+
+		Segment(int rows) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(rows * ROW_BYTES).order(ByteOrder.nativeOrder());
+			wbans = column(buffer, 0, rows * 4).asIntBuffer();
+			days = column(buffer, rows * 4, rows * 4).asIntBuffer();
+			precips = column(buffer, rows * 8, rows * 4).asIntBuffer();
+			hours = column(buffer, rows * 12, rows);
+		}
+
+		private static ByteBuffer column(ByteBuffer buffer, int offset, int length) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset);
+			view.limit(offset + length);
+			return view.slice().order(ByteOrder.nativeOrder());
+		}
+
+		void put(int row, PrecipRecords records) {
+			wbans.put(row, records.wban());
+			days.put(row, records.day());
+			precips.put(row, (int) Math.round(records.precip() * PrecipCache.PRECIP_SCALE));
+			hours.put(row, PrecipCache.encodeHour(records.hour(), records.isTrace(), records.isMissing()));
+		}
+	}
+
+	/*
+	 * Sums the row ranges in [from, to), splitting in half until it is one range
+	 */
+	private class SegmentTask extends RecursiveTask<StationTotals> {
+		private static final long serialVersionUID = 1L;
+		private final long[] bounds;
+		private final int from;
+		private final int to;
+		private final int firstHour;
+		private final int lastHour;
+
+		SegmentTask(long[] bounds, int from, int to, int firstHour, int lastHour) {
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+			this.firstHour = firstHour;
+			this.lastHour = lastHour;
+		}
+
+		@Override
+		protected StationTotals compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				SegmentTask right = new SegmentTask(bounds, mid, to, firstHour, lastHour);
+				right.fork();
+				StationTotals totals = new SegmentTask(bounds, from, mid, firstHour, lastHour).compute();
+				totals.accumulateAll(right.join());
+				return totals;
+			}
+			try {
+				StationTotals totals = new StationTotals();
+				Data.sumPrecip(records(bounds[from], bounds[to]), firstHour, lastHour, Aggregation.AUTO, totals);
+				return totals;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/*
+	 * Reads rows [fromRow, toRow) segment by segment
+	 */
+	private final class Cursor implements PrecipRecords {
+		private final long toRow;
+		private long next;
+		private Segment segment;
+		private int row;
+
+		Cursor(long fromRow, long toRow) {
+			this.toRow = toRow;
+			next = fromRow;
+		}
+
+		@Override
+		public boolean next() {
+			if (next >= toRow)
+				return false;
+			row = (int) (next % segmentRows);
+			if (segment == null || row == 0)
+				segment = segments.get((int) (next / segmentRows));
+			next++;
+			return true;
+		}
+
+		@Override
+		public int wban() { return segment.wbans.get(row); }
+
+		@Override
+		public int day() { return segment.days.get(row); }
+
+		@Override
+		public int hour() {
+			int hour = segment.hours.get(row) & PrecipCache.HOUR_MASK;
+			return hour == PrecipCache.NO_HOUR ? -1 : hour;
+		}
+
+		@Override
+		public double precip() { return segment.precips.get(row) / (double) PrecipCache.PRECIP_SCALE; }
+
+		@Override
+		public boolean isTrace() { return (segment.hours.get(row) & PrecipCache.TRACE_FLAG) != 0; }
+
+		@Override
+		public boolean isMissing() { return (segment.hours.get(row) & PrecipCache.MISSING_FLAG) != 0; }
+
+		@Override
+		public void close() {
+			// the store owns the memory
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Sums daytime rain per station from a memory-mapped precip file on a ForkJoinPool.
+ * <p>
+ * The file is cut into chunks whose boundaries fall between two runs of rows for different
+ * WBANs. Each chunk is mapped and parsed independently, and the per-chunk totals are
+ * combined in file order, giving the same result as a sequential read with the same
+ * {@link Aggregation}.
+ */
+public class ParallelPrecipReader {
+	/** chunks per worker thread, so that uneven chunks still balance */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/** upper bound on a single mapping */
+	private static final long MAX_CHUNK = 1L << 30;
+	/** bytes mapped at a time while searching for a station boundary */
+	private static final int SEARCH_WINDOW = 1 << 20;
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station in a precip file
+	 * @param precipFile path to a precip file
+	 * @param pool ForkJoinPool to parse the chunks on
+	 * @return daytime rain total per WBAN, in file order
+	 * @throws IOException if the file cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(Path precipFile, ForkJoinPool pool) throws IOException {
+		return sumDaytimePrecip(precipFile, pool, Aggregation.AUTO);
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station in a precip file
+	 * @param precipFile path to a precip file
+	 * @param pool ForkJoinPool to parse the chunks on
+	 * @param aggregation how rows are summed into station totals
+	 * @return daytime rain total per WBAN, in file order
+	 * @throws IOException if the file cannot be read
+	 */
+	static public StationTotals sumDaytimePrecip(Path precipFile, ForkJoinPool pool, Aggregation aggregation)
+			throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(precipFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			PrecipParser header = readHeader(channel, size);
+			long[] bounds = findChunkBounds(channel, header, header.getRowOffset(), size,
+					pool.getParallelism() * CHUNKS_PER_THREAD);
+			try {
+				return pool.invoke(new ChunkTask(channel, header, aggregation, bounds, 0, bounds.length - 1));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Split the rows of a precip file into byte ranges that each begin at the first row of a
+	 * station, so each range can be read by another process, see {@link #openChunk(Path, long, long)}
+	 * @param precipFile path to a plain precip file
+	 * @param parts number of ranges wanted; more are made if a range would be too large to map
+	 * @return range boundaries as byte offsets, from the first row to the file size; there
+	 * may be fewer ranges than parts when the file has few stations
+	 * @throws IOException if the file cannot be read
+	 */
+	static long[] splitFile(Path precipFile, int parts) throws IOException {
+		try (FileChannel channel = FileChannel.open(precipFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			PrecipParser header = readHeader(channel, size);
+			return findChunkBounds(channel, header, header.getRowOffset(), size, parts);
+		}
+	}
+
+	/**
+	 * Open one byte range of a precip file, as made by {@link #splitFile(Path, int)}
+	 * @param precipFile path to a plain precip file
+	 * @param from offset of the first row of the range
+	 * @param to offset after the last row of the range
+	 * @return parser of the rows of the range only
+	 * @throws IOException if the file cannot be read
+	 */
+	static PrecipParser openChunk(Path precipFile, long from, long to) throws IOException {
+		try (FileChannel channel = FileChannel.open(precipFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (from < 0 || from > to || to > size || to - from > Integer.MAX_VALUE)
+				throw new IOException("bad byte range " + from + "-" + to + " of " + precipFile);
+			PrecipParser header = readHeader(channel, size);
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			return new PrecipParser(new BufferInputStream(chunk), header.getWbanIndex(),
+					header.getDayIndex(), header.getHourIndex(), header.getPrecipIndex());
+		}
+	}
+
+	/*
+	 * Parse the header from the first window
+	 */
+	private static PrecipParser readHeader(FileChannel channel, long size) throws IOException {
+		return new PrecipParser(new BufferInputStream(
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, SEARCH_WINDOW))));
+	}
+
+	/*
+	 * Split [start, size) into at least minChunks chunks, each of at most about MAX_CHUNK
+	 * bytes, that each begin at the first row of a station
+	 */
+	static long[] findChunkBounds(FileChannel channel, PrecipParser header, long start, long size, int minChunks)
+			throws IOException
+	{
+		long length = size - start;
+		int chunks = (int) Math.max(minChunks, length / MAX_CHUNK + 1);
+		long step = Math.max(length / chunks, 1);
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(start);
+		long last = start;
+		for (int i = 1; i < chunks; i++) {
+			long target = start + i * step;
+			if (target <= last)
+				continue;
+			long bound = nextStationStart(channel, header, target, size);
+			if (bound >= size)
+				break;
+			if (bound > last) {
+				bounds.add(bound);
+				last = bound;
+			}
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/*
+	 * Find the offset of the first row, at or after the line following 'from', whose
+	 * WBAN differs from that of the row before it. Returns size if there is none.
+	 */
+	private static long nextStationStart(FileChannel channel, PrecipParser header, long from, long size)
+			throws IOException
+	{
+		long lineStart = nextLineStart(channel, from, size);
+		int firstWban = -1;
+		while (lineStart < size) {
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, lineStart,
+					Math.min(size - lineStart, SEARCH_WINDOW));
+			int end = completeLinesEnd(window, lineStart + window.limit() == size);
+			if (end <= 0) {
+				// a line longer than the window; skip past it
+				lineStart = nextLineStart(channel, lineStart + window.limit(), size);
+				continue;
+			}
+			window.limit(end);
+			PrecipParser parser = new PrecipParser(new BufferInputStream(window), header.getWbanIndex(),
+					header.getDayIndex(), header.getHourIndex(), header.getPrecipIndex());
+			while (parser.next()) {
+				if (firstWban < 0)
+					firstWban = parser.wban();
+				else if (parser.wban() != firstWban)
+					return lineStart + parser.getRowOffset();
+			}
+			lineStart += end;
+		}
+		return size;
+	}
+
+	/*
+	 * Offset just past the first '\n' at or after 'from'
+	 */
+	private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+		ByteBuffer scan = ByteBuffer.allocate(8192);
+		long position = from;
+		while (position < size) {
+			scan.clear();
+			int n = channel.read(scan, position);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (scan.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += n;
+		}
+		return size;
+	}
+
+	/*
+	 * Length of the window up to and including its last '\n', so no row is cut in two
+	 */
+	private static int completeLinesEnd(ByteBuffer window, boolean atEOF) {
+		if (atEOF)
+			return window.limit();
+		for (int i = window.limit() - 1; i >= 0; i--) {
+			if (window.get(i) == '\n')
+				return i + 1;
+		}
+		return 0;
+	}
+
+	/*
+	 * Sums the chunks in [from, to), splitting the range in half until it is one chunk
+	 */
+	private static class ChunkTask extends RecursiveTask<StationTotals> {
+		private static final long serialVersionUID = 1L;
+		private final FileChannel channel;
+		private final PrecipParser header;
+		private final Aggregation aggregation;
+		private final long[] bounds;
+		private final int from;
+		private final int to;
+
+		ChunkTask(FileChannel channel, PrecipParser header, Aggregation aggregation, long[] bounds, int from, int to) {
+			this.channel = channel;
+			this.header = header;
+			this.aggregation = aggregation;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected StationTotals compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				ChunkTask right = new ChunkTask(channel, header, aggregation, bounds, mid, to);
+				right.fork();
+				StationTotals totals = new ChunkTask(channel, header, aggregation, bounds, from, mid).compute();
+				if (aggregation == Aggregation.SORTED)
+					totals.addAll(right.join());
+				else
+					totals.accumulateAll(right.join());
+				return totals;
+			}
+			try {
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+						bounds[from], bounds[to] - bounds[from]);
+				PrecipParser parser = new PrecipParser(new BufferInputStream(chunk), header.getWbanIndex(),
+						header.getDayIndex(), header.getHourIndex(), header.getPrecipIndex());
+				return Data.sumDaytimePrecip(parser, aggregation);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/*
+	 * Reads a ByteBuffer in bulk, so the parser can refill from a mapped chunk
+	 */
+	static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.mjs.wet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Per-station daytime rain sums and counts over some partitions of the precip data, e.g.
+ * one WBAN range or one file, that can be saved, sent to another process and merged.
+ * <p>
+ * Rain is summed as a long number of thousandths of an inch, the precision of
+ * {@link PrecipCache}, so merging is exact: partials merge to the same result in any
+ * order and grouping, and the same runs can be spread over any number of processes or
+ * machines. Each partial names the partitions it covers, and merging two that share a
+ * partition is refused, so no rows are counted twice.
+ * <p>
+ * Binary format: the magic number {@link #MAGIC}, a version, the partition names as count
+ * then UTF, the first and last day as yyyymmdd, the long row count, then the stations in
+ * WBAN order as count then (int WBAN, long thousandths, long daytime rows). Equal partials
+ * have equal bytes.
+ */
+public class PartialAggregate {
+	/** first int of a saved partial */
+	static public final int MAGIC = 0x57455450; // WETP
+	static final int VERSION = 1;
+
+	private final SortedSet<String> partitions = new TreeSet<String>();
+	private int[] wbans = new int[256];
+	private long[] sums = new long[wbans.length];
+	private long[] counts = new long[wbans.length];
+	private int size;
+	private long rowCount;
+	private int firstDay = Integer.MAX_VALUE;
+	private int lastDay = Integer.MIN_VALUE;
+	// open-addressing hash of WBAN to position + 1, 0 for an empty slot
+	private int[] index = new int[512];
+
+	/**
+	 * @param partition name of the partition this partial covers, e.g. 201505precip.txt#0-50000
+	 */
+	public PartialAggregate(String partition) {
+		partitions.add(partition);
+	}
+
+	private PartialAggregate() {
+	}
+
+	/**
+	 * Sum the rain from 7AM to midnight for each station in a WBAN range
+	 * @param partition name of the partition
+	 * @param records precip records positioned before the first record; not closed
+	 * @param fromWban first WBAN of the range
+	 * @param toWban WBAN after the last of the range
+	 * @return the partial for the range
+	 * @throws IOException if the records cannot be read
+	 */
+	static public PartialAggregate compute(String partition, PrecipRecords records, int fromWban, int toWban)
+			throws IOException
+	{
+		PartialAggregate partial = new PartialAggregate(partition);
+		int firstHour = Data.LAST_NIGHT_HOUR + 1;
+		while (records.next()) {
+			int wban = records.wban();
+			if (wban < fromWban || wban >= toWban)
+				continue;
+			int hour = records.hour();
+			boolean daytime = hour >= firstHour && hour <= 24;
+			partial.add(wban, daytime ? Math.round(records.precip() * PrecipCache.PRECIP_SCALE) : 0, daytime ? 1 : 0);
+			partial.rowCount++;
+			int day = records.day();
+			if (day >= 0) {
+				partial.firstDay = Math.min(partial.firstDay, day);
+				partial.lastDay = Math.max(partial.lastDay, day);
+			}
+		}
+		return partial;
+	}
+
+	/**
+	 * Add another partial's sums and counts to this one
+	 * @param other partial covering other partitions
+	 * @return this partial
+	 * @throws IllegalArgumentException if the partials share a partition
+	 */
+	public PartialAggregate merge(PartialAggregate other) {
+		for (String partition : other.partitions) {
+			if (partitions.contains(partition))
+				throw new IllegalArgumentException("partition " + partition + " is already merged");
+		}
+		partitions.addAll(other.partitions);
+		for (int i = 0; i < other.size; i++) {
+			add(other.wbans[i], other.sums[i], other.counts[i]);
+		}
+		rowCount += other.rowCount;
+		firstDay = Math.min(firstDay, other.firstDay);
+		lastDay = Math.max(lastDay, other.lastDay);
+		return this;
+	}
+
+	/** @return names of the partitions covered, in order */
+	public SortedSet<String> getPartitions() {
+		return Collections.unmodifiableSortedSet(partitions);
+	}
+
+	/** @return number of stations */
+	public int size() { return size; }
+
+	/** @return rows read, daytime or not */
+	public long getRowCount() { return rowCount; }
+
+	/** @return first day as yyyymmdd, or 0 if there were no rows */
+	public int getFirstDay() { return firstDay <= lastDay ? firstDay : 0; }
+
+	/** @return last day as yyyymmdd, or 0 if there were no rows */
+	public int getLastDay() { return firstDay <= lastDay ? lastDay : 0; }
+
+	/**
+	 * @param wban numeric WBAN id
+	 * @return number of daytime rows of the station, 0 if it has none
+	 */
+	public long getCount(int wban) {
+		int i = indexOf(wban);
+		return i >= 0 ? counts[i] : 0;
+	}
+
+	/**
+	 * @return daytime rain total per WBAN, in WBAN order
+	 */
+	public StationTotals toStationTotals() {
+		int[] order = sortedOrder();
+		StationTotals stationRain = new StationTotals(Math.max(size, 1));
+		for (int i : order) {
+			stationRain.add(wbans[i], sums[i] / (double) PrecipCache.PRECIP_SCALE);
+		}
+		stationRain.addRowCount(rowCount);
+		return stationRain;
+	}
+
+	/**
+	 * @param out stream to write to; not closed
+	 * @throws IOException if the partial cannot be written
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(partitions.size());
+		for (String partition : partitions) {
+			data.writeUTF(partition);
+		}
+		data.writeInt(getFirstDay());
+		data.writeInt(getLastDay());
+		data.writeLong(rowCount);
+		data.writeInt(size);
+		for (int i : sortedOrder()) {
+			data.writeInt(wbans[i]);
+			data.writeLong(sums[i]);
+			data.writeLong(counts[i]);
+		}
+		data.flush();
+	}
+
+	/**
+	 * @param in stream positioned at a saved partial; not closed
+	 * @return the partial
+	 * @throws IOException if the stream is not a complete saved partial
+	 */
+	static public PartialAggregate read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC || data.readInt() != VERSION)
+			throw new IOException("not a partial aggregate");
+		PartialAggregate partial = new PartialAggregate();
+		int partitions = data.readInt();
+		for (int i = 0; i < partitions; i++) {
+			partial.partitions.add(data.readUTF());
+		}
+		int firstDay = data.readInt();
+		int lastDay = data.readInt();
+		if (firstDay != 0) {
+			partial.firstDay = firstDay;
+			partial.lastDay = lastDay;
+		}
+		partial.rowCount = data.readLong();
+		int stations = data.readInt();
+		for (int i = 0; i < stations; i++) {
+			int wban = data.readInt();
+			long sum = data.readLong();
+			partial.add(wban, sum, data.readLong());
+		}
+		return partial;
+	}
+
+	private void add(int wban, long sum, long count) {
+		int i = indexOf(wban);
+		if (i < 0) {
+			if (size == wbans.length) {
+				wbans = Arrays.copyOf(wbans, size * 2);
+				sums = Arrays.copyOf(sums, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			i = size++;
+			wbans[i] = wban;
+			if (size * 2 > index.length)
+				rebuildIndex(index.length * 2);
+			else
+				indexPut(wban, i);
+		}
+		sums[i] += sum;
+		counts[i] += count;
+	}
+
+	private int indexOf(int wban) {
+		int mask = index.length - 1;
+		for (int slot = (wban * 0x9E3779B9) >>> 1 & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			if (wbans[index[slot] - 1] == wban)
+				return index[slot] - 1;
+		}
+		return -1;
+	}
+
+	private void indexPut(int wban, int i) {
+		int mask = index.length - 1;
+		int slot = (wban * 0x9E3779B9) >>> 1 & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = i + 1;
+	}
+
+	private void rebuildIndex(int length) {
+		index = new int[length];
+		for (int i = 0; i < size; i++) {
+			indexPut(wbans[i], i);
+		}
+	}
+
+	/*
+	 * Positions of the stations in WBAN order
+	 */
+	private int[] sortedOrder() {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) wbans[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+}
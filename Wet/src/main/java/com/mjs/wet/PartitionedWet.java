@@ -0,0 +1,277 @@
+package com.mjs.wet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes people-inches across several processes, or machines, that each sum one
+ * partition of the precip data into a {@link PartialAggregate}.
+ * <p>
+ * A worker reads one precip file, or one part of it, and saves its partial. The
+ * coordinator merges any number of partials, in any order, and joins the station totals
+ * to MSAs once. Partials can be produced anywhere and copied to the coordinator; the
+ * run mode starts the workers as local JVMs on the same classpath and merges their output.
+ * <p>
+ * Usage:
+ * <pre>
+ * PartitionedWet worker &lt;precip file&gt; &lt;partial file&gt; [fromWban toWban | -bytes fromByte toByte]
+ * PartitionedWet merge &lt;out file&gt; &lt;partial file&gt;...
+ * PartitionedWet run &lt;workers&gt; &lt;out file&gt; &lt;precip file&gt;...
+ * </pre>
+ * Each worker reads only its own part of the input. The run mode splits a single precip
+ * file into WBAN ranges when it has a fresh {@link PrecipCache}, whose rows are sorted by
+ * WBAN, or else, if it is plain text, into byte ranges that begin where the WBAN changes.
+ * A compressed file cannot be split and is read by one worker; several files are one
+ * partition each. The out file is exported in the format of its extension, see
+ * {@link ResultExporter.Format#forFileName(String)}.
+ */
+public class PartitionedWet {
+	/** WBANs are split into ranges over [0, WBAN_LIMIT) */
+	static final int WBAN_LIMIT = StationTable.MAX_WBAN + 1;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length >= 6 && args[0].equals("worker") && args[3].equals("-bytes")) {
+			PartialAggregate partial = computeChunkPartial(Paths.get(args[1]),
+					Long.parseLong(args[4]), Long.parseLong(args[5]));
+			save(partial, Paths.get(args[2]));
+		} else if (args.length >= 3 && args[0].equals("worker")) {
+			int fromWban = args.length >= 5 ? Integer.parseInt(args[3]) : 0;
+			int toWban = args.length >= 5 ? Integer.parseInt(args[4]) : Integer.MAX_VALUE;
+			PartialAggregate partial = computePartial(Paths.get(args[1]), fromWban, toWban);
+			save(partial, Paths.get(args[2]));
+		} else if (args.length >= 3 && args[0].equals("merge")) {
+			List<Path> partialFiles = new ArrayList<Path>();
+			for (int i = 2; i < args.length; i++) {
+				partialFiles.add(Paths.get(args[i]));
+			}
+			export(merge(partialFiles), Paths.get(args[1]));
+		} else if (args.length >= 4 && args[0].equals("run")) {
+			List<Path> precipFiles = new ArrayList<Path>();
+			for (int i = 3; i < args.length; i++) {
+				precipFiles.add(Paths.get(args[i]));
+			}
+			export(runWorkers(Integer.parseInt(args[1]), precipFiles), Paths.get(args[2]));
+		} else {
+			System.err.println("usage: PartitionedWet worker <precip file> <partial file> [fromWban toWban | -bytes fromByte toByte]\n"
+					+ "       PartitionedWet merge <out file> <partial file>...\n"
+					+ "       PartitionedWet run <workers> <out file> <precip file>...");
+		}
+	}
+
+	/**
+	 * Sum one WBAN range of a precip file. With a fresh cache only the rows of the range are
+	 * read; without one the text is parsed whole and the rows outside the range are skipped.
+	 * @param precipFile precip file, plain or compressed
+	 * @param fromWban first WBAN of the partition
+	 * @param toWban WBAN after the last of the partition
+	 * @return the partial, named by the file and range
+	 * @throws IOException if the file cannot be read
+	 */
+	static public PartialAggregate computePartial(Path precipFile, int fromWban, int toWban) throws IOException {
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		String partition = precipFile.getFileName() + "#" + fromWban + "-" + toWban;
+		Path cache = PrecipCache.cachePath(precipFile);
+		PartialAggregate partial;
+		try (PrecipRecords records = PrecipCache.isFresh(precipFile, cache) ? PrecipCache.open(cache, fromWban, toWban)
+				: new PrecipParser(PrecipArchive.open(precipFile))) {
+			partial = PartialAggregate.compute(partition, records, fromWban, toWban);
+		}
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, partial.getRowCount());
+		return partial;
+	}
+
+	/**
+	 * Sum one byte range of a plain precip file, as split by {@link #splitFile(Path, int)};
+	 * only the bytes of the range are read
+	 * @param precipFile plain precip file
+	 * @param fromByte offset of the first row of the range
+	 * @param toByte offset after the last row of the range
+	 * @return the partial, named by the file and byte range
+	 * @throws IOException if the file cannot be read
+	 */
+	static public PartialAggregate computeChunkPartial(Path precipFile, long fromByte, long toByte) throws IOException {
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		String partition = precipFile.getFileName() + "@" + fromByte + "-" + toByte;
+		PartialAggregate partial;
+		try (PrecipRecords records = ParallelPrecipReader.openChunk(precipFile, fromByte, toByte)) {
+			partial = PartialAggregate.compute(partition, records, 0, Integer.MAX_VALUE);
+		}
+		metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, partial.getRowCount());
+		return partial;
+	}
+
+	/**
+	 * Split a plain precip file into byte ranges for workers
+	 * @param precipFile plain precip file
+	 * @param parts number of ranges wanted
+	 * @return range boundaries as byte offsets; each range begins at the first row of a station
+	 * @throws IOException if the file cannot be read
+	 */
+	static long[] splitFile(Path precipFile, int parts) throws IOException {
+		return ParallelPrecipReader.splitFile(precipFile, parts);
+	}
+
+	/**
+	 * Split WBANs into ranges of equal width
+	 * @param parts number of ranges
+	 * @return range boundaries, parts + 1 of them, from 0; the last range runs past
+	 * {@link #WBAN_LIMIT} to take any malformed WBANs
+	 */
+	static int[] splitWbans(int parts) {
+		int[] bounds = new int[parts + 1];
+		for (int i = 0; i < parts; i++) {
+			bounds[i] = (int) ((long) WBAN_LIMIT * i / parts);
+		}
+		bounds[parts] = Integer.MAX_VALUE;
+		return bounds;
+	}
+
+	/**
+	 * Read and merge saved partials
+	 * @param partialFiles saved partials, in any order
+	 * @return the merged partial
+	 * @throws IOException if a partial cannot be read
+	 * @throws IllegalArgumentException if two partials cover the same partition
+	 */
+	static public PartialAggregate merge(List<Path> partialFiles) throws IOException {
+		PartialAggregate merged = null;
+		for (Path partialFile : partialFiles) {
+			PartialAggregate partial;
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(partialFile))) {
+				partial = PartialAggregate.read(in);
+			}
+			merged = merged == null ? partial : merged.merge(partial);
+		}
+		if (merged == null)
+			throw new IllegalArgumentException("no partials to merge");
+		return merged;
+	}
+
+	/**
+	 * Run one worker process per partition, at most some at a time, and merge their partials
+	 * @param workers most worker processes at once
+	 * @param precipFiles precip files; one file is split into WBAN or byte ranges, several are one partition each
+	 * @return the merged partial
+	 * @throws IOException if a worker fails or its partial cannot be read
+	 * @throws InterruptedException if interrupted while waiting for a worker
+	 */
+	static public PartialAggregate runWorkers(int workers, List<Path> precipFiles)
+			throws IOException, InterruptedException
+	{
+		List<List<String>> commands = new ArrayList<List<String>>();
+		List<Path> partialFiles = new ArrayList<Path>();
+		Deque<Process> running = new ArrayDeque<Process>();
+		Path dir = Files.createTempDirectory("partials");
+		try {
+			for (Path precipFile : precipFiles) {
+				if (precipFiles.size() == 1 && PrecipCache.isFresh(precipFile, PrecipCache.cachePath(precipFile))) {
+					int[] bounds = splitWbans(workers);
+					for (int i = 0; i + 1 < bounds.length; i++) {
+						commands.add(workerCommand(precipFile, nextPartialFile(dir, partialFiles),
+								Integer.toString(bounds[i]), Integer.toString(bounds[i + 1])));
+					}
+				} else if (precipFiles.size() == 1 && !PrecipArchive.isArchive(precipFile.getFileName().toString())) {
+					long[] bounds = splitFile(precipFile, workers);
+					for (int i = 0; i + 1 < bounds.length; i++) {
+						commands.add(workerCommand(precipFile, nextPartialFile(dir, partialFiles),
+								"-bytes", Long.toString(bounds[i]), Long.toString(bounds[i + 1])));
+					}
+				} else {
+					commands.add(workerCommand(precipFile, nextPartialFile(dir, partialFiles)));
+				}
+			}
+			for (List<String> command : commands) {
+				if (running.size() >= workers)
+					waitFor(running.removeFirst());
+				running.addLast(new ProcessBuilder(command).inheritIO().start());
+			}
+			while (!running.isEmpty()) {
+				waitFor(running.removeFirst());
+			}
+			return merge(partialFiles);
+		} finally {
+			for (Process worker : running) {
+				worker.destroy();
+			}
+			for (Path partialFile : partialFiles) {
+				Files.deleteIfExists(partialFile);
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/**
+	 * Join merged station totals to MSAs and multiply by the MSA populations, extrapolated
+	 * to the middle of the month in the middle of the partial's days
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param partial merged partial
+	 * @return Map of MSA to people-inches, sorted descending by wetness
+	 */
+	static public Map<String, Double> getPersonWetness(ReferenceData referenceData, PartialAggregate partial) {
+		LocalDate extrapolationDate = LocalDate.of(2015, 5, WetBatch.EXTRAPOLATION_DAY);
+		try {
+			if (partial.getFirstDay() != 0) {
+				long middle = (toDate(partial.getFirstDay()).toEpochDay() + toDate(partial.getLastDay()).toEpochDay()) / 2;
+				extrapolationDate = YearMonth.from(LocalDate.ofEpochDay(middle)).atDay(WetBatch.EXTRAPOLATION_DAY);
+			}
+		} catch (DateTimeException e) {
+			// a malformed day; keep the default date
+		}
+		return Wet.getPersonWetness(referenceData, partial.toStationTotals(), extrapolationDate);
+	}
+
+	private static LocalDate toDate(int day) {
+		return LocalDate.of(day / 10000, day / 100 % 100, day % 100);
+	}
+
+	private static Path nextPartialFile(Path dir, List<Path> partialFiles) {
+		Path partialFile = dir.resolve("part" + partialFiles.size() + ".partial");
+		partialFiles.add(partialFile);
+		return partialFile;
+	}
+
+	private static List<String> workerCommand(Path precipFile, Path partialFile, String... range) {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+				PartitionedWet.class.getName(), "worker", precipFile.toString(), partialFile.toString()));
+		command.addAll(Arrays.asList(range));
+		return command;
+	}
+
+	private static void waitFor(Process worker) throws IOException, InterruptedException {
+		int status = worker.waitFor();
+		if (status != 0)
+			throw new IOException("worker exited with status " + status);
+	}
+
+	private static void save(PartialAggregate partial, Path partialFile) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partialFile))) {
+			partial.write(out);
+		}
+	}
+
+	private static void export(PartialAggregate partial, Path outFile) throws IOException {
+		Wet.registerMetrics();
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		ResultExporter.export(getPersonWetness(referenceData, partial), outFile, "MSA,PeopleInches");
+	}
+}
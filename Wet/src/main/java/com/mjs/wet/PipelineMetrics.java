@@ -0,0 +1,276 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Wall time and row counts per pipeline stage, and counters of rows and stations that did
+ * not make it into the result, for one run or, summed, for a batch of runs.
+ * <p>
+ * The loaders and the precip summing count into locals and add them here once per file
+ * or chunk, so the hot loops pay nothing beyond a local increment. The counters are
+ * atomic, since months of a batch run concurrently. The metrics are published through
+ * JMX with {@link #register()} and written as JSON with {@link #writeSummary(Path)}.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+	/** JMX name the default metrics are registered under */
+	static public final String OBJECT_NAME = "com.mjs.wet:type=PipelineMetrics";
+
+	/**
+	 * Pipeline stages, in the order they run
+	 */
+	public enum Stage {
+		WBAN_LOAD("wbanLoad"),
+		CSA_LOAD("csaLoad"),
+		PRECIP_MERGE("precipMerge"),
+		POPULATION_LOAD("populationLoad"),
+		CUBE_QUERY("cubeQuery"),
+		MULTIPLY_SORT("multiplySort"),
+		EXPORT("export");
+
+		private final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+
+		/** @return name of the stage in the summary */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final PipelineMetrics DEFAULT = new PipelineMetrics();
+
+	private final AtomicLongArray stageNanos = new AtomicLongArray(STAGES.length);
+	private final AtomicLongArray stageRows = new AtomicLongArray(STAGES.length);
+	private final AtomicLong rowsRead = new AtomicLong();
+	private final AtomicLong rejectedRows = new AtomicLong();
+	private final AtomicLong traceValues = new AtomicLong();
+	private final AtomicLong wbansWithoutCounty = new AtomicLong();
+	private final AtomicLong countiesWithoutMsa = new AtomicLong();
+	private final AtomicLong precipWbansWithoutCounty = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile String lastError;
+
+	/** @return the metrics the pipeline records into */
+	static public PipelineMetrics getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Start timing a stage
+	 * @return start time, to pass to {@link #stop(Stage, long, long)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Stop timing a stage, adding its wall time and rows
+	 * @param stage stage that ran
+	 * @param start value of {@link #start()} when the stage began
+	 * @param rows rows or records the stage processed
+	 */
+	public void stop(Stage stage, long start, long rows) {
+		stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - start);
+		stageRows.addAndGet(stage.ordinal(), rows);
+	}
+
+	/**
+	 * Add the counts of one precip file or chunk
+	 * @param rows rows read
+	 * @param rejected rows rejected as unparseable
+	 * @param traces rows with a trace value
+	 */
+	public void addPrecipRows(long rows, long rejected, long traces) {
+		rowsRead.addAndGet(rows);
+		rejectedRows.addAndGet(rejected);
+		traceValues.addAndGet(traces);
+	}
+
+	/**
+	 * Add the stations that the reference tables cannot place in an MSA, once per load of the tables
+	 * @param wbans listed stations without a usable county
+	 * @param counties counties that are in no MSA
+	 */
+	public void addUnmatched(long wbans, long counties) {
+		wbansWithoutCounty.addAndGet(wbans);
+		countiesWithoutMsa.addAndGet(counties);
+	}
+
+	/**
+	 * Record the stations with precip data that a join of station rain to MSAs could not
+	 * place in a county. The latest join's count replaces the previous one, so repeated joins,
+	 * e.g. queries of the same month, do not inflate it.
+	 * @param wbans stations whose WBAN has no county, e.g. because it is not in the WBAN list
+	 */
+	public void setPrecipWbansWithoutCounty(long wbans) {
+		precipWbansWithoutCounty.set(wbans);
+	}
+
+	/**
+	 * Record an error that the pipeline recovers from, and report it on one line of stderr
+	 * @param context what was being done, e.g. "loading WBAN list"
+	 * @param e the exception
+	 */
+	public void error(String context, Exception e) {
+		errors.incrementAndGet();
+		lastError = context + ": " + e;
+		System.err.println(lastError);
+	}
+
+	/**
+	 * Publish these metrics on the platform MBean server, replacing any metrics published before
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+		server.registerMBean(this, name);
+	}
+
+	/**
+	 * Write the summary as a JSON file
+	 * @param file file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeSummary(Path file) throws IOException {
+		Files.write(file, getSummary().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public String[] getStageNames() {
+		String[] names = new String[STAGES.length];
+		for (Stage stage : STAGES) {
+			names[stage.ordinal()] = stage.getLabel();
+		}
+		return names;
+	}
+
+	@Override
+	public double[] getStageMillis() {
+		double[] millis = new double[STAGES.length];
+		for (int i = 0; i < millis.length; i++) {
+			millis[i] = stageNanos.get(i) / 1e6;
+		}
+		return millis;
+	}
+
+	@Override
+	public long[] getStageRows() {
+		long[] rows = new long[STAGES.length];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = stageRows.get(i);
+		}
+		return rows;
+	}
+
+	@Override
+	public double[] getStageRowsPerSecond() {
+		double[] rate = new double[STAGES.length];
+		for (int i = 0; i < rate.length; i++) {
+			long nanos = stageNanos.get(i);
+			rate[i] = nanos > 0 ? stageRows.get(i) * 1e9 / nanos : 0.0d;
+		}
+		return rate;
+	}
+
+	@Override
+	public long getRowsRead() { return rowsRead.get(); }
+
+	@Override
+	public long getRejectedRows() { return rejectedRows.get(); }
+
+	@Override
+	public long getTraceValues() { return traceValues.get(); }
+
+	@Override
+	public long getWbansWithoutCounty() { return wbansWithoutCounty.get(); }
+
+	@Override
+	public long getCountiesWithoutMsa() { return countiesWithoutMsa.get(); }
+
+	@Override
+	public long getPrecipWbansWithoutCounty() { return precipWbansWithoutCounty.get(); }
+
+	@Override
+	public long getErrorCount() { return errors.get(); }
+
+	@Override
+	public String getLastError() { return lastError; }
+
+	@Override
+	public String getSummary() {
+		String[] names = getStageNames();
+		double[] millis = getStageMillis();
+		long[] rows = getStageRows();
+		double[] rate = getStageRowsPerSecond();
+		StringBuilder json = new StringBuilder("{\n  \"stages\": {\n");
+		for (int i = 0; i < names.length; i++) {
+			json.append("    \"").append(names[i]).append("\": {\"millis\": ")
+				.append(String.format(Locale.ROOT, "%.3f", millis[i]))
+				.append(", \"rows\": ").append(rows[i])
+				.append(", \"rowsPerSecond\": ").append(Math.round(rate[i])).append('}')
+				.append(i < names.length - 1 ? ",\n" : "\n");
+		}
+		json.append("  },\n  \"counters\": {\n")
+			.append("    \"rowsRead\": ").append(getRowsRead()).append(",\n")
+			.append("    \"rejectedRows\": ").append(getRejectedRows()).append(",\n")
+			.append("    \"traceValues\": ").append(getTraceValues()).append(",\n")
+			.append("    \"wbansWithoutCounty\": ").append(getWbansWithoutCounty()).append(",\n")
+			.append("    \"countiesWithoutMsa\": ").append(getCountiesWithoutMsa()).append(",\n")
+			.append("    \"precipWbansWithoutCounty\": ").append(getPrecipWbansWithoutCounty()).append(",\n")
+			.append("    \"errors\": ").append(getErrorCount()).append('\n')
+			.append("  },\n  \"lastError\": ");
+		appendString(json, lastError);
+		return json.append("\n}\n").toString();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < STAGES.length; i++) {
+			stageNanos.set(i, 0);
+			stageRows.set(i, 0);
+		}
+		rowsRead.set(0);
+		rejectedRows.set(0);
+		traceValues.set(0);
+		wbansWithoutCounty.set(0);
+		countiesWithoutMsa.set(0);
+		precipWbansWithoutCounty.set(0);
+		errors.set(0);
+		lastError = null;
+	}
+
+	private static void appendString(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < ' ')
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,48 @@
+package com.mjs.wet;
+
+/**
+ * Management interface of {@link PipelineMetrics}, published as com.mjs.wet:type=PipelineMetrics
+ */
+public interface PipelineMetricsMBean {
+	/** @return stage names, in pipeline order; the stage arrays below are in the same order */
+	String[] getStageNames();
+
+	/** @return wall time of each stage in milliseconds, summed over runs */
+	double[] getStageMillis();
+
+	/** @return rows processed by each stage, summed over runs */
+	long[] getStageRows();
+
+	/** @return rows per second of each stage, 0 where the stage has not run */
+	double[] getStageRowsPerSecond();
+
+	/** @return precip rows read */
+	long getRowsRead();
+
+	/** @return precip rows rejected as unparseable */
+	long getRejectedRows();
+
+	/** @return precip rows with a trace (T) value */
+	long getTraceValues();
+
+	/** @return stations in the WBAN list without a usable county */
+	long getWbansWithoutCounty();
+
+	/** @return counties of WBAN list stations that are in no MSA */
+	long getCountiesWithoutMsa();
+
+	/** @return stations with precip data whose WBAN has no county, in the latest join to MSAs */
+	long getPrecipWbansWithoutCounty();
+
+	/** @return errors recorded, e.g. input files that could not be read */
+	long getErrorCount();
+
+	/** @return message of the last error, or null */
+	String getLastError();
+
+	/** @return all of the above as a JSON object */
+	String getSummary();
+
+	/** Zero all timings and counters */
+	void reset();
+}
@@ -0,0 +1,48 @@
+package com.mjs.wet;
+
+/**
+ * How MSA populations, estimated as of July 1 of 2010, 2011 and 2012, are extrapolated
+ * to another date. Each model is a polynomial a + b t + c t^2 in t, the years since
+ * July 1, 2011, so the estimates are at t = -1, 0 and 1.
+ */
+public enum PopulationModel {
+	/**
+	 * The 2012 estimate, whatever the date
+	 */
+	LATEST {
+		@Override
+		void fit(double p2010, double p2011, double p2012, double[] a, double[] b, double[] c, int i) {
+			a[i] = p2012;
+			b[i] = 0.0d;
+			c[i] = 0.0d;
+		}
+	},
+	/**
+	 * Least-squares line through the three estimates
+	 */
+	LINEAR {
+		@Override
+		void fit(double p2010, double p2011, double p2012, double[] a, double[] b, double[] c, int i) {
+			a[i] = (p2010 + p2011 + p2012) / 3.0d;
+			b[i] = (p2012 - p2010) / 2.0d;
+			c[i] = 0.0d;
+		}
+	},
+	/**
+	 * Parabola through the three estimates. Follows recent growth more closely than
+	 * LINEAR, and strays further from it the further the date is from 2012.
+	 */
+	QUADRATIC {
+		@Override
+		void fit(double p2010, double p2011, double p2012, double[] a, double[] b, double[] c, int i) {
+			a[i] = p2011;
+			b[i] = (p2012 - p2010) / 2.0d;
+			c[i] = (p2010 - 2.0d * p2011 + p2012) / 2.0d;
+		}
+	};
+
+	/*
+	 * Set the coefficients of element i from the three estimates
+	 */
+	abstract void fit(double p2010, double p2011, double p2012, double[] a, double[] b, double[] c, int i);
+}
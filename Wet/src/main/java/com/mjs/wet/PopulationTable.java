@@ -0,0 +1,207 @@
+package com.mjs.wet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MSA population estimates, parsed once into per-MSA polynomial coefficients for each
+ * {@link PopulationModel}, so extrapolating to a date is one sweep over primitive arrays.
+ * Results are cached per model and date, so a batch of months extrapolating to the
+ * middle of each month parses the table once.
+ */
+public class PopulationTable {
+	/* the estimates are as of July 1; t counts years from the middle one */
+	private static final long ORIGIN = LocalDate.of(2011, Month.JULY, 1).toEpochDay();
+	private static final double DAYS_PER_YEAR = 365.25d;
+
+	private final SymbolTable msas;
+	private final int size;
+	// the estimates by MSA id, NaN where unknown
+	private final double[] p2010;
+	private final double[] p2011;
+	private final double[] p2012;
+	private final Map<PopulationModel, double[][]> coefficients = new EnumMap<PopulationModel, double[][]>(
+			PopulationModel.class);
+	private final Map<PopulationModel, ConcurrentMap<LocalDate, int[]>> populations = new EnumMap<PopulationModel, ConcurrentMap<LocalDate, int[]>>(
+			PopulationModel.class);
+
+	/**
+	 * Parse the population table. Rows for areas that are not in the MSA dictionary, such as
+	 * metropolitan divisions, are skipped. The reader is not closed.
+	 * @param popReader BufferedReader to population data
+	 * @param msas dictionary of MSA ids
+	 * @throws IOException if the table cannot be read or has no 2010 to 2012 columns
+	 */
+	public PopulationTable(BufferedReader popReader, SymbolTable msas) throws IOException {
+		this(popReader, msas, false);
+	}
+
+	/**
+	 * Parse the population table, naming every MSA with estimates in a dictionary of its
+	 * own, see {@link #getMsas()}. The reader is not closed.
+	 * @param popReader BufferedReader to population data
+	 * @throws IOException if the table cannot be read or has no 2010 to 2012 columns
+	 */
+	public PopulationTable(BufferedReader popReader) throws IOException {
+		this(popReader, new SymbolTable(), true);
+	}
+
+	private PopulationTable(BufferedReader popReader, SymbolTable msas, boolean intern) throws IOException {
+		/*
+		 * Population file header and sample data: (numbers as of July 1 of given year)
+		 * CBSA Code,Metro Division Code,Metropolitan statistical areas,Census,Estimates base,2010,2011,2012
+		 * 10180,,"Abilene, TX","165,252","165,252","165,578","166,481","166,963"
+		 */
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		this.msas = msas;
+		double[] p2010 = grow(new double[0], Math.max(msas.size(), 16));
+		double[] p2011 = grow(new double[0], p2010.length);
+		double[] p2012 = grow(new double[0], p2010.length);
+		DelimitedTokenizer fields = new DelimitedTokenizer(',');
+		FieldNormalizer normalizer = new FieldNormalizer();
+		if (fields.readRecord(popReader) < 0)
+			throw new IOException("unable to read header from population file");
+		int msaIndex = fields.indexOf("Metropolitan statistical areas");
+		int index2010 = fields.indexOf("2010");
+		int index2011 = fields.indexOf("2011");
+		int index2012 = fields.indexOf("2012");
+		if (msaIndex < 0 || index2010 < 0 || index2011 < 0 || index2012 < 0)
+			throw new IOException("population file has no MSA, 2010, 2011 and 2012 columns");
+		int maxIndex = Math.max(msaIndex, Math.max(index2010, Math.max(index2011, index2012)));
+		long rows = 0;
+		int count;
+		while ((count = fields.readRecord(popReader)) >= 0) {
+			rows++;
+			if (count <= maxIndex)
+				continue;
+			String msa = normalizer.field(fields.getField(msaIndex));
+			int pop2010 = fields.getGroupedInt(index2010, -1);
+			int pop2011 = fields.getGroupedInt(index2011, -1);
+			int pop2012 = fields.getGroupedInt(index2012, -1);
+			if (pop2010 < 0 || pop2011 < 0 || pop2012 < 0)
+				continue;
+			int msaId = intern ? msas.intern(msa) : msas.getId(msa);
+			if (msaId == SymbolTable.NONE)
+				continue;
+			if (msaId >= p2010.length) {
+				p2010 = grow(p2010, p2010.length * 2);
+				p2011 = grow(p2011, p2010.length);
+				p2012 = grow(p2012, p2010.length);
+			}
+			p2010[msaId] = pop2010;
+			p2011[msaId] = pop2011;
+			p2012[msaId] = pop2012;
+		}
+		size = msas.size();
+		this.p2010 = p2010;
+		this.p2011 = p2011;
+		this.p2012 = p2012;
+		fit();
+		metrics.stop(PipelineMetrics.Stage.POPULATION_LOAD, start, rows);
+	}
+
+	private PopulationTable(SymbolTable msas, double[] p2010, double[] p2011, double[] p2012) {
+		this.msas = msas;
+		size = msas.size();
+		this.p2010 = p2010;
+		this.p2011 = p2011;
+		this.p2012 = p2012;
+		fit();
+	}
+
+	/*
+	 * Fit every model to the estimates
+	 */
+	private void fit() {
+		for (PopulationModel model : PopulationModel.values()) {
+			double[] a = new double[size];
+			double[] b = new double[size];
+			double[] c = new double[size];
+			for (int i = 0; i < size; i++) {
+				model.fit(p2010[i], p2011[i], p2012[i], a, b, c, i);
+			}
+			coefficients.put(model, new double[][] { a, b, c });
+			populations.put(model, new ConcurrentHashMap<LocalDate, int[]>());
+		}
+	}
+
+	/**
+	 * Index the estimates by another MSA dictionary, e.g. the CSA table's, without parsing the
+	 * table again. MSAs that the dictionary does not name are dropped.
+	 * @param target dictionary of MSA ids
+	 * @return population table indexed by the ids of target
+	 */
+	public PopulationTable reindex(SymbolTable target) {
+		double[] t2010 = grow(new double[0], target.size());
+		double[] t2011 = grow(new double[0], target.size());
+		double[] t2012 = grow(new double[0], target.size());
+		for (int id = 0; id < size; id++) {
+			int targetId = target.getId(msas.getName(id));
+			if (targetId == SymbolTable.NONE)
+				continue;
+			t2010[targetId] = p2010[id];
+			t2011[targetId] = p2011[id];
+			t2012[targetId] = p2012[id];
+		}
+		return new PopulationTable(target, t2010, t2011, t2012);
+	}
+
+	/** @return dictionary of the MSA ids that populations are indexed by */
+	public SymbolTable getMsas() {
+		return msas;
+	}
+
+	/**
+	 * Get MSA populations extrapolated to a date. Results are cached per model and date and
+	 * shared, so the returned array must not be modified.
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @param model how to extrapolate
+	 * @return population indexed by MSA id, -1 where unknown
+	 */
+	public int[] getPopulations(LocalDate extrapolationDate, PopulationModel model) {
+		ConcurrentMap<LocalDate, int[]> cache = populations.get(model);
+		int[] msaPop = cache.get(extrapolationDate);
+		if (msaPop == null) {
+			msaPop = extrapolate(extrapolationDate, model);
+			int[] previous = cache.putIfAbsent(extrapolationDate, msaPop);
+			if (previous != null)
+				msaPop = previous;
+		}
+		return msaPop;
+	}
+
+	/*
+	 * Copy of values with room for capacity, the new slots unknown
+	 */
+	private static double[] grow(double[] values, int capacity) {
+		double[] grown = Arrays.copyOf(values, capacity);
+		Arrays.fill(grown, values.length, capacity, Double.NaN);
+		return grown;
+	}
+
+	/*
+	 * Evaluate a model's polynomial for every MSA
+	 */
+	private int[] extrapolate(LocalDate extrapolationDate, PopulationModel model) {
+		double t = (extrapolationDate.toEpochDay() - ORIGIN) / DAYS_PER_YEAR;
+		double[][] abc = coefficients.get(model);
+		double[] a = abc[0];
+		double[] b = abc[1];
+		double[] c = abc[2];
+		int[] msaPop = new int[size];
+		for (int i = 0; i < size; i++) {
+			double pop = a[i] + t * (b[i] + t * c[i]);
+			// NaN, for unknown populations, compares false
+			msaPop[i] = pop >= 0.0d ? (int) Math.min(Math.round(pop), Integer.MAX_VALUE) : pop < 0.0d ? 0 : -1;
+		}
+		return msaPop;
+	}
+}
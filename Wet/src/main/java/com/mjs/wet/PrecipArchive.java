@@ -0,0 +1,82 @@
+package com.mjs.wet;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Opens precip data inside the compressed files NOAA distributes, e.g. QCLCD201505.zip,
+ * without extracting them to disk.
+ * <p>
+ * A .zip is searched for its *precip.txt entry and a .gz is read as a whole; anything else
+ * is returned as is. The inflating runs on its own thread through a {@link ReadAheadInputStream},
+ * so it overlaps with parsing.
+ */
+public class PrecipArchive {
+	/** name suffix of the precip member of a QCLCD archive */
+	static final String PRECIP_SUFFIX = "precip.txt";
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int BLOCK_SIZE = 1 << 18;
+	private static final int BLOCK_COUNT = 4;
+
+	/**
+	 * @param name file name
+	 * @return true if the name is that of a .zip or .gz file
+	 */
+	static public boolean isArchive(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		return lower.endsWith(".zip") || lower.endsWith(".gz");
+	}
+
+	/**
+	 * Open the precip text of a file, which may be plain, a .zip or a .gz
+	 * @param source precip file
+	 * @return stream of precip text, to be closed by the caller
+	 * @throws IOException if the file cannot be read or a .zip has no precip entry
+	 */
+	static public InputStream open(Path source) throws IOException {
+		return open(Files.newInputStream(source), source.getFileName().toString());
+	}
+
+	/**
+	 * Open the precip text of a stream, which may be plain, a .zip or a .gz
+	 * @param in stream of the file's bytes; closed when the returned stream is closed
+	 * @param name file name, whose extension tells how the stream is compressed
+	 * @return stream of precip text, to be closed by the caller
+	 * @throws IOException if the stream cannot be read or a .zip has no precip entry
+	 */
+	static public InputStream open(InputStream in, String name) throws IOException {
+		String lower = name.toLowerCase(Locale.ROOT);
+		InputStream inflated;
+		try {
+			if (lower.endsWith(".gz"))
+				inflated = new GZIPInputStream(in, BUFFER_SIZE);
+			else if (lower.endsWith(".zip"))
+				inflated = openPrecipEntry(new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE)), name);
+			else
+				return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new ReadAheadInputStream(inflated, BLOCK_SIZE, BLOCK_COUNT, "inflate " + name);
+	}
+
+	/*
+	 * Position a zip stream at its first *precip.txt entry, which it then reads until the entry ends
+	 */
+	private static InputStream openPrecipEntry(ZipInputStream zip, String name) throws IOException {
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			if (!entry.isDirectory() && entry.getName().toLowerCase(Locale.ROOT).endsWith(PRECIP_SUFFIX))
+				return zip;
+		}
+		throw new IOException("no *" + PRECIP_SUFFIX + " entry in " + name);
+	}
+}
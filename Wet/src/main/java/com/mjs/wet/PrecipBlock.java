@@ -0,0 +1,120 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+
+/**
+ * A batch of consecutive precip records held in primitive columns, as published by
+ * {@link PrecipPublisher}. The hour column uses the hour byte of {@link PrecipCache}, so the
+ * trace and missing flags cost no extra space.
+ * <p>
+ * A block is not changed once it is read, so one block is shared by every subscriber of a
+ * publisher and may be kept, e.g. to archive it.
+ */
+public final class PrecipBlock {
+	private final int[] wbans;
+	private final int[] days;
+	private final byte[] hours;
+	private final double[] precips;
+	private final int size;
+
+	private PrecipBlock(int[] wbans, int[] days, byte[] hours, double[] precips, int size) {
+		this.wbans = wbans;
+		this.days = days;
+		this.hours = hours;
+		this.precips = precips;
+		this.size = size;
+	}
+
+	/**
+	 * Read the next records into a block
+	 * @param records precip records
+	 * @param maxRows most rows to read
+	 * @return block of up to maxRows records, fewer only at the end of the records
+	 * @throws IOException if the records cannot be read
+	 */
+	static public PrecipBlock read(PrecipRecords records, int maxRows) throws IOException {
+		int[] wbans = new int[maxRows];
+		int[] days = new int[maxRows];
+		byte[] hours = new byte[maxRows];
+		double[] precips = new double[maxRows];
+		int size = 0;
+		while (size < maxRows && records.next()) {
+			wbans[size] = records.wban();
+			days[size] = records.day();
+			hours[size] = PrecipCache.encodeHour(records.hour(), records.isTrace(), records.isMissing());
+			precips[size] = records.precip();
+			size++;
+		}
+		return new PrecipBlock(wbans, days, hours, precips, size);
+	}
+
+	/** @return number of records */
+	public int size() { return size; }
+
+	/** @return numeric WBAN id of record i */
+	public int wban(int i) { return wbans[check(i)]; }
+
+	/** @return day of record i as yyyymmdd */
+	public int day(int i) { return days[check(i)]; }
+
+	/** @return hour of record i, 1 to 24, or -1 if it was not a number */
+	public int hour(int i) {
+		int hour = hours[check(i)] & PrecipCache.HOUR_MASK;
+		return hour == PrecipCache.NO_HOUR ? -1 : hour;
+	}
+
+	/** @return inches of precipitation of record i, 0 for trace or missing */
+	public double precip(int i) { return precips[check(i)]; }
+
+	/** @return true if record i is a trace amount */
+	public boolean isTrace(int i) { return (hours[check(i)] & PrecipCache.TRACE_FLAG) != 0; }
+
+	/** @return true if the amount of record i is missing */
+	public boolean isMissing(int i) { return (hours[check(i)] & PrecipCache.MISSING_FLAG) != 0; }
+
+	/**
+	 * @return cursor over the records of the block, e.g. for {@link Data#sumPrecip(PrecipRecords, int, int, Aggregation, StationTotals)}
+	 */
+	public PrecipRecords records() {
+		return new PrecipRecords() {
+			private int row = -1;
+
+			@Override
+			public boolean next() {
+				if (row + 1 >= size)
+					return false;
+				row++;
+				return true;
+			}
+
+			@Override
+			public int wban() { return wbans[row]; }
+
+			@Override
+			public int day() { return days[row]; }
+
+			@Override
+			public int hour() { return PrecipBlock.this.hour(row); }
+
+			@Override
+			public double precip() { return precips[row]; }
+
+			@Override
+			public boolean isTrace() { return PrecipBlock.this.isTrace(row); }
+
+			@Override
+			public boolean isMissing() { return PrecipBlock.this.isMissing(row); }
+
+			@Override
+			public void close() {
+				// the block stays valid
+			}
+		};
+	}
+
+	private int check(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("record " + i + " of " + size);
+		return i;
+	}
+}
@@ -0,0 +1,397 @@
+package com.mjs.wet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Binary columnar copy of a precip text file, so re-runs over the same month skip parsing.
+ * <p>
+ * The cache sits next to its source, e.g. 201505precip.txt.wetc, and holds the rows sorted
+ * by WBAN as primitive columns:
+ * <pre>
+ * header:   magic, version, source length, source last-modified, source CRC32, rows, stations
+ * stations: int WBAN[stations], int rowCount[stations]
+ * rows:     int yyyymmdd[rows], int precip[rows] in thousandths of an inch, byte hour[rows]
+ * </pre>
+ * The source may also be a .zip or .gz holding the precip text, see {@link PrecipArchive}.
+ * The hour byte also carries the trace and missing flags. A cache is fresh when the
+ * source length and last-modified time match its header; {@link #verify(Path, Path)}
+ * additionally compares the checksum.
+ */
+public class PrecipCache {
+	static final int MAGIC = 0x57455443;	// "WETC"
+	static final int VERSION = 1;
+	static final String SUFFIX = ".wetc";
+	static final int HEADER_SIZE = 40;
+	/** precip is stored as a fixed-point int in thousandths of an inch */
+	static final int PRECIP_SCALE = 1000;
+
+	static final int HOUR_MASK = 0x1f;
+	static final int NO_HOUR = 0x1f;
+	static final int TRACE_FLAG = 0x40;
+	static final int MISSING_FLAG = 0x80;
+
+	/**
+	 * Convert precip text files to caches
+	 * @param args precip files, plain or compressed
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			Path cache = write(Paths.get(arg));
+			System.out.println(arg + " -> " + cache + " (" + Files.size(cache) + " bytes)");
+		}
+	}
+
+	/**
+	 * @param source precip text file
+	 * @return where the cache for the source lives
+	 */
+	static public Path cachePath(Path source) {
+		return source.resolveSibling(source.getFileName().toString() + SUFFIX);
+	}
+
+	/**
+	 * Convert a precip text file to a cache next to it
+	 * @param source precip text file
+	 * @return the cache file
+	 * @throws IOException if the source cannot be read or the cache written
+	 */
+	static public Path write(Path source) throws IOException {
+		Path cache = cachePath(source);
+		write(source, cache);
+		return cache;
+	}
+
+	/**
+	 * Convert a precip text file to a cache
+	 * @param source precip text file
+	 * @param cache cache file to write
+	 * @throws IOException if the source cannot be read or the cache written
+	 */
+	static public void write(Path source, Path cache) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		Columns columns = new Columns();
+		CRC32 crc = new CRC32();
+		CheckedInputStream checked = new CheckedInputStream(Files.newInputStream(source), crc);
+		try (PrecipParser parser = new PrecipParser(PrecipArchive.open(checked, source.getFileName().toString()))) {
+			while (parser.next()) {
+				columns.add(parser);
+			}
+			// an archive may hold more after its precip entry; the checksum covers the whole file
+			byte[] skip = new byte[8192];
+			while (checked.read(skip) >= 0) {
+			}
+		}
+		columns.sortByWban();
+
+		// write to a temporary file first so a partial cache is never mistaken for a fresh one
+		Path temp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			int stations = columns.countStations();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(attributes.size());
+			out.writeLong(attributes.lastModifiedTime().toMillis());
+			out.writeLong(crc.getValue());
+			out.writeInt(columns.size);
+			out.writeInt(stations);
+			// station runs
+			int[] counts = new int[stations];
+			int station = -1;
+			for (int i = 0; i < columns.size; i++) {
+				if (i == 0 || columns.wbans[i] != columns.wbans[i - 1]) {
+					out.writeInt(columns.wbans[i]);
+					station++;
+				}
+				counts[station]++;
+			}
+			for (int count : counts) {
+				out.writeInt(count);
+			}
+			for (int i = 0; i < columns.size; i++) {
+				out.writeInt(columns.days[i]);
+			}
+			for (int i = 0; i < columns.size; i++) {
+				out.writeInt(columns.precips[i]);
+			}
+			out.write(columns.hours, 0, columns.size);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Check that a cache exists and was made from the current version of its source,
+	 * judged by the source length and last-modified time
+	 * @param source precip text file
+	 * @param cache cache file
+	 * @return true if the cache can be used in place of the source
+	 */
+	static public boolean isFresh(Path source, Path cache) {
+		try {
+			if (!Files.isRegularFile(cache))
+				return false;
+			BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+			ByteBuffer header = readHeader(cache);
+			return header != null
+					&& header.getLong(8) == attributes.size()
+					&& header.getLong(16) == attributes.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Like {@link #isFresh(Path, Path)}, but also re-reads the source to compare its checksum
+	 * @param source precip text file
+	 * @param cache cache file
+	 * @return true if the cache can be used in place of the source
+	 * @throws IOException if the source cannot be read
+	 */
+	static public boolean verify(Path source, Path cache) throws IOException {
+		if (!isFresh(source, cache))
+			return false;
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[1 << 16];
+		try (InputStream in = new CheckedInputStream(Files.newInputStream(source), crc)) {
+			while (in.read(buf) >= 0) {
+				// checksum only
+			}
+		}
+		return readHeader(cache).getLong(24) == crc.getValue();
+	}
+
+	/**
+	 * Open a cache for reading
+	 * @param cache cache file
+	 * @return the cached records, sorted by WBAN
+	 * @throws IOException if the cache cannot be read or is not a cache
+	 */
+	static public PrecipRecords open(Path cache) throws IOException {
+		return open(cache, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Open the rows of a WBAN range of a cache for reading. The rows are sorted by WBAN, so
+	 * the first station of the range is found by binary search and rows outside the range
+	 * are not read.
+	 * @param cache cache file
+	 * @param fromWban first WBAN of the range
+	 * @param toWban WBAN after the last of the range
+	 * @return the cached records of the range, sorted by WBAN
+	 * @throws IOException if the cache cannot be read or is not a cache
+	 */
+	static public PrecipRecords open(Path cache, int fromWban, int toWban) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("not a precip cache: " + cache);
+		return new Reader(buffer, fromWban, toWban);
+	}
+
+	/*
+	 * Returns the header of a cache, or null if the file is not a cache of this version
+	 */
+	private static ByteBuffer readHeader(Path cache) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+			while (header.hasRemaining() && channel.read(header) > 0) {
+				// fill
+			}
+		}
+		if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+			return null;
+		return header;
+	}
+
+	/*
+	 * Encode the hour and the trace and missing flags in one byte
+	 */
+	static byte encodeHour(int hour, boolean trace, boolean missing) {
+		int code = hour >= 0 && hour < NO_HOUR ? hour : NO_HOUR;
+		if (trace) code |= TRACE_FLAG;
+		if (missing) code |= MISSING_FLAG;
+		return (byte) code;
+	}
+
+	/*
+	 * Growable row columns, used while converting
+	 */
+	private static class Columns {
+		int[] wbans = new int[1 << 12];
+		int[] days = new int[wbans.length];
+		int[] precips = new int[wbans.length];
+		byte[] hours = new byte[wbans.length];
+		int size;
+
+		void add(PrecipRecords record) {
+			if (size == wbans.length) {
+				int capacity = size * 2;
+				wbans = Arrays.copyOf(wbans, capacity);
+				days = Arrays.copyOf(days, capacity);
+				precips = Arrays.copyOf(precips, capacity);
+				hours = Arrays.copyOf(hours, capacity);
+			}
+			wbans[size] = record.wban();
+			days[size] = record.day();
+			precips[size] = (int) Math.round(record.precip() * PRECIP_SCALE);
+			hours[size] = encodeHour(record.hour(), record.isTrace(), record.isMissing());
+			size++;
+		}
+
+		/*
+		 * Stable sort of the rows by WBAN, only if they are not sorted already
+		 */
+		void sortByWban() {
+			boolean sorted = true;
+			for (int i = 1; i < size && sorted; i++) {
+				sorted = wbans[i - 1] <= wbans[i];
+			}
+			if (sorted)
+				return;
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = ((long) wbans[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			int[] sortedDays = new int[size];
+			int[] sortedPrecips = new int[size];
+			byte[] sortedHours = new byte[size];
+			for (int i = 0; i < size; i++) {
+				int row = (int) keys[i];
+				wbans[i] = (int) (keys[i] >>> 32);
+				sortedDays[i] = days[row];
+				sortedPrecips[i] = precips[row];
+				sortedHours[i] = hours[row];
+			}
+			days = sortedDays;
+			precips = sortedPrecips;
+			hours = sortedHours;
+		}
+
+		int countStations() {
+			int stations = 0;
+			for (int i = 0; i < size; i++) {
+				if (i == 0 || wbans[i] != wbans[i - 1])
+					stations++;
+			}
+			return stations;
+		}
+	}
+
+	/*
+	 * Cursor over a mapped cache
+	 */
+	private static class Reader implements PrecipRecords {
+		private final IntBuffer stationWbans;
+		private final IntBuffer stationCounts;
+		private final IntBuffer days;
+		private final IntBuffer precips;
+		private final ByteBuffer hours;
+		// station after the last one read
+		private final int endStation;
+
+		private int station;
+		private int remaining;
+		private int row = -1;
+		private int wban;
+
+		Reader(ByteBuffer buffer, int fromWban, int toWban) {
+			int rows = buffer.getInt(32);
+			int stations = buffer.getInt(36);
+			stationWbans = slice(buffer, HEADER_SIZE, stations * 4).asIntBuffer();
+			stationCounts = slice(buffer, HEADER_SIZE + stations * 4L, stations * 4).asIntBuffer();
+			long offset = HEADER_SIZE + stations * 8L;
+			days = slice(buffer, offset, rows * 4).asIntBuffer();
+			precips = slice(buffer, offset + rows * 4L, rows * 4).asIntBuffer();
+			hours = slice(buffer, offset + rows * 8L, rows);
+			int firstStation = firstStationAtOrAbove(fromWban, stations);
+			endStation = Math.max(firstStation, firstStationAtOrAbove(toWban, stations));
+			station = firstStation - 1;
+			for (int i = 0; i < firstStation; i++) {
+				row += stationCounts.get(i);
+			}
+		}
+
+		/*
+		 * Index of the first station whose WBAN is at least wban, or stations if there is none
+		 */
+		private int firstStationAtOrAbove(int wban, int stations) {
+			int low = 0;
+			int high = stations;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (stationWbans.get(mid) < wban)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		private static ByteBuffer slice(ByteBuffer buffer, long offset, int length) {
+			ByteBuffer view = buffer.duplicate();
+			view.position((int) offset);
+			view.limit((int) offset + length);
+			return view.slice();
+		}
+
+		@Override
+		public boolean next() {
+			while (remaining == 0) {
+				if (++station >= endStation)
+					return false;
+				wban = stationWbans.get(station);
+				remaining = stationCounts.get(station);
+			}
+			remaining--;
+			row++;
+			return true;
+		}
+
+		@Override
+		public int wban() { return wban; }
+
+		@Override
+		public int day() { return days.get(row); }
+
+		@Override
+		public int hour() {
+			int hour = hours.get(row) & HOUR_MASK;
+			return hour == NO_HOUR ? -1 : hour;
+		}
+
+		@Override
+		public double precip() { return precips.get(row) / (double) PRECIP_SCALE; }
+
+		@Override
+		public boolean isTrace() { return (hours.get(row) & TRACE_FLAG) != 0; }
+
+		@Override
+		public boolean isMissing() { return (hours.get(row) & MISSING_FLAG) != 0; }
+
+		@Override
+		public void close() {
+			// the mapping is released when the buffer is collected
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Precipitation per station, day and hour, held as two-dimensional prefix sums over days and
+ * hours, so the rain of any date range and window of hours is four array reads per station.
+ * <p>
+ * For station s, cell (d, h) of its plane holds the rain of all days before d and hours
+ * before h, counting days from the first day of the data and hours from 1. The planes of all
+ * stations are one double array of stations x (days + 1) x 25. Stations are in order of
+ * first appearance, like {@link Data#sumDaytimePrecip(PrecipRecords)}. A prefix count of each
+ * station's rows per day tells which stations reported in a date range.
+ */
+public class PrecipCube {
+	private static final int HOURS = 24;
+	private static final int ROW = HOURS + 1;
+
+	private final int[] wbans;
+	private final long firstDay;
+	private final int days;
+	private final double[] sums;
+	// rows of station s on days before d at s * (days + 1) + d
+	private final int[] rowCounts;
+	private final long rowCount;
+
+	private PrecipCube(int[] wbans, long firstDay, int days, double[] sums, int[] rowCounts, long rowCount) {
+		this.wbans = wbans;
+		this.firstDay = firstDay;
+		this.days = days;
+		this.sums = sums;
+		this.rowCounts = rowCounts;
+		this.rowCount = rowCount;
+	}
+
+	/**
+	 * Read all precip records into a cube. Rows without a valid hour or date keep their
+	 * station in the cube but add no rain; a row with a valid date but no valid hour still
+	 * counts as the station reporting that day.
+	 * @param records precip records positioned before the first record
+	 * @return the cube
+	 * @throws IOException if the records cannot be read, or their dates span too many days
+	 * for the cube to fit in an array
+	 */
+	static public PrecipCube build(PrecipRecords records) throws IOException {
+		// collect the rows first, since the date range is only known at the end
+		StationTotals stations = new StationTotals();
+		int[] stationOf = new int[1 << 12];
+		long[] dayOf = new long[stationOf.length];
+		byte[] hourOf = new byte[stationOf.length];
+		double[] precipOf = new double[stationOf.length];
+		int size = 0;
+		long rows = 0;
+		long minDay = Long.MAX_VALUE;
+		long maxDay = Long.MIN_VALUE;
+		int lastDate = -1;
+		long lastEpochDay = 0;
+		int lastWban = -1;
+		int lastStation = -1;
+		while (records.next()) {
+			rows++;
+			int wban = records.wban();
+			if (wban != lastWban) {
+				lastStation = stations.indexOf(wban);
+				if (lastStation < 0) {
+					stations.add(wban, 0.0d);
+					lastStation = stations.size() - 1;
+				}
+				lastWban = wban;
+			}
+			int date = records.day();
+			if (date != lastDate) {
+				lastEpochDay = toEpochDay(date);
+				lastDate = date;
+			}
+			if (lastEpochDay == Long.MIN_VALUE)
+				continue;
+			int hour = records.hour();
+			// hour 0 marks a row that only shows the station reported that day
+			boolean rain = hour >= 1 && hour <= HOURS && !records.isMissing();
+			if (size == stationOf.length) {
+				int capacity = size * 2;
+				stationOf = Arrays.copyOf(stationOf, capacity);
+				dayOf = Arrays.copyOf(dayOf, capacity);
+				hourOf = Arrays.copyOf(hourOf, capacity);
+				precipOf = Arrays.copyOf(precipOf, capacity);
+			}
+			stationOf[size] = lastStation;
+			dayOf[size] = lastEpochDay;
+			hourOf[size] = (byte) (rain ? hour : 0);
+			precipOf[size] = rain ? records.precip() : 0.0d;
+			size++;
+			minDay = Math.min(minDay, lastEpochDay);
+			maxDay = Math.max(maxDay, lastEpochDay);
+		}
+		if (size == 0)
+			minDay = maxDay = 0;
+		int[] wbans = new int[stations.size()];
+		for (int i = 0; i < wbans.length; i++) {
+			wbans[i] = stations.wban(i);
+		}
+		int days;
+		int plane;
+		double[] sums;
+		int[] rowCounts;
+		try {
+			// e.g. one stray but valid date decades away
+			days = Math.toIntExact(maxDay - minDay + 1);
+			plane = Math.multiplyExact(Math.addExact(days, 1), ROW);
+			sums = new double[Math.multiplyExact(wbans.length, plane)];
+			rowCounts = new int[Math.multiplyExact(wbans.length, days + 1)];
+		} catch (ArithmeticException e) {
+			throw new IOException("precip dates from " + LocalDate.ofEpochDay(minDay) + " to "
+					+ LocalDate.ofEpochDay(maxDay) + " span too many days for " + wbans.length + " stations");
+		}
+		// place each row's rain at (day + 1, hour), then integrate each plane over hours and days
+		for (int i = 0; i < size; i++) {
+			int day = (int) (dayOf[i] - minDay + 1);
+			if (hourOf[i] != 0)
+				sums[stationOf[i] * plane + day * ROW + hourOf[i]] += precipOf[i];
+			rowCounts[stationOf[i] * (days + 1) + day]++;
+		}
+		for (int s = 0; s < wbans.length; s++) {
+			int base = s * (days + 1);
+			for (int d = 1; d <= days; d++) {
+				rowCounts[base + d] += rowCounts[base + d - 1];
+			}
+		}
+		for (int s = 0; s < wbans.length; s++) {
+			int base = s * plane;
+			for (int d = 1; d <= days; d++) {
+				int row = base + d * ROW;
+				double dayTotal = 0.0d;
+				for (int h = 1; h <= HOURS; h++) {
+					dayTotal += sums[row + h];
+					sums[row + h] = sums[row - ROW + h] + dayTotal;
+				}
+			}
+		}
+		return new PrecipCube(wbans, minDay, days, sums, rowCounts, rows);
+	}
+
+	/** @return number of stations */
+	public int getStationCount() { return wbans.length; }
+
+	/** @return WBAN id of the i-th station */
+	public int getWban(int station) { return wbans[station]; }
+
+	/** @return number of precip rows the cube was built from */
+	public long getRowCount() { return rowCount; }
+
+	/** @return first day of the data */
+	public LocalDate getFirstDay() { return LocalDate.ofEpochDay(firstDay); }
+
+	/** @return last day of the data */
+	public LocalDate getLastDay() { return LocalDate.ofEpochDay(firstDay + days - 1); }
+
+	/**
+	 * Sum a station's rain over a date range and window of hours
+	 * @param station station index, 0 to {@link #getStationCount()} - 1
+	 * @param from first day, clamped to the data
+	 * @param to last day, clamped to the data
+	 * @param firstHour first hour counted, 1 to 24
+	 * @param lastHour last hour counted, 1 to 24
+	 * @return inches of rain
+	 */
+	public double sum(int station, LocalDate from, LocalDate to, int firstHour, int lastHour) {
+		int d0 = clampDay(from.toEpochDay());
+		int d1 = clampDay(to.toEpochDay() + 1);
+		if (d0 >= d1 || firstHour > lastHour)
+			return 0.0d;
+		return sum(station * (days + 1) * ROW, d0, d1, Math.max(firstHour, 1) - 1, Math.min(lastHour, HOURS));
+	}
+
+	/**
+	 * Sum the rain of the stations that reported in a date range over a window of hours, as
+	 * summing only the rows of those days would
+	 * @param from first day, clamped to the data
+	 * @param to last day, clamped to the data
+	 * @param firstHour first hour counted, 1 to 24
+	 * @param lastHour last hour counted, 1 to 24
+	 * @return rain total per WBAN of the stations with rows in the range, in the cube's station order
+	 */
+	public StationTotals sum(LocalDate from, LocalDate to, int firstHour, int lastHour) {
+		return sum(clampDay(from.toEpochDay()), clampDay(to.toEpochDay() + 1), firstHour, lastHour, false);
+	}
+
+	/**
+	 * Sum every station's rain over all days in a window of hours
+	 * @param firstHour first hour counted, 1 to 24
+	 * @param lastHour last hour counted, 1 to 24
+	 * @return rain total per WBAN, in the cube's station order, including stations whose
+	 * rows all lack a valid date, as summing the whole file would
+	 */
+	public StationTotals sum(int firstHour, int lastHour) {
+		return sum(0, days, firstHour, lastHour, true);
+	}
+
+	/**
+	 * @param station station index, 0 to {@link #getStationCount()} - 1
+	 * @param from first day, clamped to the data
+	 * @param to last day, clamped to the data
+	 * @return number of rows of the station in the date range, with or without rain
+	 */
+	public int getRowCount(int station, LocalDate from, LocalDate to) {
+		int d0 = clampDay(from.toEpochDay());
+		int d1 = clampDay(to.toEpochDay() + 1);
+		return d0 < d1 ? rowCounts[station * (days + 1) + d1] - rowCounts[station * (days + 1) + d0] : 0;
+	}
+
+	/*
+	 * Rain of days [d0, d1) over a window of hours per station, only of the stations with
+	 * rows in those days unless allStations
+	 */
+	private StationTotals sum(int d0, int d1, int firstHour, int lastHour, boolean allStations) {
+		StationTotals totals = new StationTotals(Math.max(wbans.length, 1));
+		int h0 = Math.max(firstHour, 1) - 1;
+		int h1 = Math.min(lastHour, HOURS);
+		boolean empty = d0 >= d1 || h0 >= h1;
+		int plane = (days + 1) * ROW;
+		for (int s = 0; s < wbans.length; s++) {
+			int base = s * (days + 1);
+			if (!allStations && (d0 >= d1 || rowCounts[base + d1] == rowCounts[base + d0]))
+				continue;
+			totals.add(wbans[s], empty ? 0.0d : sum(s * plane, d0, d1, h0, h1));
+		}
+		totals.addRowCount(rowCount);
+		return totals;
+	}
+
+	/*
+	 * Rain of days [d0, d1) and hours (h0, h1] of the plane at base
+	 */
+	private double sum(int base, int d0, int d1, int h0, int h1) {
+		int top = base + d0 * ROW;
+		int bottom = base + d1 * ROW;
+		return sums[bottom + h1] - sums[top + h1] - sums[bottom + h0] + sums[top + h0];
+	}
+
+	private int clampDay(long epochDay) {
+		return (int) Math.max(0, Math.min(days, epochDay - firstDay));
+	}
+
+	/*
+	 * yyyymmdd to epoch day, or Long.MIN_VALUE if it is not a date
+	 */
+	private static long toEpochDay(int date) {
+		try {
+			return LocalDate.of(date / 10000, date / 100 % 100, date % 100).toEpochDay();
+		} catch (RuntimeException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.mjs.wet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Writes synthetic precip files in the QCLCD layout, for stations of the WBAN master list,
+ * so the whole pipeline can be run at any size.
+ * <p>
+ * The size is stations x days x years: each year repeats the same run of days from the start
+ * date, a year later. Each station reports an hour with probability reportFraction, and a
+ * reported hour is a trace, a blank, or an amount in hundredths of an inch. Whether an hour
+ * is reported and its value depend only on the seed, WBAN, date and hour, so a sorted and a
+ * shuffled file with the same settings hold the same rows, and a run is repeatable.
+ * <p>
+ * The defaults resemble May 2015: 31 days from May 1st, about 3.6 reported hours per station
+ * and day, a fifth of them traces.
+ */
+public class PrecipGenerator {
+	private static final byte[] HEADER =
+			"Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRACE = "  T".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] BLANK = " ".getBytes(StandardCharsets.US_ASCII);
+
+	private final int[] wbans;
+	private LocalDate start = LocalDate.of(2015, 5, 1);
+	private int days = 31;
+	private int years = 1;
+	private boolean shuffled;
+	private double reportFraction = 0.15d;
+	private double traceFraction = 0.2d;
+	private double blankFraction = 0.065d;
+	private long seed = 1L;
+
+	/**
+	 * Usage: PrecipGenerator &lt;output file&gt; [-stations n] [-days n] [-years n] [-shuffled]
+	 * [-trace fraction] [-blank fraction] [-seed n]
+	 * @param args output file, and options
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: PrecipGenerator <output file> [-stations n] [-days n] [-years n] [-shuffled]"
+					+ " [-trace fraction] [-blank fraction] [-seed n]");
+			return;
+		}
+		int stations = Integer.MAX_VALUE;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-stations"))
+				stations = Integer.parseInt(args[++i]);
+		}
+		PrecipGenerator generator = new PrecipGenerator(
+				getStationWbans(Data.loadStationTable(Wet.getReader("wbanmasterlist.psv")), stations));
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-days"))
+				generator.setDays(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-years"))
+				generator.setYears(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-shuffled"))
+				generator.setShuffled(true);
+			else if (args[i].equals("-trace"))
+				generator.setTraceFraction(Double.parseDouble(args[++i]));
+			else if (args[i].equals("-blank"))
+				generator.setBlankFraction(Double.parseDouble(args[++i]));
+			else if (args[i].equals("-seed"))
+				generator.setSeed(Long.parseLong(args[++i]));
+		}
+		long rows = generator.write(Paths.get(args[0]));
+		System.out.println(args[0] + ": " + rows + " rows for " + generator.wbans.length + " stations");
+	}
+
+	/**
+	 * @param wbans numeric WBAN ids of the stations to generate rows for
+	 */
+	public PrecipGenerator(int[] wbans) {
+		this.wbans = wbans.clone();
+	}
+
+	/**
+	 * Get the WBANs of stations that have a county, spread evenly over the table if there
+	 * are more than wanted
+	 * @param stations table of WBAN to county
+	 * @param maxStations most stations to return
+	 * @return WBAN ids, ascending
+	 */
+	static public int[] getStationWbans(StationTable stations, int maxStations) {
+		int count = 0;
+		for (int wban = 0; wban <= StationTable.MAX_WBAN; wban++) {
+			if (stations.getCountyId(wban) != StationTable.NO_COUNTY)
+				count++;
+		}
+		int[] wbans = new int[Math.min(count, maxStations)];
+		int seen = 0;
+		int taken = 0;
+		for (int wban = 0; wban <= StationTable.MAX_WBAN && taken < wbans.length; wban++) {
+			if (stations.getCountyId(wban) == StationTable.NO_COUNTY)
+				continue;
+			// take the station if it is the next of wbans.length evenly spaced picks
+			if ((long) seen * wbans.length / count == taken)
+				wbans[taken++] = wban;
+			seen++;
+		}
+		return wbans;
+	}
+
+	/** @param start first date of the first year */
+	public void setStart(LocalDate start) { this.start = start; }
+
+	/** @param days consecutive days per year */
+	public void setDays(int days) { this.days = days; }
+
+	/** @param years number of years, each repeating the days a year later */
+	public void setYears(int years) { this.years = years; }
+
+	/**
+	 * @param shuffled false to write rows sorted by WBAN, true to write them in time order
+	 * with the stations in a different random order every hour
+	 */
+	public void setShuffled(boolean shuffled) { this.shuffled = shuffled; }
+
+	/** @param reportFraction probability that a station reports a given hour */
+	public void setReportFraction(double reportFraction) { this.reportFraction = reportFraction; }
+
+	/** @param traceFraction probability that a reported hour is a trace */
+	public void setTraceFraction(double traceFraction) { this.traceFraction = traceFraction; }
+
+	/** @param blankFraction probability that a reported hour is blank */
+	public void setBlankFraction(double blankFraction) { this.blankFraction = blankFraction; }
+
+	/** @param seed seed of the generated values */
+	public void setSeed(long seed) { this.seed = seed; }
+
+	/**
+	 * Write a precip file
+	 * @param file file to write
+	 * @return number of rows written
+	 * @throws IOException if the file cannot be written
+	 */
+	public long write(Path file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			return write(out);
+		}
+	}
+
+	/**
+	 * Write precip text to a stream
+	 * @param out stream to write to; not closed
+	 * @return number of rows written
+	 * @throws IOException if the stream cannot be written
+	 */
+	public long write(OutputStream out) throws IOException {
+		BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+		buffered.write(HEADER);
+		int[] dates = new int[days * years];
+		for (int year = 0; year < years; year++) {
+			LocalDate date = start.plusYears(year);
+			for (int day = 0; day < days; day++, date = date.plusDays(1)) {
+				dates[year * days + day] = date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+			}
+		}
+		byte[] line = new byte[64];
+		long rows = 0;
+		if (shuffled) {
+			int[] order = wbans.clone();
+			Random random = new Random(seed);
+			for (int date : dates) {
+				for (int hour = 1; hour <= 24; hour++) {
+					for (int i = order.length - 1; i > 0; i--) {
+						int j = random.nextInt(i + 1);
+						int swap = order[i];
+						order[i] = order[j];
+						order[j] = swap;
+					}
+					for (int wban : order) {
+						rows += writeRow(buffered, line, wban, date, hour);
+					}
+				}
+			}
+		} else {
+			for (int wban : wbans) {
+				for (int date : dates) {
+					for (int hour = 1; hour <= 24; hour++) {
+						rows += writeRow(buffered, line, wban, date, hour);
+					}
+				}
+			}
+		}
+		buffered.flush();
+		return rows;
+	}
+
+	/*
+	 * Write the row for a station and hour if the station reports that hour; returns rows written
+	 */
+	private int writeRow(OutputStream out, byte[] line, int wban, int date, int hour) throws IOException {
+		long bits = mix(seed ^ ((long) wban << 40 ^ (long) date << 8 ^ hour));
+		if (uniform(bits) >= reportFraction)
+			return 0;
+		double kind = uniform(mix(bits));
+		int n = 0;
+		n = appendDigits(line, n, wban, 5);
+		line[n++] = ',';
+		n = appendDigits(line, n, date, 8);
+		line[n++] = ',';
+		n = appendDigits(line, n, hour, 2);
+		line[n++] = ',';
+		if (kind < traceFraction) {
+			System.arraycopy(TRACE, 0, line, n, TRACE.length);
+			n += TRACE.length;
+		} else if (kind < traceFraction + blankFraction) {
+			System.arraycopy(BLANK, 0, line, n, BLANK.length);
+			n += BLANK.length;
+		} else {
+			// mostly light rain: an exponential amount with a mean of a fifth of an inch
+			double amount = -0.2d * Math.log(1.0d - uniform(mix(bits + 1)));
+			int hundredths = (int) Math.min(Math.max(Math.round(amount * 100), 1), 999);
+			line[n++] = (byte) ('0' + hundredths / 100);
+			line[n++] = '.';
+			n = appendDigits(line, n, hundredths % 100, 2);
+		}
+		line[n++] = ',';
+		line[n++] = '\n';
+		out.write(line, 0, n);
+		return 1;
+	}
+
+	private static int appendDigits(byte[] line, int n, int value, int width) {
+		for (int i = n + width - 1; i >= n; i--) {
+			line[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return n + width;
+	}
+
+	/*
+	 * SplitMix64 finalizer, so neighbouring inputs give unrelated bits
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static double uniform(long bits) {
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+}
@@ -0,0 +1,341 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte-level reader for the QCLCD hourly precipitation file.
+ * <p>
+ * Rows are scanned directly from a reused byte buffer; the WBAN, date and hour are
+ * parsed as ints and the precipitation as a primitive double, so reading a row
+ * allocates no Strings or boxed values. Typical use:
+ * <pre>
+ * PrecipParser parser = new PrecipParser(stream);
+ * while (parser.next()) {
+ *     int wban = parser.wban();
+ *     double rain = parser.precip();
+ * }
+ * </pre>
+ */
+public class PrecipParser implements PrecipRecords {
+	/** column names in the precip file header */
+	static final String WBAN_FIELD = "Wban";
+	static final String DAY_FIELD = "YearMonthDay";
+	static final String HOUR_FIELD = "Hour";
+	static final String PRECIP_FIELD = "Precipitation";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final InputStream in;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private long base;	// stream offset of buf[0]
+	private int rowStart;
+
+	private int wbanIndex;
+	private int dayIndex;
+	private int hourIndex;
+	private int precipIndex;
+	private int lastIndex;
+
+	// current row
+	private int wban;
+	private int day;
+	private int hour;
+	private double precip;
+	private boolean trace;
+	private boolean missing;
+
+	private long rowCount;
+	private long rejectedCount;
+
+	/**
+	 * Create a parser for a precip file whose first line is the header
+	 * @param in InputStream positioned at the header line
+	 * @throws IOException if the header cannot be read or lacks a required column
+	 */
+	public PrecipParser(InputStream in) throws IOException {
+		this.in = in;
+		readHeader();
+	}
+
+	/**
+	 * Create a parser for headerless precip rows, e.g. a chunk from the middle of a file
+	 * @param in InputStream positioned at the start of a row
+	 * @param wbanIndex index of the WBAN column
+	 * @param dayIndex index of the YearMonthDay column
+	 * @param hourIndex index of the Hour column
+	 * @param precipIndex index of the Precipitation column
+	 */
+	PrecipParser(InputStream in, int wbanIndex, int dayIndex, int hourIndex, int precipIndex) {
+		this.in = in;
+		setIndexes(wbanIndex, dayIndex, hourIndex, precipIndex);
+	}
+
+	/**
+	 * Advance to the next row. Rows without a numeric WBAN or with too few columns are skipped.
+	 * @return true if a row was read, false at EOF
+	 * @throws IOException if the underlying stream fails
+	 */
+	@Override
+	public boolean next() throws IOException {
+		while (true) {
+			int end = findLineEnd();
+			if (end < 0)
+				return false;
+			int start = pos;
+			pos = end + 1;
+			rowStart = start;
+			if (end > start && buf[end - 1] == '\r')
+				end--;
+			if (end == start)
+				continue;	// blank line
+			if (parseRow(start, end)) {
+				rowCount++;
+				return true;
+			}
+			rejectedCount++;
+		}
+	}
+
+	/** @return numeric WBAN id of the current row, e.g. 103 for "00103" */
+	@Override
+	public int wban() { return wban; }
+
+	/** @return date of the current row as yyyymmdd, or -1 if unparseable */
+	@Override
+	public int day() { return day; }
+
+	/** @return hour of the current row, 1...24 being the hours ending at 1AM...midnight, or -1 if unparseable */
+	@Override
+	public int hour() { return hour; }
+
+	/** @return precipitation in inches; 0 for trace ("T") or blank values */
+	@Override
+	public double precip() { return precip; }
+
+	/** @return true if the precipitation of the current row is a trace ("T") amount */
+	@Override
+	public boolean isTrace() { return trace; }
+
+	/** @return true if the precipitation of the current row is blank or unparseable */
+	@Override
+	public boolean isMissing() { return missing; }
+
+	/** @return number of rows returned by {@link #next()} so far */
+	public long getRowCount() { return rowCount; }
+
+	/** @return number of rows skipped as unparseable so far */
+	public long getRejectedCount() { return rejectedCount; }
+
+	/** @return offset in the stream of the current row, or of the first data row before {@link #next()} is called */
+	long getRowOffset() { return base + rowStart; }
+
+	int getWbanIndex() { return wbanIndex; }
+	int getDayIndex() { return dayIndex; }
+	int getHourIndex() { return hourIndex; }
+	int getPrecipIndex() { return precipIndex; }
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/*
+	 * Parse the header line for the indexes of the columns we want
+	 */
+	private void readHeader() throws IOException {
+		int end = findLineEnd();
+		if (end < 0)
+			throw new IOException("unable to read header from file");
+		int start = pos;
+		pos = end + 1;
+		rowStart = pos;
+		if (end > start && buf[end - 1] == '\r')
+			end--;
+		String[] fields = new String(buf, start, end - start, "US-ASCII").split(",");
+		int w = -1, d = -1, h = -1, p = -1;
+		for (int i = 0; i < fields.length; i++) {
+			String field = Data.normalizeField(fields[i].trim());
+			if (field.equals(WBAN_FIELD)) w = i;
+			else if (field.equals(DAY_FIELD)) d = i;
+			else if (field.equals(HOUR_FIELD)) h = i;
+			else if (field.equals(PRECIP_FIELD)) p = i;
+		}
+		if (w < 0 || h < 0 || p < 0)
+			throw new IOException("precip header lacks Wban, Hour or Precipitation column");
+		setIndexes(w, d, h, p);
+	}
+
+	private void setIndexes(int wbanIndex, int dayIndex, int hourIndex, int precipIndex) {
+		this.wbanIndex = wbanIndex;
+		this.dayIndex = dayIndex;
+		this.hourIndex = hourIndex;
+		this.precipIndex = precipIndex;
+		lastIndex = Math.max(Math.max(wbanIndex, dayIndex), Math.max(hourIndex, precipIndex));
+	}
+
+	/*
+	 * Returns the index of the next '\n' at or after pos, refilling or growing the
+	 * buffer as needed. A final line without a newline is terminated at EOF.
+	 * Returns -1 when no bytes remain.
+	 */
+	private int findLineEnd() throws IOException {
+		int scan = pos;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buf[scan] == '\n')
+					return scan;
+			}
+			if (eof) {
+				if (pos >= limit)
+					return -1;
+				// terminate the last line
+				ensureCapacity(1);
+				buf[limit] = '\n';
+				return limit++;
+			}
+			scan -= pos;
+			fill();
+		}
+	}
+
+	/*
+	 * Move the unread bytes to the front of the buffer and read more
+	 */
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			base += pos;
+			rowStart -= pos;
+			pos = 0;
+		}
+		ensureCapacity(1);
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (limit + extra > buf.length) {
+			byte[] bigger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, bigger, 0, limit);
+			buf = bigger;
+		}
+	}
+
+	/*
+	 * Parse the fields of the row in buf[start, end)
+	 */
+	private boolean parseRow(int start, int end) {
+		wban = -1;
+		day = -1;
+		hour = -1;
+		precip = 0.0d;
+		trace = false;
+		missing = true;
+		int field = 0;
+		int fieldStart = start;
+		for (int i = start; i <= end && field <= lastIndex; i++) {
+			if (i == end || buf[i] == ',') {
+				if (field == wbanIndex) {
+					wban = parseInt(fieldStart, i);
+				} else if (field == hourIndex) {
+					hour = parseInt(fieldStart, i);
+				} else if (field == dayIndex) {
+					day = parseInt(fieldStart, i);
+				} else if (field == precipIndex) {
+					parsePrecip(fieldStart, i);
+				}
+				field++;
+				fieldStart = i + 1;
+			}
+		}
+		return field > lastIndex && wban >= 0;
+	}
+
+	/*
+	 * Parse an unsigned int from buf[start, end), ignoring surrounding blanks and quotes.
+	 * Returns -1 if the field is empty or not numeric.
+	 */
+	private int parseInt(int start, int end) {
+		while (start < end && (buf[start] == ' ' || buf[start] == '"')) start++;
+		while (end > start && (buf[end - 1] == ' ' || buf[end - 1] == '"')) end--;
+		if (start == end || end - start > 9)
+			return -1;
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/*
+	 * Parse a decimal amount such as "0.07" from buf[start, end). "T" is a trace amount;
+	 * blanks or anything else unparseable count as missing. Both read as 0.
+	 */
+	private void parsePrecip(int start, int end) {
+		while (start < end && buf[start] == ' ') start++;
+		while (end > start && buf[end - 1] == ' ') end--;
+		if (start == end)
+			return;
+		if (end - start == 1 && buf[start] == 'T') {
+			trace = true;
+			missing = false;
+			return;
+		}
+		boolean negative = false;
+		int i = start;
+		if (buf[i] == '-' || buf[i] == '+') {
+			negative = buf[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte b = buf[i];
+			if (b == '.' && !point) {
+				point = true;
+			} else if (b >= '0' && b <= '9') {
+				if (digits == 15) {
+					// more precision than the fast path handles exactly
+					parseSlow(start, end);
+					return;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (point) scale++;
+			} else {
+				return;
+			}
+		}
+		if (digits == 0 || scale >= POW10.length)
+			return;
+		double value = mantissa / POW10[scale];
+		precip = negative ? -value : value;
+		missing = false;
+	}
+
+	private void parseSlow(int start, int end) {
+		try {
+			precip = Double.parseDouble(new String(buf, start, end - start, "US-ASCII"));
+			missing = false;
+		} catch (NumberFormatException | java.io.UnsupportedEncodingException e) {
+			// leave as missing
+		}
+	}
+}
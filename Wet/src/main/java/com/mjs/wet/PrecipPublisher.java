@@ -0,0 +1,278 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the records of one read of precip data, in {@link PrecipBlock}s, to any number
+ * of subscribers, e.g. aggregation, quality checks and archival, with demand-driven
+ * backpressure.
+ * <p>
+ * The interfaces follow java.util.concurrent.Flow, which is not available on Java 8. Each
+ * subscriber requests blocks through its {@link Subscription}. The next block is read only
+ * when every subscriber still subscribed has requested one, and it is delivered to all of
+ * them, so the slowest subscriber paces the reader and at most one block is in flight.
+ * A subscriber that cancels no longer holds the others back. A subscriber that throws from
+ * onNext or onComplete is dropped and gets onError with what it threw.
+ * <p>
+ * Subscribe, then read with {@link #run()}, on the calling thread or an executor. Signals
+ * are delivered on the reading thread, one at a time; requests may come from any thread.
+ * The source is read once and closed when the stream ends.
+ */
+public class PrecipPublisher implements Runnable {
+	/** default records per block */
+	static public final int DEFAULT_BLOCK_ROWS = 4096;
+
+	/**
+	 * Receives the blocks of a publisher, as java.util.concurrent.Flow.Subscriber
+	 */
+	public interface Subscriber {
+		/** Called once, before any other signal */
+		void onSubscribe(Subscription subscription);
+
+		/** Called with each block requested */
+		void onNext(PrecipBlock block);
+
+		/** Called once if the read fails, or the subscription was used wrongly; no more signals follow */
+		void onError(Throwable error);
+
+		/** Called once after the last block; no more signals follow */
+		void onComplete();
+	}
+
+	/**
+	 * Link of one subscriber to a publisher, as java.util.concurrent.Flow.Subscription
+	 */
+	public interface Subscription {
+		/**
+		 * @param n number of blocks more the subscriber can take, more than 0
+		 */
+		void request(long n);
+
+		/** Stop receiving blocks */
+		void cancel();
+	}
+
+	private final PrecipRecords source;
+	private final int blockRows;
+	private final List<Link> links = new ArrayList<Link>();
+	private boolean started;
+
+	/**
+	 * @param source precip records positioned before the first record
+	 */
+	public PrecipPublisher(PrecipRecords source) {
+		this(source, DEFAULT_BLOCK_ROWS);
+	}
+
+	/**
+	 * @param source precip records positioned before the first record
+	 * @param blockRows records per block
+	 */
+	public PrecipPublisher(PrecipRecords source, int blockRows) {
+		this.source = source;
+		this.blockRows = blockRows;
+	}
+
+	/**
+	 * Add a subscriber. Subscribers must be added before the read starts; a later one gets onError.
+	 * @param subscriber subscriber
+	 */
+	public void subscribe(Subscriber subscriber) {
+		Link link = new Link(subscriber);
+		boolean late;
+		synchronized (this) {
+			late = started;
+			if (!late)
+				links.add(link);
+		}
+		subscriber.onSubscribe(link);
+		if (late) {
+			link.cancel();
+			subscriber.onError(new IllegalStateException("the precip stream has started"));
+		}
+	}
+
+	/**
+	 * Read the source to the end, or until every subscriber has cancelled, delivering
+	 * blocks as they are requested
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			started = true;
+		}
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		try {
+			while (true) {
+				List<Link> ready = awaitDemand();
+				if (ready.isEmpty())
+					break;
+				PrecipBlock block = PrecipBlock.read(source, blockRows);
+				if (block.size() > 0) {
+					for (Link link : ready) {
+						link.onNext(block);
+					}
+				}
+				if (block.size() < blockRows) {
+					for (Link link : ready) {
+						link.onComplete();
+					}
+					break;
+				}
+			}
+			if (source instanceof PrecipParser)
+				metrics.addPrecipRows(0, ((PrecipParser) source).getRejectedCount(), 0);
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			// e.g. a malformed source; the subscribers may be waiting on another thread
+			fail(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} finally {
+			try {
+				source.close();
+			} catch (IOException e) {
+				metrics.error("closing precip data", e);
+			}
+		}
+	}
+
+	/*
+	 * Wait until every live subscriber has demand; signal any that made invalid requests
+	 */
+	private List<Link> awaitDemand() throws InterruptedException {
+		while (true) {
+			List<Link> live = new ArrayList<Link>();
+			List<Link> invalid = new ArrayList<Link>();
+			boolean ready = true;
+			synchronized (this) {
+				for (Link link : links) {
+					if (link.error != null && !link.done)
+						invalid.add(link);
+					else if (!link.cancelled) {
+						live.add(link);
+						if (link.demand == 0)
+							ready = false;
+					}
+				}
+				if (invalid.isEmpty() && !ready)
+					wait();
+			}
+			for (Link link : invalid) {
+				link.onError(link.error);
+			}
+			if (ready)
+				return live;
+		}
+	}
+
+	private void fail(Throwable error) {
+		List<Link> live = new ArrayList<Link>();
+		synchronized (this) {
+			for (Link link : links) {
+				if (!link.cancelled)
+					live.add(link);
+			}
+		}
+		for (Link link : live) {
+			link.onError(error);
+		}
+	}
+
+	/*
+	 * One subscriber's demand and state; guarded by the publisher
+	 */
+	private class Link implements Subscription {
+		private final Subscriber subscriber;
+		long demand;
+		boolean cancelled;
+		boolean done;
+		IllegalArgumentException error;
+
+		Link(Subscriber subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (PrecipPublisher.this) {
+				if (cancelled)
+					return;
+				if (n <= 0) {
+					cancelled = true;
+					error = new IllegalArgumentException("request for " + n + " blocks");
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				PrecipPublisher.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (PrecipPublisher.this) {
+				cancelled = true;
+				PrecipPublisher.this.notifyAll();
+			}
+		}
+
+		void onNext(PrecipBlock block) {
+			synchronized (PrecipPublisher.this) {
+				if (cancelled)
+					return;
+				if (demand != Long.MAX_VALUE)
+					demand--;
+			}
+			try {
+				subscriber.onNext(block);
+			} catch (RuntimeException e) {
+				dropped(e);
+			}
+		}
+
+		void onComplete() {
+			if (finish()) {
+				try {
+					subscriber.onComplete();
+				} catch (RuntimeException e) {
+					// already finished, so only recorded
+					PipelineMetrics.getDefault().error("precip subscriber " + subscriber, e);
+				}
+			}
+		}
+
+		/*
+		 * A subscriber that throws is dropped, so it cannot stop the others, and told why,
+		 * so it does not wait for a signal that never comes
+		 */
+		private void dropped(RuntimeException e) {
+			PipelineMetrics.getDefault().error("precip subscriber " + subscriber, e);
+			if (finish()) {
+				try {
+					subscriber.onError(e);
+				} catch (RuntimeException again) {
+					PipelineMetrics.getDefault().error("precip subscriber " + subscriber, again);
+				}
+			}
+		}
+
+		void onError(Throwable error) {
+			if (finish())
+				subscriber.onError(error);
+		}
+
+		private boolean finish() {
+			synchronized (PrecipPublisher.this) {
+				if (done || (cancelled && error == null))
+					return false;
+				done = true;
+				cancelled = true;
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.mjs.wet;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A cursor over hourly precipitation records, whether parsed from text or read from a cache.
+ * Values are only valid until the next call to {@link #next()}.
+ */
+public interface PrecipRecords extends Closeable {
+	/**
+	 * Advance to the next record
+	 * @return true if a record was read, false at the end
+	 * @throws IOException if the underlying data cannot be read
+	 */
+	boolean next() throws IOException;
+
+	/** @return numeric WBAN id of the current record */
+	int wban();
+
+	/** @return date of the current record as yyyymmdd, or -1 if unknown */
+	int day();
+
+	/** @return hour of the current record, 1...24 being the hours ending at 1AM...midnight, or -1 if unknown */
+	int hour();
+
+	/** @return precipitation in inches; 0 for trace or blank values */
+	double precip();
+
+	/** @return true if the precipitation is a trace ("T") amount */
+	boolean isTrace();
+
+	/** @return true if the precipitation is blank or unparseable */
+	boolean isMissing();
+}
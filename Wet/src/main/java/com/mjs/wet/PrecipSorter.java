@@ -0,0 +1,407 @@
+package com.mjs.wet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * External merge sort of precip records by (WBAN, day, hour), for feeds that arrive in
+ * another order, e.g. by date, and are too large to sort in memory.
+ * <p>
+ * Rows are read into bounded runs. Each full run is sorted and spilled to a temporary
+ * binary run file on the pool while the next run is read, and the runs are then merged
+ * k ways into one sorted {@link PrecipRecords}, which {@link Aggregation#SORTED} consumes as
+ * it would a file sorted by WBAN, see {@link Data#sumDaytimePrecipSorted(Path, PrecipSorter)}.
+ * Input that fits in one run is sorted in memory without touching the disk.
+ * <p>
+ * A run sorts one long per row: WBAN, packed day and hour code above the row's index in
+ * the run, as {@link PrecipCache} sorts by WBAN. Ties keep their input order, rows
+ * without a valid day sort first in their station, and rows without a valid hour sort
+ * after the hours of their day. A run file holds per row int WBAN, int yyyymmdd, the hour
+ * byte of {@link PrecipCache} and double precip, so no value is rounded. Run files are
+ * deleted when the sorted records are closed.
+ */
+public class PrecipSorter {
+	/** default bound on the memory held by runs being read and sorted */
+	static final long DEFAULT_MAX_MEMORY = 256L << 20;
+	/** bytes of memory per row of a run */
+	static final int RUN_ROW_BYTES = 25;
+	/** bytes per row of a run file */
+	static final int FILE_ROW_BYTES = 17;
+
+	private static final int INDEX_BITS = 22;
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+	private static final int HOUR_BITS = 5;
+	private static final int DAY_BITS = 17;
+	// keys stay positive
+	private static final int WBAN_BITS = 63 - INDEX_BITS - HOUR_BITS - DAY_BITS;
+	private static final int FIRST_YEAR = 1900;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int INITIAL_RUN_ROWS = 1 << 12;
+
+	private final ForkJoinPool pool;
+	private long maxMemory = DEFAULT_MAX_MEMORY;
+	private Path tempDirectory;
+
+	/**
+	 * @param pool ForkJoinPool to sort and spill runs on while the next is read, or null
+	 * to sort each run on the reading thread
+	 */
+	public PrecipSorter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Bound the memory held by runs. With a pool, one run is read while up to one per
+	 * thread is sorted, so each run gets a share of the memory.
+	 * @param maxMemory bytes, default {@link #DEFAULT_MAX_MEMORY}
+	 */
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * @param tempDirectory directory for run files, or null for the default temporary directory
+	 */
+	public void setTempDirectory(Path tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/** @return most rows in one run */
+	int getRunRows() {
+		int runs = pool == null ? 1 : pool.getParallelism() + 1;
+		long rows = maxMemory / RUN_ROW_BYTES / runs;
+		return (int) Math.max(1, Math.min(rows, 1L << INDEX_BITS));
+	}
+
+	/**
+	 * Sort precip records by WBAN, day and hour
+	 * @param input precip records positioned before the first record; read to the end, not closed
+	 * @return the records in sorted order; close them to delete the run files
+	 * @throws IOException if the input cannot be read or a run cannot be spilled
+	 */
+	public PrecipRecords sort(PrecipRecords input) throws IOException {
+		int runRows = getRunRows();
+		List<Path> runFiles = new ArrayList<Path>();
+		Deque<Future<Path>> spilling = new ArrayDeque<Future<Path>>();
+		try {
+			boolean haveRow = input.next();
+			while (haveRow) {
+				Run run = new Run(Math.min(runRows, INITIAL_RUN_ROWS), runRows);
+				do {
+					run.add(input);
+					haveRow = input.next();
+				} while (haveRow && run.size < runRows);
+				if (!haveRow && runFiles.isEmpty() && spilling.isEmpty()) {
+					run.sort();
+					return run.records();
+				}
+				if (pool == null) {
+					runFiles.add(spill(run));
+				} else {
+					if (spilling.size() >= pool.getParallelism())
+						runFiles.add(finish(spilling.removeFirst()));
+					spilling.addLast(pool.submit(spillTask(run)));
+				}
+			}
+			while (!spilling.isEmpty()) {
+				runFiles.add(finish(spilling.removeFirst()));
+			}
+			if (runFiles.isEmpty())
+				return new Run(0, 0).records();
+			return new MergedRecords(runFiles);
+		} catch (IOException | RuntimeException e) {
+			for (Future<Path> spill : spilling) {
+				try {
+					runFiles.add(spill.get());
+				} catch (InterruptedException | ExecutionException ignored) {
+					// nothing was spilled
+				}
+			}
+			delete(runFiles);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param wban numeric WBAN id
+	 * @param day yyyymmdd
+	 * @param hourCode hour byte of {@link PrecipCache}
+	 * @return sort key of a row, without the row index
+	 * @throws IOException if the WBAN is too large to pack
+	 */
+	static long key(int wban, int day, byte hourCode) throws IOException {
+		if (wban < 0 || wban >= 1 << WBAN_BITS)
+			throw new IOException("cannot sort WBAN " + wban);
+		// days from FIRST_YEAR, as if every month had 31; days that do not fit sort first
+		int year = day / 10000 - FIRST_YEAR;
+		int packedDay = year * 372 + (day / 100 % 100 - 1) * 31 + day % 100 - 1;
+		if (year < 0 || packedDay < 0 || packedDay >= 1 << DAY_BITS)
+			packedDay = 0;
+		return (((long) wban << DAY_BITS | packedDay) << HOUR_BITS | (hourCode & PrecipCache.HOUR_MASK)) << INDEX_BITS;
+	}
+
+	private Callable<Path> spillTask(final Run run) {
+		return new Callable<Path>() {
+			@Override
+			public Path call() throws IOException {
+				return spill(run);
+			}
+		};
+	}
+
+	/*
+	 * Sort a run and write it to a new run file
+	 */
+	private Path spill(Run run) throws IOException {
+		run.sort();
+		Path file = tempDirectory == null ? Files.createTempFile("precip", ".run")
+				: Files.createTempFile(tempDirectory, "precip", ".run");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))) {
+			for (int i = 0; i < run.size; i++) {
+				int row = (int) (run.keys[i] & INDEX_MASK);
+				out.writeInt(run.wbans[row]);
+				out.writeInt(run.days[row]);
+				out.writeByte(run.hours[row]);
+				out.writeDouble(run.precips[row]);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return file;
+	}
+
+	private static Path finish(Future<Path> spill) throws IOException {
+		try {
+			return spill.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while spilling a run", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static void delete(List<Path> runFiles) {
+		for (Path runFile : runFiles) {
+			try {
+				Files.deleteIfExists(runFile);
+			} catch (IOException e) {
+				PipelineMetrics.getDefault().error("deleting " + runFile, e);
+			}
+		}
+	}
+
+	private static int decodeHour(byte hourCode) {
+		int hour = hourCode & PrecipCache.HOUR_MASK;
+		return hour == PrecipCache.NO_HOUR ? -1 : hour;
+	}
+
+	/*
+	 * Rows held in memory as columns, with their sort keys
+	 */
+	private static class Run {
+		int[] wbans;
+		int[] days;
+		byte[] hours;
+		double[] precips;
+		long[] keys;
+		int size;
+		// the run never holds more rows than this, so growth stops there
+		private final int maxCapacity;
+
+		Run(int capacity, int maxCapacity) {
+			this.maxCapacity = maxCapacity;
+			wbans = new int[capacity];
+			days = new int[capacity];
+			hours = new byte[capacity];
+			precips = new double[capacity];
+			keys = new long[capacity];
+		}
+
+		void add(PrecipRecords record) throws IOException {
+			if (size == wbans.length) {
+				int capacity = (int) Math.min(size * 2L, maxCapacity);
+				wbans = Arrays.copyOf(wbans, capacity);
+				days = Arrays.copyOf(days, capacity);
+				hours = Arrays.copyOf(hours, capacity);
+				precips = Arrays.copyOf(precips, capacity);
+				keys = Arrays.copyOf(keys, capacity);
+			}
+			wbans[size] = record.wban();
+			days[size] = record.day();
+			hours[size] = PrecipCache.encodeHour(record.hour(), record.isTrace(), record.isMissing());
+			precips[size] = record.precip();
+			keys[size] = key(wbans[size], days[size], hours[size]) | size;
+			size++;
+		}
+
+		void sort() {
+			Arrays.sort(keys, 0, size);
+		}
+
+		/*
+		 * Cursor over the sorted run
+		 */
+		PrecipRecords records() {
+			return new PrecipRecords() {
+				private int i = -1;
+				private int row;
+
+				@Override
+				public boolean next() {
+					if (i + 1 >= size)
+						return false;
+					row = (int) (keys[++i] & INDEX_MASK);
+					return true;
+				}
+
+				@Override
+				public int wban() { return wbans[row]; }
+
+				@Override
+				public int day() { return days[row]; }
+
+				@Override
+				public int hour() { return decodeHour(hours[row]); }
+
+				@Override
+				public double precip() { return precips[row]; }
+
+				@Override
+				public boolean isTrace() { return (hours[row] & PrecipCache.TRACE_FLAG) != 0; }
+
+				@Override
+				public boolean isMissing() { return (hours[row] & PrecipCache.MISSING_FLAG) != 0; }
+
+				@Override
+				public void close() {
+					// nothing on disk
+				}
+			};
+		}
+	}
+
+	/*
+	 * Reads one run file a row at a time
+	 */
+	private static class RunReader {
+		final int run;
+		private final DataInputStream in;
+		private long remaining;
+		int wban;
+		int day;
+		byte hourCode;
+		double precip;
+		long key;
+
+		RunReader(int run, Path file) throws IOException {
+			this.run = run;
+			remaining = Files.size(file) / FILE_ROW_BYTES;
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			wban = in.readInt();
+			day = in.readInt();
+			hourCode = in.readByte();
+			precip = in.readDouble();
+			key = key(wban, day, hourCode);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/*
+	 * k-way merge of the run files; on equal keys the earlier run, i.e. earlier input, comes first
+	 */
+	private static class MergedRecords implements PrecipRecords {
+		private final List<Path> runFiles;
+		private final List<RunReader> readers = new ArrayList<RunReader>();
+		private final PriorityQueue<RunReader> queue;
+		private RunReader current;
+
+		MergedRecords(List<Path> runFiles) throws IOException {
+			this.runFiles = runFiles;
+			queue = new PriorityQueue<RunReader>(runFiles.size(), new Comparator<RunReader>() {
+				@Override
+				public int compare(RunReader a, RunReader b) {
+					int order = Long.compare(a.key, b.key);
+					return order != 0 ? order : Integer.compare(a.run, b.run);
+				}
+			});
+			try {
+				for (int run = 0; run < runFiles.size(); run++) {
+					RunReader reader = new RunReader(run, runFiles.get(run));
+					readers.add(reader);
+					if (reader.next())
+						queue.add(reader);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (current != null && current.next())
+				queue.add(current);
+			current = queue.poll();
+			return current != null;
+		}
+
+		@Override
+		public int wban() { return current.wban; }
+
+		@Override
+		public int day() { return current.day; }
+
+		@Override
+		public int hour() { return decodeHour(current.hourCode); }
+
+		@Override
+		public double precip() { return current.precip; }
+
+		@Override
+		public boolean isTrace() { return (current.hourCode & PrecipCache.TRACE_FLAG) != 0; }
+
+		@Override
+		public boolean isMissing() { return (current.hourCode & PrecipCache.MISSING_FLAG) != 0; }
+
+		@Override
+		public void close() throws IOException {
+			try {
+				for (RunReader reader : readers) {
+					reader.close();
+				}
+			} finally {
+				delete(runFiles);
+			}
+		}
+	}
+}
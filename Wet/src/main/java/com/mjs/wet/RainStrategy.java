@@ -0,0 +1,62 @@
+package com.mjs.wet;
+
+/**
+ * How the rain totals of the stations in an MSA are combined into the MSA's rain
+ */
+public enum RainStrategy {
+	/**
+	 * Mean of the station totals
+	 */
+	MEAN {
+		@Override
+		double combine(MsaRainfall msaRain, int msaId) {
+			return msaRain.getMean(msaId);
+		}
+	},
+	/**
+	 * Greatest station total, the wettest part of the MSA
+	 */
+	MAX {
+		@Override
+		double combine(MsaRainfall msaRain, int msaId) {
+			return msaRain.getMax(msaId);
+		}
+	},
+	/**
+	 * Median station total, robust to one station with bad data
+	 */
+	MEDIAN {
+		@Override
+		double combine(MsaRainfall msaRain, int msaId) {
+			return msaRain.getMedian(msaId);
+		}
+
+		@Override
+		boolean needsValues() {
+			return true;
+		}
+	},
+	/**
+	 * Weighted mean of the station totals. {@link Data#mergeRainByMsa(StationTotals, StationTable, int[], int)}
+	 * weights each station by one over the number of stations in its county, so every
+	 * county of an MSA counts the same however many stations it has.
+	 */
+	WEIGHTED {
+		@Override
+		double combine(MsaRainfall msaRain, int msaId) {
+			return msaRain.getWeightedMean(msaId);
+		}
+	};
+
+	/*
+	 * Rain of an MSA with at least one station
+	 */
+	abstract double combine(MsaRainfall msaRain, int msaId);
+
+	/*
+	 * True if the station values must be kept, see MsaRainfall#MsaRainfall(int, boolean)
+	 */
+	boolean needsValues() {
+		return false;
+	}
+}
@@ -0,0 +1,166 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another InputStream on its own thread into a bounded ring of blocks, so that
+ * producing the bytes, e.g. inflating a zip entry, overlaps with consuming them.
+ * <p>
+ * The reader thread stops when all blocks are full, so at most blockCount blocks of the
+ * source are ever held in memory. A failure on the reader thread, including a
+ * RuntimeException or an Error, is rethrown as an IOException by the next read that reaches it.
+ */
+public class ReadAheadInputStream extends InputStream {
+	private final InputStream source;
+	private final BlockingQueue<Block> filled;
+	private final BlockingQueue<Block> free;
+	private final Thread reader;
+	private volatile boolean closed;
+	private Block current;
+	private int position;
+
+	/**
+	 * Start reading the source ahead
+	 * @param source stream to read; closed when this stream is closed
+	 * @param blockSize bytes per block
+	 * @param blockCount number of blocks, at least 2 so reading and consuming can overlap
+	 * @param name name of the reader thread
+	 */
+	public ReadAheadInputStream(InputStream source, int blockSize, int blockCount, String name) {
+		this.source = source;
+		filled = new ArrayBlockingQueue<Block>(blockCount + 1);
+		free = new ArrayBlockingQueue<Block>(blockCount);
+		for (int i = 0; i < blockCount; i++) {
+			free.add(new Block(blockSize));
+		}
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBlock())
+			return -1;
+		return current.data[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!nextBlock())
+			return -1;
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current.data, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null || current.length < 0 ? 0 : current.length - position;
+	}
+
+	/**
+	 * Stop the reader thread and close the source
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		source.close();
+	}
+
+	/*
+	 * Make sure the current block has unread bytes; false at end of stream
+	 */
+	private boolean nextBlock() throws IOException {
+		if (closed)
+			throw new IOException("stream closed");
+		if (current != null && position < current.length)
+			return true;
+		if (current != null && current.length < 0)
+			return false;
+		if (current != null)
+			free.add(current);
+		try {
+			current = filled.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for " + reader.getName());
+		}
+		position = 0;
+		if (current.error != null)
+			throw new IOException(reader.getName() + ": " + current.error, current.error);
+		return current.length >= 0;
+	}
+
+	/*
+	 * Reader thread: fill free blocks until the source ends, fails or this stream is closed
+	 */
+	private void readAhead() {
+		try {
+			while (!closed) {
+				Block block = free.take();
+				int n = 0;
+				while (n < block.data.length) {
+					int count = source.read(block.data, n, block.data.length - n);
+					if (count < 0)
+						break;
+					n += count;
+				}
+				if (n > 0) {
+					block.length = n;
+					filled.add(block);
+				}
+				if (n < block.data.length) {
+					filled.add(Block.END);
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (Throwable e) {
+			// anything else would leave the consumer waiting for a block forever
+			if (!closed)
+				filled.add(new Block(e));
+		}
+	}
+
+	/*
+	 * A block of bytes read ahead, or the end of the stream, or a read error
+	 */
+	private static class Block {
+		static final Block END = new Block(0);
+		final byte[] data;
+		int length = -1;
+		final Throwable error;
+
+		Block(int size) {
+			data = new byte[size];
+			error = null;
+		}
+
+		Block(Throwable error) {
+			data = new byte[0];
+			this.error = error;
+		}
+	}
+}
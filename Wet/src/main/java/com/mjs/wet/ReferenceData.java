@@ -0,0 +1,224 @@
+package com.mjs.wet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * The WBAN, CSA and population tables, loaded once and shared read-only, e.g. by
+ * several months of precip data processed concurrently.
+ * <p>
+ * Counties and MSAs are dictionary-encoded when the tables load; everything returned
+ * here is indexed by MSA id, see {@link #getMsas()}.
+ */
+public class ReferenceData {
+	private final CountyMsaTable countyMsas;
+	private final StationTable stations;
+	private final int[] msaIds;
+	private final PopulationTable populations;
+	private volatile PopulationModel populationModel = PopulationModel.LATEST;
+	private volatile RainStrategy rainStrategy = RainStrategy.MEAN;
+
+	/**
+	 * Load the reference tables. The readers are consumed and closed.
+	 * @param wbanReader BufferedReader to master WBAN list
+	 * @param csaReader BufferedReader for table of MSAs and their counties
+	 * @param popReader BufferedReader to population data
+	 * @throws IOException if the population table cannot be read
+	 */
+	public ReferenceData(BufferedReader wbanReader, BufferedReader csaReader, BufferedReader popReader)
+			throws IOException
+	{
+		this(Data.loadCountyMsaTable(csaReader), loadStations(wbanReader), popReader);
+	}
+
+	private ReferenceData(CountyMsaTable countyMsas, StationTable stations, BufferedReader popReader)
+			throws IOException
+	{
+		this(countyMsas, stations, loadPopulations(popReader, countyMsas));
+	}
+
+	private ReferenceData(CountyMsaTable countyMsas, StationTable stations, PopulationTable populations) {
+		this.countyMsas = countyMsas;
+		this.stations = stations;
+		this.populations = populations;
+		msaIds = stations.getMsaIds(countyMsas);
+		int countiesWithoutMsa = 0;
+		for (int msaId : msaIds) {
+			if (msaId == CountyMsaTable.NO_MSA)
+				countiesWithoutMsa++;
+		}
+		PipelineMetrics.getDefault().addUnmatched(stations.getStationsWithoutCounty(), countiesWithoutMsa);
+	}
+
+	/**
+	 * Load the reference tables concurrently. The CSA, WBAN and population tables load in
+	 * parallel, and the population rows are resolved to the CSA table's MSA ids once both
+	 * are done, so loading takes about as long as the slowest table. The readers are consumed
+	 * and closed.
+	 * @param wbanReader BufferedReader to master WBAN list
+	 * @param csaReader BufferedReader for table of MSAs and their counties
+	 * @param popReader BufferedReader to population data
+	 * @param executor executor to load on
+	 * @return future reference data; completes exceptionally with a CompletionException
+	 * wrapping an IOException if the population table cannot be read
+	 */
+	static public CompletableFuture<ReferenceData> load(final BufferedReader wbanReader,
+			final BufferedReader csaReader, final BufferedReader popReader, Executor executor)
+	{
+		final CompletableFuture<CountyMsaTable> countyMsas = CompletableFuture.supplyAsync(new Supplier<CountyMsaTable>() {
+			@Override
+			public CountyMsaTable get() {
+				return Data.loadCountyMsaTable(csaReader);
+			}
+		}, executor);
+		CompletableFuture<StationTable> stations = CompletableFuture.supplyAsync(new Supplier<StationTable>() {
+			@Override
+			public StationTable get() {
+				return call(new Callable<StationTable>() {
+					@Override
+					public StationTable call() throws IOException {
+						return loadStations(wbanReader);
+					}
+				});
+			}
+		}, executor);
+		CompletableFuture<PopulationTable> populations = CompletableFuture.supplyAsync(new Supplier<PopulationTable>() {
+			@Override
+			public PopulationTable get() {
+				return call(new Callable<PopulationTable>() {
+					@Override
+					public PopulationTable call() throws IOException {
+						return loadPopulations(popReader);
+					}
+				});
+			}
+		}, executor);
+		// resolving the population rows to MSA ids is one pass over the MSAs
+		CompletableFuture<PopulationTable> msaPopulations = populations.thenCombine(countyMsas,
+				new BiFunction<PopulationTable, CountyMsaTable, PopulationTable>() {
+					@Override
+					public PopulationTable apply(PopulationTable populations, CountyMsaTable countyMsas) {
+						return populations.reindex(countyMsas.getMsas());
+					}
+				});
+		return stations.thenCombine(msaPopulations, new BiFunction<StationTable, PopulationTable, ReferenceData>() {
+			@Override
+			public ReferenceData apply(StationTable stations, PopulationTable populations) {
+				return new ReferenceData(countyMsas.join(), stations, populations);
+			}
+		});
+	}
+
+	/**
+	 * Choose how populations are extrapolated by {@link #getPopulations(LocalDate)}
+	 * @param populationModel LATEST, the default, LINEAR or QUADRATIC
+	 */
+	public void setPopulationModel(PopulationModel populationModel) {
+		this.populationModel = populationModel;
+	}
+
+	/** @return how populations are extrapolated */
+	public PopulationModel getPopulationModel() {
+		return populationModel;
+	}
+
+	/**
+	 * Choose how the station rain of each MSA is combined, see {@link #getMsaRainfall(StationTotals)}
+	 * @param rainStrategy MEAN, the default, MAX, MEDIAN or WEIGHTED
+	 */
+	public void setRainStrategy(RainStrategy rainStrategy) {
+		this.rainStrategy = rainStrategy;
+	}
+
+	/** @return how the station rain of each MSA is combined */
+	public RainStrategy getRainStrategy() {
+		return rainStrategy;
+	}
+
+	private static StationTable loadStations(BufferedReader wbanReader) throws IOException {
+		try {
+			return Data.loadStationTable(wbanReader);
+		} finally {
+			wbanReader.close();
+		}
+	}
+
+	private static PopulationTable loadPopulations(BufferedReader popReader) throws IOException {
+		try {
+			return new PopulationTable(popReader);
+		} finally {
+			popReader.close();
+		}
+	}
+
+	private static PopulationTable loadPopulations(BufferedReader popReader, CountyMsaTable countyMsas)
+			throws IOException
+	{
+		try {
+			return new PopulationTable(popReader, countyMsas.getMsas());
+		} finally {
+			popReader.close();
+		}
+	}
+
+	/*
+	 * Run a load in a future, carrying its IOException out as the cause of a CompletionException
+	 */
+	private static <T> T call(Callable<T> load) {
+		try {
+			return load.call();
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/** @return counties and their MSA ids */
+	public CountyMsaTable getCountyMsas() {
+		return countyMsas;
+	}
+
+	/** @return table of WBAN to county */
+	public StationTable getStations() {
+		return stations;
+	}
+
+	/** @return dictionary of MSA ids */
+	public SymbolTable getMsas() {
+		return countyMsas.getMsas();
+	}
+
+	/**
+	 * @param wban numeric WBAN id
+	 * @return id of the MSA the station is in, or CountyMsaTable.NO_MSA
+	 */
+	public int getMsaId(int wban) {
+		int countyId = stations.getCountyId(wban);
+		return countyId == StationTable.NO_COUNTY ? CountyMsaTable.NO_MSA : msaIds[countyId];
+	}
+
+	/**
+	 * Combine per-station rain totals per MSA, keeping the station values if the rain strategy needs them
+	 * @param stationRain daytime rain total per WBAN
+	 * @return rain of the stations in each MSA
+	 */
+	public MsaRainfall getMsaRainfall(StationTotals stationRain) {
+		return Data.mergeRainByMsa(stationRain, stations, msaIds, getMsas().size(), rainStrategy.needsValues());
+	}
+
+	/**
+	 * Get MSA populations extrapolated to a date with the chosen {@link PopulationModel}.
+	 * Results are cached per date and shared, so the returned array must not be modified.
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @return population indexed by MSA id, -1 where unknown
+	 */
+	public int[] getPopulations(LocalDate extrapolationDate) {
+		return populations.getPopulations(extrapolationDate, populationModel);
+	}
+}
@@ -0,0 +1,365 @@
+package com.mjs.wet;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes labelled values, e.g. people-inches per MSA, as CSV, as JSON for D3, or in a
+ * compact binary format, to any OutputStream or Writer.
+ * <p>
+ * Rows are written as they are produced, so a result never has to be held whole, e.g.
+ * many months of people-inches streamed into one file. Text rows are built in one reused
+ * buffer and numbers are formatted like %5.2E without going through String.format.
+ * <p>
+ * The header names the columns, e.g. "MSA,PeopleInches" or "Month,MSA,PeopleInches"; the
+ * last column is the value and the others are labels. JSON is an array of objects keyed by
+ * the column names, the shape d3.json expects. Binary is the magic number {@link #MAGIC},
+ * the header as {@link DataOutputStream#writeUTF(String)}, then per row the byte 1, each
+ * label as UTF and the value as a double, and finally the byte 0; see {@link #readBinary(InputStream)}.
+ */
+public class ResultExporter implements Closeable {
+	/** first int of a binary export */
+	static public final int MAGIC = 0x57455452; // WETR
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Output formats
+	 */
+	public enum Format {
+		CSV, JSON, BINARY;
+
+		/**
+		 * @param fileName file name
+		 * @return JSON for .json, BINARY for .bin, otherwise CSV
+		 */
+		static public Format forFileName(String fileName) {
+			String name = fileName.toLowerCase(Locale.ROOT);
+			if (name.endsWith(".json"))
+				return JSON;
+			if (name.endsWith(".bin"))
+				return BINARY;
+			return CSV;
+		}
+
+		/** @return file name extension, e.g. ".csv" */
+		public String getExtension() {
+			return this == BINARY ? ".bin" : "." + name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final Format format;
+	private final String[] columns;
+	private final Writer writer;
+	private final DataOutputStream data;
+	private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 256);
+	private char[] chars = new char[BUFFER_SIZE + 256];
+	private final String lineSeparator = System.lineSeparator();
+	private final PipelineMetrics metrics = PipelineMetrics.getDefault();
+	private final long start = metrics.start();
+	private long rows;
+	private boolean closed;
+
+	/**
+	 * Start an export to a stream; text is written as UTF-8. The stream is closed with the exporter.
+	 * @param out stream to write to
+	 * @param format output format
+	 * @param header column names, comma separated
+	 * @throws IOException if the header cannot be written
+	 */
+	public ResultExporter(OutputStream out, Format format, String header) throws IOException {
+		this.format = format;
+		this.columns = header.split(",");
+		if (format == Format.BINARY) {
+			writer = null;
+			data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		} else {
+			writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			data = null;
+		}
+		writeHeader(header);
+	}
+
+	/**
+	 * Start a text export to a Writer. The writer is closed with the exporter.
+	 * @param out writer to write to
+	 * @param format CSV or JSON
+	 * @param header column names, comma separated
+	 * @throws IOException if the header cannot be written
+	 * @throws IllegalArgumentException if the format is BINARY
+	 */
+	public ResultExporter(Writer out, Format format, String header) throws IOException {
+		if (format == Format.BINARY)
+			throw new IllegalArgumentException("binary export needs an OutputStream");
+		this.format = format;
+		this.columns = header.split(",");
+		writer = out;
+		data = null;
+		writeHeader(header);
+	}
+
+	/**
+	 * Export a whole map to a file, in the format of its extension, see {@link Format#forFileName(String)}
+	 * @param map Map of label to value
+	 * @param file file to write
+	 * @param header column names, comma separated
+	 * @throws IOException if the file cannot be written
+	 */
+	static public void export(Map<String, Double> map, Path file, String header) throws IOException {
+		try (ResultExporter exporter = new ResultExporter(Files.newOutputStream(file),
+				Format.forFileName(file.getFileName().toString()), header)) {
+			exporter.writeAll(map);
+		}
+	}
+
+	/**
+	 * Write one row of a two-column export
+	 * @param label label, e.g. MSA name
+	 * @param value value
+	 * @throws IOException if the row cannot be written
+	 */
+	public void write(String label, double value) throws IOException {
+		checkColumns(2);
+		if (data != null) {
+			data.writeByte(1);
+			data.writeUTF(label);
+			data.writeDouble(value);
+			rows++;
+		} else {
+			startRow();
+			appendLabel(0, label);
+			appendValue(value);
+			endRow();
+		}
+	}
+
+	/**
+	 * Write one row of a three-column export
+	 * @param group first label, e.g. month
+	 * @param label second label, e.g. MSA name
+	 * @param value value
+	 * @throws IOException if the row cannot be written
+	 */
+	public void write(String group, String label, double value) throws IOException {
+		checkColumns(3);
+		if (data != null) {
+			data.writeByte(1);
+			data.writeUTF(group);
+			data.writeUTF(label);
+			data.writeDouble(value);
+			rows++;
+		} else {
+			startRow();
+			appendLabel(0, group);
+			appendLabel(1, label);
+			appendValue(value);
+			endRow();
+		}
+	}
+
+	/**
+	 * Write every entry of a map, in its iteration order, to a two-column export
+	 * @param map Map of label to value
+	 * @throws IOException if a row cannot be written
+	 */
+	public void writeAll(Map<String, Double> map) throws IOException {
+		for (Map.Entry<String, Double> entry : map.entrySet()) {
+			write(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/** @return rows written so far */
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Finish the export and close the output
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (data != null) {
+				data.writeByte(0);
+				data.close();
+			} else {
+				if (format == Format.JSON)
+					buffer.append(rows == 0 ? "]" : "\n]").append('\n');
+				flushBuffer();
+				writer.close();
+			}
+		} finally {
+			metrics.stop(PipelineMetrics.Stage.EXPORT, start, rows);
+		}
+	}
+
+	/**
+	 * Read a binary two-column export
+	 * @param in stream positioned at the start of the export; not closed
+	 * @return Map of label to value, in export order
+	 * @throws IOException if the stream is not a complete two-column binary export
+	 */
+	static public Map<String, Double> readBinary(InputStream in) throws IOException {
+		DataInputStream input = new DataInputStream(in);
+		if (input.readInt() != MAGIC)
+			throw new IOException("not a binary result export");
+		if (input.readUTF().split(",").length != 2)
+			throw new IOException("not a two-column export");
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		int marker;
+		while ((marker = input.read()) == 1) {
+			String label = input.readUTF();
+			result.put(label, input.readDouble());
+		}
+		if (marker != 0)
+			throw new EOFException("binary result export is truncated");
+		return result;
+	}
+
+	/**
+	 * Append a value formatted as String.format("%5.2E", value) would, e.g. 3.22E+08
+	 * @param out buffer to append to
+	 * @param value value
+	 * @return the buffer
+	 */
+	static public StringBuilder appendScientific(StringBuilder out, double value) {
+		double magnitude = Math.abs(value);
+		if (magnitude == 0.0d) {
+			if (1.0d / value < 0)
+				out.append('-');
+			return out.append("0.00E+00");
+		}
+		if (Double.isNaN(value) || Double.isInfinite(value) || magnitude < 1e-290 || magnitude > 1e290)
+			return out.append(String.format("%5.2E", value));
+		// three significant digits: scale the value to 100 <= scaled < 1000
+		int exponent = (int) Math.floor(Math.log10(magnitude));
+		double scaled = magnitude / Math.pow(10, exponent - 2);
+		if (scaled >= 1000.0d) {
+			exponent++;
+			scaled /= 10.0d;
+		} else if (scaled < 100.0d) {
+			exponent--;
+			scaled *= 10.0d;
+		}
+		// Formatter rounds the decimal digits half up; leave values too close to a tie to it
+		double fraction = scaled - Math.floor(scaled);
+		if (Math.abs(fraction - 0.5d) < 1e-6)
+			return out.append(String.format("%5.2E", value));
+		int digits = (int) Math.floor(scaled + 0.5d);
+		if (digits == 1000) {
+			digits = 100;
+			exponent++;
+		}
+		if (value < 0)
+			out.append('-');
+		out.append((char) ('0' + digits / 100)).append('.')
+			.append((char) ('0' + digits / 10 % 10)).append((char) ('0' + digits % 10))
+			.append('E').append(exponent < 0 ? '-' : '+');
+		int e = Math.abs(exponent);
+		if (e < 10)
+			out.append('0');
+		return out.append(e);
+	}
+
+	private void writeHeader(String header) throws IOException {
+		if (data != null) {
+			data.writeInt(MAGIC);
+			data.writeUTF(header);
+		} else if (format == Format.CSV) {
+			buffer.append(header).append(lineSeparator);
+		} else {
+			buffer.append('[');
+		}
+	}
+
+	private void checkColumns(int count) {
+		if (columns.length != count)
+			throw new IllegalArgumentException("export has " + columns.length + " columns, not " + count);
+	}
+
+	private void startRow() {
+		if (format == Format.JSON)
+			buffer.append(rows == 0 ? "\n  {" : ",\n  {");
+	}
+
+	private void appendLabel(int column, String label) {
+		if (format == Format.CSV) {
+			buffer.append('"').append(label).append("\",");
+		} else {
+			appendJsonString(columns[column]);
+			buffer.append(": ");
+			appendJsonString(label);
+			buffer.append(", ");
+		}
+	}
+
+	private void appendValue(double value) {
+		if (format == Format.CSV) {
+			appendScientific(buffer, value);
+			return;
+		}
+		appendJsonString(columns[columns.length - 1]);
+		buffer.append(": ");
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			buffer.append("null");
+		else
+			appendScientific(buffer, value);
+	}
+
+	private void endRow() throws IOException {
+		buffer.append(format == Format.JSON ? "}" : lineSeparator);
+		rows++;
+		if (buffer.length() >= BUFFER_SIZE)
+			flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		int length = buffer.length();
+		if (length > chars.length)
+			chars = new char[length];
+		buffer.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+		buffer.setLength(0);
+	}
+
+	private void appendJsonString(String value) {
+		appendJsonString(buffer, value);
+	}
+
+	/**
+	 * Append a value as a quoted JSON string, escaping quotes, backslashes and control characters
+	 * @param out buffer to append to
+	 * @param value value
+	 * @return the buffer
+	 */
+	static public StringBuilder appendJsonString(StringBuilder out, String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				out.append('\\').append(c);
+			else if (c < ' ')
+				out.append(String.format("\\u%04x", (int) c));
+			else
+				out.append(c);
+		}
+		return out.append('"');
+	}
+}
@@ -0,0 +1,105 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * WBAN station to county table, indexed directly by the numeric 5-digit WBAN id.
+ * <p>
+ * Each slot holds a small int county id, so a lookup is one array read with no hashing
+ * or boxing. The distinct county and state names are stored once per county.
+ */
+public class StationTable {
+	/** WBAN ids are 5-digit numbers */
+	static public final int MAX_WBAN = 99999;
+	static public final int NO_COUNTY = -1;
+
+	private final int[] countyByWban = new int[MAX_WBAN + 1];
+	private String[] counties = new String[256];
+	private String[] states = new String[counties.length];
+	private int countyCount;
+	private int stationsWithoutCounty;
+	// County|State key to county id
+	private final Map<String, Integer> countyIds = new HashMap<String, Integer>();
+
+	public StationTable() {
+		Arrays.fill(countyByWban, NO_COUNTY);
+	}
+
+	/**
+	 * Record the county of a station
+	 * @param wban numeric WBAN id
+	 * @param county normalized county name, e.g. TRAVIS
+	 * @param state normalized state, e.g. TX
+	 * @throws IllegalArgumentException if the WBAN is not a 5-digit number
+	 */
+	public void put(int wban, String county, String state) {
+		if (wban < 0 || wban > MAX_WBAN)
+			throw new IllegalArgumentException("WBAN out of range: " + wban);
+		String key = Utilities.createCountyStateKey(county, state);
+		Integer id = countyIds.get(key);
+		if (id == null) {
+			if (countyCount == counties.length) {
+				counties = Arrays.copyOf(counties, countyCount * 2);
+				states = Arrays.copyOf(states, countyCount * 2);
+			}
+			counties[countyCount] = county;
+			states[countyCount] = state;
+			id = countyCount++;
+			countyIds.put(key, id);
+		}
+		countyByWban[wban] = id;
+	}
+
+	/**
+	 * Count a listed station whose county or state is missing or unknown
+	 * @param wban numeric WBAN id
+	 */
+	public void putWithoutCounty(int wban) {
+		if (getCountyId(wban) == NO_COUNTY)
+			stationsWithoutCounty++;
+	}
+
+	/** @return stations listed without a usable county */
+	public int getStationsWithoutCounty() {
+		return stationsWithoutCounty;
+	}
+
+	/**
+	 * @param wban numeric WBAN id
+	 * @return county id of the station, or NO_COUNTY if it is unknown
+	 */
+	public int getCountyId(int wban) {
+		return wban < 0 || wban > MAX_WBAN ? NO_COUNTY : countyByWban[wban];
+	}
+
+	/** @return number of distinct counties */
+	public int getCountyCount() {
+		return countyCount;
+	}
+
+	/** @return normalized county name of a county id */
+	public String getCounty(int countyId) {
+		return counties[countyId];
+	}
+
+	/** @return normalized state of a county id */
+	public String getState(int countyId) {
+		return states[countyId];
+	}
+
+	/**
+	 * Resolve the MSA id of every county in the table, so a station's MSA is two array reads
+	 * @param countyMsas county and MSA ids from the CSA file
+	 * @return MSA id indexed by county id of this table, CountyMsaTable.NO_MSA where the county is in no MSA
+	 */
+	public int[] getMsaIds(CountyMsaTable countyMsas) {
+		int[] msaIds = new int[countyCount];
+		for (int id = 0; id < countyCount; id++) {
+			int countyId = countyMsas.getCountyId(counties[id], states[id]);
+			msaIds[id] = countyId == SymbolTable.NONE ? CountyMsaTable.NO_MSA : countyMsas.getMsaId(countyId);
+		}
+		return msaIds;
+	}
+}
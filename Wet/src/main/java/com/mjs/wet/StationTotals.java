@@ -0,0 +1,164 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+
+/**
+ * Daytime rain totals per WBAN station, in the order the stations were read.
+ * <p>
+ * Backed by growable primitive arrays, so a month of station totals is two arrays
+ * rather than thousands of boxed values. {@link #accumulate(int, double)} adds to a
+ * station's existing total through an open-addressing index of WBAN to position, so the
+ * totals also serve as a primitive-keyed map when rows arrive in any order.
+ */
+public class StationTotals {
+	private int[] wbans;
+	private double[] totals;
+	private int size;
+	private long rowCount;
+	// open-addressing hash of WBAN to position + 1, 0 for an empty slot; built on first use
+	private int[] index;
+	private int indexShift;
+
+	public StationTotals() {
+		this(256);
+	}
+
+	public StationTotals(int initialCapacity) {
+		wbans = new int[Math.max(initialCapacity, 1)];
+		totals = new double[wbans.length];
+	}
+
+	/**
+	 * Add the total for a station
+	 * @param wban numeric WBAN id
+	 * @param total inches of rain
+	 */
+	public void add(int wban, double total) {
+		if (size == wbans.length) {
+			wbans = Arrays.copyOf(wbans, size * 2);
+			totals = Arrays.copyOf(totals, size * 2);
+		}
+		wbans[size] = wban;
+		totals[size] = total;
+		size++;
+		if (index != null)
+			indexPut(wban, size - 1);
+	}
+
+	/**
+	 * Add rain to a station's total, adding the station if it is new
+	 * @param wban numeric WBAN id
+	 * @param rain inches of rain
+	 */
+	public void accumulate(int wban, double rain) {
+		int i = indexOf(wban);
+		if (i >= 0)
+			totals[i] += rain;
+		else
+			add(wban, rain);
+	}
+
+	/**
+	 * Add each station total of another StationTotals to this one
+	 * @param other totals to add
+	 */
+	public void accumulateAll(StationTotals other) {
+		for (int i = 0; i < other.size; i++) {
+			accumulate(other.wbans[i], other.totals[i]);
+		}
+		rowCount += other.rowCount;
+	}
+
+	/**
+	 * @param wban numeric WBAN id
+	 * @return position of the station's first total, or -1 if it has none
+	 */
+	public int indexOf(int wban) {
+		if (index == null)
+			buildIndex(size);
+		int mask = index.length - 1;
+		for (int slot = hash(wban); ; slot = (slot + 1) & mask) {
+			int entry = index[slot];
+			if (entry == 0)
+				return -1;
+			if (wbans[entry - 1] == wban)
+				return entry - 1;
+		}
+	}
+
+	/**
+	 * Append all stations of another StationTotals after the stations of this one
+	 * @param other totals to append
+	 */
+	public void addAll(StationTotals other) {
+		int needed = size + other.size;
+		if (needed > wbans.length) {
+			int capacity = Math.max(needed, wbans.length * 2);
+			wbans = Arrays.copyOf(wbans, capacity);
+			totals = Arrays.copyOf(totals, capacity);
+		}
+		System.arraycopy(other.wbans, 0, wbans, size, other.size);
+		System.arraycopy(other.totals, 0, totals, size, other.size);
+		int first = size;
+		size = needed;
+		rowCount += other.rowCount;
+		if (index != null) {
+			for (int i = first; i < size; i++) {
+				indexPut(wbans[i], i);
+			}
+		}
+	}
+
+	/** @return number of stations */
+	public int size() { return size; }
+
+	/** @return number of precip rows summed into these totals */
+	public long getRowCount() { return rowCount; }
+
+	/**
+	 * @param rows number of precip rows summed into these totals
+	 */
+	void addRowCount(long rows) { rowCount += rows; }
+
+	/** @return WBAN id of the i-th station */
+	public int wban(int i) { return wbans[i]; }
+
+	/** @return rain total of the i-th station */
+	public double total(int i) { return totals[i]; }
+
+	private int hash(int wban) {
+		return (wban * 0x9E3779B9) >>> indexShift;
+	}
+
+	/*
+	 * (Re)build the index with room for at least the given number of stations
+	 */
+	private void buildIndex(int stations) {
+		int capacity = Integer.highestOneBit(Math.max(stations, 8) * 2 - 1) << 1;
+		index = new int[capacity];
+		indexShift = 32 - Integer.numberOfTrailingZeros(capacity);
+		for (int i = 0; i < size; i++) {
+			indexPut(wbans[i], i);
+		}
+	}
+
+	/*
+	 * Record the position of a WBAN, unless the WBAN is already indexed
+	 */
+	private void indexPut(int wban, int position) {
+		if (size * 2 > index.length) {
+			buildIndex(size);	// re-indexes every position, including this one
+			return;
+		}
+		int mask = index.length - 1;
+		for (int slot = hash(wban); ; slot = (slot + 1) & mask) {
+			int entry = index[slot];
+			if (entry == 0) {
+				index[slot] = position + 1;
+				return;
+			}
+			if (wbans[entry - 1] == wban)
+				return;
+		}
+	}
+}
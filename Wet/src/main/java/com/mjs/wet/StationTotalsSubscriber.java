@@ -0,0 +1,69 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sums the published precip blocks in a window of hours per station, as
+ * {@link Data#sumPrecip(PrecipRecords, int, int, Aggregation, StationTotals)} does for a
+ * pull loop. Blocks are requested one at a time, each as the previous one is summed.
+ */
+public class StationTotalsSubscriber implements PrecipPublisher.Subscriber {
+	private final int firstHour;
+	private final int lastHour;
+	private final StationTotals stationRain = new StationTotals();
+	private final CompletableFuture<StationTotals> result = new CompletableFuture<StationTotals>();
+	private PrecipPublisher.Subscription subscription;
+
+	/**
+	 * Sum the rain from 7AM to midnight
+	 */
+	public StationTotalsSubscriber() {
+		this(Data.LAST_NIGHT_HOUR + 1, 24);
+	}
+
+	/**
+	 * @param firstHour first hour counted
+	 * @param lastHour last hour counted
+	 */
+	public StationTotalsSubscriber(int firstHour, int lastHour) {
+		this.firstHour = firstHour;
+		this.lastHour = lastHour;
+	}
+
+	/**
+	 * @return rain total per WBAN, in order of first appearance, once the stream completes;
+	 * completed exceptionally if the stream fails
+	 */
+	public CompletableFuture<StationTotals> getResult() {
+		return result;
+	}
+
+	@Override
+	public void onSubscribe(PrecipPublisher.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(PrecipBlock block) {
+		try {
+			// runs split across blocks are combined, as for any row order
+			Data.sumPrecip(block.records(), firstHour, lastHour, Aggregation.AUTO, stationRain);
+		} catch (IOException e) {
+			// blocks are in memory
+			throw new IllegalStateException(e);
+		}
+		subscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable error) {
+		result.completeExceptionally(error);
+	}
+
+	@Override
+	public void onComplete() {
+		result.complete(stationRain);
+	}
+}
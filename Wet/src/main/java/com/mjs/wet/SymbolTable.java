@@ -0,0 +1,56 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary of names to dense int ids, 0...size-1, assigned in the order names are first seen.
+ * Names are looked up when reference files load; the join pipeline then works on the ids,
+ * and ids are resolved back to names only for output.
+ */
+public class SymbolTable {
+	static public final int NONE = -1;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private String[] names = new String[64];
+	private int size;
+
+	/**
+	 * Get the id of a name, assigning the next id if the name is new
+	 * @param name a name
+	 * @return id of the name
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+		if (size == names.length)
+			names = Arrays.copyOf(names, size * 2);
+		names[size] = name;
+		ids.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * @param name a name
+	 * @return id of the name, or NONE if it has none
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? NONE : id;
+	}
+
+	/**
+	 * @param id an id
+	 * @return the name with that id
+	 */
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/** @return number of names */
+	public int size() {
+		return size;
+	}
+}
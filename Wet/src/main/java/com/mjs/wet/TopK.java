@@ -0,0 +1,203 @@
+package com.mjs.wet;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The k highest values among ids 0 to n - 1, e.g. the wettest MSAs by MSA id, kept in a
+ * bounded min-heap so that ranking n values costs O(n log k) rather than a full sort.
+ * <p>
+ * Values can be set or added to at any time, so a ranking can be kept current as batches
+ * of precip arrive: a value that rises costs O(log k). A ranked value that falls may let
+ * an unranked one overtake it, so the heap is then rebuilt on the next read, in O(n log k).
+ * Equal values rank the lower id first.
+ */
+public class TopK {
+	private final int k;
+	private final double[] values;
+	// heap of ranked ids, lowest ranked at the root; position of each id in it, or -1
+	private final int[] heap;
+	private final int[] position;
+	private int size;
+	private int present;
+	private boolean stale;
+
+	/**
+	 * @param k number of ids to rank
+	 * @param idCount number of ids
+	 */
+	public TopK(int k, int idCount) {
+		this.k = Math.max(0, Math.min(k, idCount));
+		values = new double[idCount];
+		Arrays.fill(values, Double.NaN);
+		heap = new int[this.k];
+		position = new int[idCount];
+		Arrays.fill(position, -1);
+	}
+
+	/**
+	 * Set the value of an id
+	 * @param id id, 0 to idCount - 1
+	 * @param value new value, or NaN to remove the id from the ranking
+	 */
+	public void set(int id, double value) {
+		double old = values[id];
+		if (Double.isNaN(old) && Double.isNaN(value))
+			return;
+		values[id] = value;
+		if (Double.isNaN(old))
+			present++;
+		else if (Double.isNaN(value))
+			present--;
+		if (stale || k == 0)
+			return;
+		int i = position[id];
+		if (i >= 0) {
+			if (Double.isNaN(value)) {
+				remove(i);
+				stale = present > size;
+			} else if (value >= old) {
+				siftDown(i);
+			} else {
+				siftUp(i);
+				stale = present > size;
+			}
+		} else if (!Double.isNaN(value)) {
+			offer(id);
+		}
+	}
+
+	/**
+	 * Add to the value of an id; an id without a value starts from 0
+	 * @param id id, 0 to idCount - 1
+	 * @param delta amount to add
+	 */
+	public void add(int id, double delta) {
+		double old = values[id];
+		set(id, Double.isNaN(old) ? delta : old + delta);
+	}
+
+	/** @return value of an id, or NaN if it has none */
+	public double get(int id) {
+		return values[id];
+	}
+
+	/** @return number of ranked ids, at most k */
+	public int size() {
+		refresh();
+		return size;
+	}
+
+	/**
+	 * @return ranked ids, highest value first
+	 */
+	public int[] getTop() {
+		refresh();
+		// heapsort a copy of the heap, placing the lowest ranked at the end
+		int[] top = Arrays.copyOf(heap, size);
+		for (int n = size - 1; n > 0; n--) {
+			int lowest = top[0];
+			top[0] = top[n];
+			top[n] = lowest;
+			for (int i = 0, child; (child = 2 * i + 1) < n; i = child) {
+				if (child + 1 < n && ranksBelow(top[child + 1], top[child]))
+					child++;
+				if (!ranksBelow(top[child], top[i]))
+					break;
+				int swap = top[i];
+				top[i] = top[child];
+				top[child] = swap;
+			}
+		}
+		return top;
+	}
+
+	/**
+	 * @param names names of the ids
+	 * @return Map of name to value, highest value first
+	 */
+	public Map<String, Double> toMap(SymbolTable names) {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (int id : getTop()) {
+			result.put(names.getName(id), values[id]);
+		}
+		return result;
+	}
+
+	/*
+	 * Rebuild the heap from all values if a ranked value fell
+	 */
+	private void refresh() {
+		if (!stale)
+			return;
+		for (int i = 0; i < size; i++) {
+			position[heap[i]] = -1;
+		}
+		size = 0;
+		stale = false;
+		for (int id = 0; id < values.length; id++) {
+			if (!Double.isNaN(values[id]))
+				offer(id);
+		}
+	}
+
+	private void offer(int id) {
+		if (size < k) {
+			heap[size] = id;
+			position[id] = size;
+			siftUp(size++);
+		} else if (ranksBelow(heap[0], id)) {
+			position[heap[0]] = -1;
+			heap[0] = id;
+			position[id] = 0;
+			siftDown(0);
+		}
+	}
+
+	private void remove(int i) {
+		position[heap[i]] = -1;
+		size--;
+		if (i == size)
+			return;
+		heap[i] = heap[size];
+		position[heap[i]] = i;
+		siftDown(i);
+		siftUp(i);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!ranksBelow(heap[i], heap[parent]))
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		for (int child; (child = 2 * i + 1) < size; i = child) {
+			if (child + 1 < size && ranksBelow(heap[child + 1], heap[child]))
+				child++;
+			if (!ranksBelow(heap[child], heap[i]))
+				break;
+			swap(i, child);
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = heap[i];
+		heap[i] = heap[j];
+		heap[j] = id;
+		position[heap[i]] = i;
+		position[heap[j]] = j;
+	}
+
+	/*
+	 * True if id a ranks below id b
+	 */
+	private boolean ranksBelow(int a, int b) {
+		return values[a] < values[b] || (values[a] == values[b] && a > b);
+	}
+}
@@ -1,45 +1,23 @@
 package com.mjs.wet;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.StringJoiner;
 
 public class Utilities {
 
 	/**
-	 * Export a Map of String to Double to a csv file
+	 * Export a Map of String to Double to a file, as csv unless the file name ends in .json
+	 * or .bin, see {@link ResultExporter}
 	 * @param map Map to export
 	 * @param fileName file to export to
 	 * @param header header row of exported file
 	 */
 	public static void exportMap(Map<String, Double> map, String fileName, String header) {
-		BufferedWriter writer = null;
 		try {
-			writer = new BufferedWriter(new FileWriter(fileName));
-			writer.write(header);
-			writer.newLine();
-			for(Entry<String,Double> entry: map.entrySet()) {
-				StringBuilder sj = new StringBuilder();
-				sj.append("\"").append(entry.getKey()).append("\"").append(",");
-				sj.append(String.format("%5.2E", entry.getValue()));
-				writer.write(sj.toString());
-				writer.newLine();
-			}
+			ResultExporter.export(map, Paths.get(fileName), header);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}finally {
-			if (writer != null) {
-				try {
-					writer.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
+			PipelineMetrics.getDefault().error("exporting " + fileName, e);
 		}
 	}
 	
@@ -54,7 +32,8 @@ public class Utilities {
 	}
 
 	/**
-	 * Finds commas, but ignores commas enclosed in a quoted string
+	 * Finds commas, but ignores commas enclosed in a quoted string.
+	 * The loaders in Data use the linear-time {@link DelimitedTokenizer} instead.
 	 * @return regex for use in String.split()
 	 */
 	static public String embeddedCommaRegex() {
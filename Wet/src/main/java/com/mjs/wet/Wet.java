@@ -5,6 +5,10 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.time.LocalDate;
@@ -15,11 +19,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
 
 /**
  * @author mscholtes
@@ -32,19 +44,54 @@ public class Wet {
 	private String CSAFile;
 	private String popFile;
 	private String precipFile;
+	private boolean parallel;
+	private Aggregation aggregation = Aggregation.AUTO;
+	private PopulationModel populationModel = PopulationModel.LATEST;
+	private RainStrategy rainStrategy = RainStrategy.MEAN;
+	private Path checkpoint;
+	private PrecipSorter sorter;
 	/**
-	 * @param args
+	 * @param args optionally -parallel, to read the precip file in parallel chunks,
+	 * -sorted or -hash to choose how precip rows are summed per station,
+	 * -population followed by latest, linear or quadratic to choose how populations
+	 * are extrapolated, -rain followed by mean, max, median or weighted to choose how the stations
+	 * of an MSA are combined, -out followed by a file name to export to instead of peopleinches.csv,
+	 * as json or binary if the name ends in .json or .bin, -checkpoint followed by a file name to
+	 * add only the new precip rows to the totals saved there, see {@link IncrementalWetness},
+	 * -externalsort to sort a precip file that is not sorted by WBAN on disk, see {@link PrecipSorter}, and -metrics followed by a file name to write the run's {@link PipelineMetrics} as JSON
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		registerMetrics();
 		String wbanFile = "wbanmasterlist.psv";
 		String CSAFile = "2013Feb_CSAList1.csv";
 		String populationFile = "CBSA-EST2012-01.csv";
 		String precipFile = "201505precip.txt";
 		Wet wet = new Wet(wbanFile, CSAFile, populationFile, precipFile);
+		wet.setParallel(Arrays.asList(args).contains("-parallel"));
+		if (Arrays.asList(args).contains("-sorted"))
+			wet.setAggregation(Aggregation.SORTED);
+		else if (Arrays.asList(args).contains("-hash"))
+			wet.setAggregation(Aggregation.HASH);
+		int population = Arrays.asList(args).indexOf("-population");
+		if (population >= 0 && population + 1 < args.length)
+			wet.setPopulationModel(PopulationModel.valueOf(args[population + 1].toUpperCase(Locale.ROOT)));
+		int rain = Arrays.asList(args).indexOf("-rain");
+		if (rain >= 0 && rain + 1 < args.length)
+			wet.setRainStrategy(RainStrategy.valueOf(args[rain + 1].toUpperCase(Locale.ROOT)));
+		if (Arrays.asList(args).contains("-externalsort"))
+			wet.setSorter(new PrecipSorter(ForkJoinPool.commonPool()));
+		int checkpoint = Arrays.asList(args).indexOf("-checkpoint");
+		if (checkpoint >= 0 && checkpoint + 1 < args.length)
+			wet.setCheckpoint(Paths.get(args[checkpoint + 1]));
 		
 		Map<String, Double> msaPeopleInches = wet.getPersonWetness();
 		
-		Utilities.exportMap(msaPeopleInches, "peopleinches.csv", "MSA,PeopleInches");	
+		int out = Arrays.asList(args).indexOf("-out");
+		String outFile = out >= 0 && out + 1 < args.length ? args[out + 1] : "peopleinches.csv";
+		Utilities.exportMap(msaPeopleInches, outFile, "MSA,PeopleInches");	
+		int metrics = Arrays.asList(args).indexOf("-metrics");
+		if (metrics >= 0 && metrics + 1 < args.length)
+			PipelineMetrics.getDefault().writeSummary(Paths.get(args[metrics + 1]));
 
 		//TODO: graph it; Swing, JavaFX, JFreeChart, D3.js
 	}
@@ -88,57 +135,253 @@ public class Wet {
 		this.precipFile = precipFile;
 	}
 	
+	/**
+	 * Read the precip file by memory-mapping it and summing chunks on the common
+	 * ForkJoinPool. Only applies when the precip file is a plain file on disk.
+	 * @param parallel true to read in parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Choose how precip rows are summed per station; the default, AUTO, is correct
+	 * whether or not the precip file is sorted by WBAN
+	 * @param aggregation SORTED, HASH or AUTO
+	 */
+	public void setAggregation(Aggregation aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	/**
+	 * Choose how MSA populations are extrapolated to the date of the precip data
+	 * @param populationModel LATEST, the default, LINEAR or QUADRATIC
+	 */
+	public void setPopulationModel(PopulationModel populationModel) {
+		this.populationModel = populationModel;
+	}
+
+	/**
+	 * Choose how the rain totals of the stations in an MSA are combined
+	 * @param rainStrategy MEAN, the default, MAX, MEDIAN or WEIGHTED
+	 */
+	public void setRainStrategy(RainStrategy rainStrategy) {
+		this.rainStrategy = rainStrategy;
+	}
+
+	/**
+	 * Sort the precip file by WBAN before summing it, for files in another order that are
+	 * too large to sort in memory. Only applies when the precip file is on disk.
+	 * @param sorter external sort, or null to sum the file in its own order
+	 */
+	public void setSorter(PrecipSorter sorter) {
+		this.sorter = sorter;
+	}
+
+	/**
+	 * Keep the daytime station rain in a checkpoint: it is resumed from, only the precip
+	 * rows after the last day it has are summed, and it is saved with the new rows added
+	 * @param checkpoint checkpoint file, or null to sum the whole precip file
+	 */
+	public void setCheckpoint(Path checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
 	/**
 	 * Returns a map of MSA to the total daytime rainfall in May 2015 multiplied by 
 	 * the MSA population.
+	 * <p>
+	 * Only the join of station rain to MSAs needs all the tables, so the precip file is
+	 * summed per station while the reference tables load, see
+	 * {@link ReferenceData#load(BufferedReader, BufferedReader, BufferedReader, java.util.concurrent.Executor)}.
 	 * @return
 	 */
 	public Map<String, Double> getPersonWetness(){
-		BufferedReader wbanReader = getReader(wbanFile); // wban -> county relationship
-		BufferedReader csaReader = getReader(CSAFile); // MSA -> county relationships
-		BufferedReader popReader = getReader(popFile); // MSA -> population relationship
-		BufferedReader precipReader = getReader(precipFile); // WBAN -> precipitation data
-		
-		// map of County|State to MSA name
-		Map<String, String> msaCounties = Data.loadMsaCountyMap(csaReader);
+		// one thread each for the CSA, WBAN and population tables and the precip file
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			CompletableFuture<ReferenceData> loading = ReferenceData.load(
+					getReader(wbanFile), // wban -> county relationship
+					getReader(CSAFile), // MSA -> county relationships
+					getReader(popFile), // MSA -> population relationship
+					executor);
+			if (checkpoint != null)
+				return getIncrementalPersonWetness(loading);
+			CompletableFuture<StationTotals> summing = CompletableFuture.supplyAsync(new Supplier<StationTotals>() {
+				@Override
+				public StationTotals get() {
+					return getStationRain();
+				}
+			}, executor);
+			ReferenceData referenceData;
+			try {
+				referenceData = loading.join();
+			} catch (CompletionException e) {
+				if (!(e.getCause() instanceof IOException))
+					throw e;
+				PipelineMetrics.getDefault().error("loading reference data", (IOException) e.getCause());
+				return new LinkedHashMap<String, Double>();
+			}
+			referenceData.setPopulationModel(populationModel);
+			referenceData.setRainStrategy(rainStrategy);
+			LocalDate extrapolationDate = LocalDate.of(2015, Month.MAY, 15);
+			return getPersonWetness(referenceData, summing.join(), extrapolationDate);
+		} finally {
+			executor.shutdown();
+		}
+	}
 
-		// map of WBAN to <County, State>
-		Map<String, Pair<String,String>> wbanCounties = Data.loadWBANCountyMap(wbanReader);
-		
-		// total daytime rain per MSA
-		Map<String, List<Double>> msaRain = Data.mergeRainWithCounties(msaCounties, precipReader, wbanCounties);
-		
-		return multiplyRainTimesPeople(msaRain, popReader);
+	/*
+	 * Add the new precip rows to the checkpoint's totals and save them
+	 */
+	private Map<String, Double> getIncrementalPersonWetness(CompletableFuture<ReferenceData> loading) {
+		try {
+			ReferenceData referenceData = loading.join();
+			referenceData.setPopulationModel(populationModel);
+			referenceData.setRainStrategy(rainStrategy);
+			IncrementalWetness wetness = IncrementalWetness.load(checkpoint, referenceData,
+					LocalDate.of(2015, Month.MAY, 15));
+			Path precipPath = getPath(precipFile);
+			if (precipPath != null) {
+				wetness.ingest(precipPath);
+			} else {
+				try (PrecipRecords records = new PrecipParser(PrecipArchive.open(getStream(precipFile), precipFile))) {
+					wetness.ingest(precipFile, records);
+				}
+			}
+			wetness.save(checkpoint);
+			return wetness.getPersonWetness();
+		} catch (IOException e) {
+			PipelineMetrics.getDefault().error("updating " + checkpoint, e);
+			return new LinkedHashMap<String, Double>();
+		} catch (CompletionException e) {
+			if (!(e.getCause() instanceof IOException))
+				throw e;
+			PipelineMetrics.getDefault().error("loading reference data", (IOException) e.getCause());
+			return new LinkedHashMap<String, Double>();
+		}
 	}
 
+	/**
+	 * Join daytime station rain to MSAs and multiply by the MSA populations
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param stationRain daytime rain total per WBAN
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @return Map of MSA to people-inches, sorted descending by wetness
+	 */
+	static Map<String, Double> getPersonWetness(ReferenceData referenceData, StationTotals stationRain,
+			LocalDate extrapolationDate)
+	{
+		int[] msaPeople = referenceData.getPopulations(extrapolationDate);
+
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		// total daytime rain per MSA id
+		MsaRainfall msaRain = referenceData.getMsaRainfall(stationRain);
+		double[] msaPeopleInches = multiplyRainTimesPeople(msaRain, msaPeople, referenceData.getRainStrategy());
+
+		// resolve MSA names only for the result
+		SymbolTable msas = referenceData.getMsas();
+		HashMap<String, Double> result = new HashMap<String, Double>();
+		for (int msaId = 0; msaId < msaPeopleInches.length; msaId++) {
+			if (!Double.isNaN(msaPeopleInches[msaId]))
+				result.put(msas.getName(msaId), msaPeopleInches[msaId]);
+		}
+		Map<String, Double> sorted = sortDescending(result);
+		metrics.stop(PipelineMetrics.Stage.MULTIPLY_SORT, start, msaPeopleInches.length);
+		return sorted;
+	}
 
-	private Map<String, Double> multiplyRainTimesPeople(
-			Map<String, List<Double>> msaRain, BufferedReader popReader) 
+	/**
+	 * Join daytime station rain to MSAs and rank the k wettest, without sorting the rest
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param stationRain daytime rain total per WBAN
+	 * @param extrapolationDate LocalDate for population estimate
+	 * @param k number of MSAs to return
+	 * @return Map of MSA to people-inches for the k wettest MSAs, sorted descending by wetness
+	 */
+	static Map<String, Double> getTopPersonWetness(ReferenceData referenceData, StationTotals stationRain,
+			LocalDate extrapolationDate, int k)
 	{
-		HashMap<String, Double> msaPeopleInches = new HashMap<String, Double>();
-
-		LocalDate extrapolationDate = LocalDate.of(2015, Month.MAY, 15);
-		Map<String, Integer> msaPeople = Data.getExtrapolatedPopulations(popReader, extrapolationDate);
-
-		for(Map.Entry<String, List<Double>> entry : msaRain.entrySet()) {
-			String msa = entry.getKey();
-			List<Double> rainValues = entry.getValue();
-			double rain = 0.0d;
-			int count = 0;
-			for(Double d : rainValues){
-			    count++;
-			    rain += d;
+		int[] msaPeople = referenceData.getPopulations(extrapolationDate);
+
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		long start = metrics.start();
+		MsaRainfall msaRain = referenceData.getMsaRainfall(stationRain);
+		double[] msaPeopleInches = multiplyRainTimesPeople(msaRain, msaPeople, referenceData.getRainStrategy());
+		TopK top = new TopK(k, msaPeopleInches.length);
+		for (int msaId = 0; msaId < msaPeopleInches.length; msaId++) {
+			top.set(msaId, msaPeopleInches[msaId]);
+		}
+		Map<String, Double> result = top.toMap(referenceData.getMsas());
+		metrics.stop(PipelineMetrics.Stage.MULTIPLY_SORT, start, msaPeopleInches.length);
+		return result;
+	}
+
+	/*
+	 * Daytime rain per WBAN station. A plain file can be read from its cache, or memory-mapped.
+	 * The precip file may be a .zip or .gz, which is inflated as it is parsed.
+	 */
+	private StationTotals getStationRain() {
+		try {
+			Path precipPath = getPath(precipFile);
+			if (precipPath != null && sorter != null)
+				return Data.sumDaytimePrecipSorted(precipPath, sorter);
+			if (precipPath != null)
+				return Data.sumDaytimePrecip(precipPath, parallel ? ForkJoinPool.commonPool() : null, aggregation);
+			PipelineMetrics metrics = PipelineMetrics.getDefault();
+			long start = metrics.start();
+			InputStream precipStream = PrecipArchive.open(getStream(precipFile), precipFile);
+			try (PrecipRecords records = new PrecipParser(precipStream)) { // WBAN -> precipitation data
+				StationTotals stationRain = Data.sumDaytimePrecip(records, aggregation);
+				metrics.stop(PipelineMetrics.Stage.PRECIP_MERGE, start, stationRain.getRowCount());
+				return stationRain;
 			}
-			if (count > 0) rain /= count;
-			System.out.println("msa="+msa+"rain ="+rainValues.toString());
-			
-			int people = msaPeople.get(msa);
-			
-			msaPeopleInches.put(msa, rain * people);
+		} catch (IOException e) {
+			PipelineMetrics.getDefault().error("reading " + precipFile, e);
+			return new StationTotals();
+		}
+	}
+
+	/**
+	 * Multiply the mean station rain of each MSA by the MSA population
+	 * @param msaRain rain of the stations in each MSA
+	 * @param msaPeople population indexed by MSA id, -1 where unknown
+	 * @return people-inches indexed by MSA id, NaN for MSAs without stations or population
+	 */
+	static double[] multiplyRainTimesPeople(MsaRainfall msaRain, int[] msaPeople) 
+	{
+		return multiplyRainTimesPeople(msaRain, msaPeople, RainStrategy.MEAN);
+	}
+
+	/**
+	 * Multiply the combined station rain of each MSA by the MSA population
+	 * @param msaRain rain of the stations in each MSA
+	 * @param msaPeople population indexed by MSA id, -1 where unknown
+	 * @param rainStrategy how the station rain of an MSA is combined
+	 * @return people-inches indexed by MSA id, NaN for MSAs without stations or population
+	 */
+	static double[] multiplyRainTimesPeople(MsaRainfall msaRain, int[] msaPeople, RainStrategy rainStrategy) 
+	{
+		double[] msaPeopleInches = new double[msaRain.size()];
+		for (int msaId = 0; msaId < msaPeopleInches.length; msaId++) {
+			int people = msaPeople[msaId];
+			if (msaRain.getCount(msaId) == 0 || people < 0)
+				msaPeopleInches[msaId] = Double.NaN;
+			else
+				msaPeopleInches[msaId] = rainStrategy.combine(msaRain, msaId) * people;
 		}
-		// sort descending by wetness
+		return msaPeopleInches;
+	}
+
+	/**
+	 * Sort a map of MSA to people-inches descending by wetness
+	 * @param msaPeopleInches Map of MSA to people-inches
+	 * @return Map of MSA to people-inches, iterating from wettest to driest
+	 */
+	static Map<String, Double> sortDescending(Map<String, Double> msaPeopleInches) {
 		Set<Entry<String,Double>> set = msaPeopleInches.entrySet();
-		List<Entry<String,Double>> list = new LinkedList<Entry<String,Double>>(set);
+		List<Entry<String,Double>> list = new ArrayList<Entry<String,Double>>(set);
 		Collections.sort(list, new Comparator<Entry<String,Double>>(){
 			public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2) {
 				return (o2.getValue()).compareTo(o1.getValue());
@@ -155,14 +398,46 @@ public class Wet {
 	/*
 	 * Given a text file name on the classpath, returns a BufferedReader for it
 	 */
-	private BufferedReader getReader(String fileName) {
-		InputStream theStream = this.getClass().getResourceAsStream("/"+fileName);
+	static BufferedReader getReader(String fileName) {
+		InputStream theStream = getStream(fileName);
 		BufferedReader br = null;
 		if (theStream != null) {
 			br = new BufferedReader(new InputStreamReader(theStream));
 		}
 		return br;
 	}
+
+	/*
+	 * Publish the pipeline metrics over JMX for the length of a run
+	 */
+	static void registerMetrics() {
+		try {
+			PipelineMetrics.getDefault().register();
+		} catch (JMException e) {
+			PipelineMetrics.getDefault().error("registering metrics MBean", e);
+		}
+	}
+
+	/*
+	 * Given a file name on the classpath, returns an InputStream for it
+	 */
+	static InputStream getStream(String fileName) {
+		return Wet.class.getResourceAsStream("/"+fileName);
+	}
+
+	/*
+	 * Given a file name on the classpath, returns its Path if it is a plain file, otherwise null
+	 */
+	static Path getPath(String fileName) {
+		URL url = Wet.class.getResource("/"+fileName);
+		if (url == null || !"file".equals(url.getProtocol()))
+			return null;
+		try {
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
 	
 
 	
@@ -0,0 +1,274 @@
+package com.mjs.wet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes people-inches for many monthly precip files in one run.
+ * <p>
+ * The WBAN, CSA and population tables are loaded once and shared; the months are
+ * processed concurrently on a bounded pool. Precip files are expected to be named
+ * like the QCLCD downloads, e.g. 201505precip.txt or QCLCD201505.zip, so the month
+ * can be taken from the first six digits. Zip and gzip files are read without
+ * extracting them, see {@link PrecipArchive}.
+ */
+public class WetBatch {
+	/** population is extrapolated to the middle of each month */
+	static final int EXTRAPOLATION_DAY = 15;
+
+	private final ReferenceData referenceData;
+	private final int threads;
+
+	/**
+	 * Usage: WetBatch &lt;directory or glob&gt; [-threads n] [-out directory] [-metrics file] [-top n]
+	 * [-population latest|linear|quadratic] [-rain mean|max|median|weighted] [-format csv|json|binary]
+	 * <p>
+	 * e.g. WetBatch data/2015*precip.txt -threads 4, or WetBatch data/QCLCD2015*.zip.
+	 * With -top, the n wettest MSAs to date are printed after each month. -population chooses
+	 * how populations are extrapolated to the middle of each month, see {@link PopulationModel},
+	 * and -rain how the stations of an MSA are combined, see {@link RainStrategy}.
+	 * Besides a file per month and the cumulative file, all months are streamed into one
+	 * peopleinches-monthly file of month, MSA and people-inches, in the -format chosen.
+	 * @param args precip files, and options
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("usage: WetBatch <directory or glob> [-threads n] [-out directory] [-metrics file] [-top n]"
+					+ " [-population latest|linear|quadratic] [-rain mean|max|median|weighted] [-format csv|json|binary]");
+			return;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path outDir = Paths.get(".");
+		Path metricsFile = null;
+		int top = 0;
+		PopulationModel populationModel = PopulationModel.LATEST;
+		RainStrategy rainStrategy = RainStrategy.MEAN;
+		ResultExporter.Format format = ResultExporter.Format.CSV;
+		for (int i = 1; i < args.length - 1; i++) {
+			if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-out"))
+				outDir = Paths.get(args[++i]);
+			else if (args[i].equals("-metrics"))
+				metricsFile = Paths.get(args[++i]);
+			else if (args[i].equals("-top"))
+				top = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-population"))
+				populationModel = PopulationModel.valueOf(args[++i].toUpperCase(Locale.ROOT));
+			else if (args[i].equals("-rain"))
+				rainStrategy = RainStrategy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+			else if (args[i].equals("-format"))
+				format = ResultExporter.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+		}
+		Wet.registerMetrics();
+
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		referenceData.setPopulationModel(populationModel);
+		referenceData.setRainStrategy(rainStrategy);
+		WetBatch batch = new WetBatch(referenceData, threads);
+		SortedMap<YearMonth, Map<String, Double>> monthly = batch.getPersonWetness(findPrecipFiles(args[0]));
+
+		String extension = format.getExtension();
+		for (Map.Entry<YearMonth, Map<String, Double>> month : monthly.entrySet()) {
+			String name = "peopleinches-" + month.getKey().toString().replace("-", "") + extension;
+			Utilities.exportMap(month.getValue(), outDir.resolve(name).toString(), "MSA,PeopleInches");
+		}
+		Utilities.exportMap(cumulative(monthly), outDir.resolve("peopleinches-cumulative" + extension).toString(),
+				"MSA,PeopleInches");
+		try (ResultExporter exporter = new ResultExporter(
+				Files.newOutputStream(outDir.resolve("peopleinches-monthly" + extension)), format,
+				"Month,MSA,PeopleInches")) {
+			for (Map.Entry<YearMonth, Map<String, Double>> month : monthly.entrySet()) {
+				String name = month.getKey().toString();
+				for (Map.Entry<String, Double> msa : month.getValue().entrySet()) {
+					exporter.write(name, msa.getKey(), msa.getValue());
+				}
+			}
+		}
+		if (top > 0) {
+			TopK ranking = batch.newRanking(top);
+			for (Map.Entry<YearMonth, Map<String, Double>> month : monthly.entrySet()) {
+				batch.addToRanking(ranking, month.getValue());
+				System.out.println("through " + month.getKey() + ":");
+				for (Map.Entry<String, Double> msa : ranking.toMap(referenceData.getMsas()).entrySet()) {
+					System.out.println(String.format("  %5.2E  %s", msa.getValue(), msa.getKey()));
+				}
+			}
+		}
+		if (metricsFile != null)
+			PipelineMetrics.getDefault().writeSummary(metricsFile);
+	}
+
+	/**
+	 * @param referenceData tables shared by all months
+	 * @param threads maximum number of months processed at once
+	 */
+	public WetBatch(ReferenceData referenceData, int threads) {
+		this.referenceData = referenceData;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Compute people-inches for each monthly precip file
+	 * @param precipFiles precip files, one per month
+	 * @return Map of month to (Map of MSA to people-inches, sorted descending by wetness)
+	 * @throws IOException if a precip file cannot be read
+	 * @throws InterruptedException if interrupted while waiting for the months to finish
+	 */
+	public SortedMap<YearMonth, Map<String, Double>> getPersonWetness(List<Path> precipFiles)
+			throws IOException, InterruptedException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(precipFiles.size(), 1)));
+		try {
+			Map<YearMonth, Future<Map<String, Double>>> futures = new HashMap<YearMonth, Future<Map<String, Double>>>();
+			for (final Path file : precipFiles) {
+				final YearMonth month = getMonth(file);
+				if (futures.containsKey(month))
+					throw new IOException("more than one precip file for " + month + ": " + file);
+				futures.put(month, pool.submit(new Callable<Map<String, Double>>() {
+					@Override
+					public Map<String, Double> call() throws IOException {
+						return getPersonWetness(month, file);
+					}
+				}));
+			}
+			SortedMap<YearMonth, Map<String, Double>> monthly = new TreeMap<YearMonth, Map<String, Double>>();
+			for (Map.Entry<YearMonth, Future<Map<String, Double>>> future : futures.entrySet()) {
+				try {
+					monthly.put(future.getKey(), future.getValue().get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return monthly;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Start a running ranking of the wettest MSAs, to add months to as they are computed
+	 * @param k number of MSAs to rank
+	 * @return empty ranking over MSA ids
+	 */
+	public TopK newRanking(int k) {
+		return new TopK(k, referenceData.getMsas().size());
+	}
+
+	/**
+	 * Add one month's people-inches to a running ranking, at O(log k) per MSA, so the
+	 * ranking is never re-sorted
+	 * @param ranking ranking from {@link #newRanking(int)}
+	 * @param month Map of MSA to people-inches
+	 */
+	public void addToRanking(TopK ranking, Map<String, Double> month) {
+		SymbolTable msas = referenceData.getMsas();
+		for (Map.Entry<String, Double> entry : month.entrySet()) {
+			int msaId = msas.getId(entry.getKey());
+			if (msaId != SymbolTable.NONE)
+				ranking.add(msaId, entry.getValue());
+		}
+	}
+
+	/**
+	 * Sum people-inches per MSA over all months
+	 * @param monthly Map of month to (Map of MSA to people-inches)
+	 * @return Map of MSA to people-inches, sorted descending by wetness
+	 */
+	static public Map<String, Double> cumulative(Map<YearMonth, Map<String, Double>> monthly) {
+		Map<String, Double> total = new HashMap<String, Double>();
+		for (Map<String, Double> month : monthly.values()) {
+			for (Map.Entry<String, Double> entry : month.entrySet()) {
+				Double sum = total.get(entry.getKey());
+				total.put(entry.getKey(), sum == null ? entry.getValue() : sum + entry.getValue());
+			}
+		}
+		return Wet.sortDescending(total);
+	}
+
+	/*
+	 * People-inches for one month of precip data
+	 */
+	private Map<String, Double> getPersonWetness(YearMonth month, Path precipFile) throws IOException {
+		StationTotals stationRain = Data.sumDaytimePrecip(precipFile, null);
+		return Wet.getPersonWetness(referenceData, stationRain, month.atDay(EXTRAPOLATION_DAY));
+	}
+
+	/**
+	 * Get the month of a precip file from the first six digits of its name, e.g.
+	 * 201505precip.txt and QCLCD201505.zip are May 2015
+	 * @param precipFile precip file
+	 * @return month of the data
+	 * @throws IOException if the name has no yyyyMM
+	 */
+	static public YearMonth getMonth(Path precipFile) throws IOException {
+		String name = precipFile.getFileName().toString();
+		int digits = 0;
+		for (int i = 0; i < name.length() && digits < 6; i++) {
+			digits = Character.isDigit(name.charAt(i)) ? digits + 1 : 0;
+			if (digits == 6) {
+				try {
+					return YearMonth.of(Integer.parseInt(name.substring(i - 5, i - 1)),
+							Integer.parseInt(name.substring(i - 1, i + 1)));
+				} catch (RuntimeException e) {
+					break;
+				}
+			}
+		}
+		throw new IOException("precip file name has no yyyyMM: " + name);
+	}
+
+	/**
+	 * Find precip files given a directory, which selects its *precip.txt, *precip.txt.gz
+	 * and *.zip files, or a glob over file names, e.g. data/2015*precip.txt
+	 * @param directoryOrGlob directory or glob
+	 * @return matching files, sorted by name
+	 * @throws IOException if the directory cannot be listed
+	 */
+	static public List<Path> findPrecipFiles(String directoryOrGlob) throws IOException {
+		Path dir;
+		String glob;
+		boolean isGlob = directoryOrGlob.indexOf('*') >= 0 || directoryOrGlob.indexOf('?') >= 0;
+		if (!isGlob && Files.isDirectory(Paths.get(directoryOrGlob))) {
+			dir = Paths.get(directoryOrGlob);
+			glob = "{*precip.txt,*precip.txt.gz,*.zip}";
+		} else {
+			int slash = Math.max(directoryOrGlob.lastIndexOf('/'), directoryOrGlob.lastIndexOf(File.separatorChar));
+			dir = Paths.get(slash < 0 ? "." : slash == 0 ? "/" : directoryOrGlob.substring(0, slash));
+			glob = directoryOrGlob.substring(slash + 1);
+		}
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file) && matcher.matches(file.getFileName()))
+					files.add(file);
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+}
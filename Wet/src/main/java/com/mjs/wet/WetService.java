@@ -0,0 +1,362 @@
+package com.mjs.wet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident query service: the reference tables are loaded once, precip months are ingested
+ * once, and people-inches queries are answered over a small local HTTP endpoint.
+ * <p>
+ * Ingesting a month writes its {@link PrecipCache} and holds the month as a
+ * {@link PrecipCube}, so the station rain of any window of hours and range of days is
+ * summed without reading the data again. Results are kept in a bounded
+ * least-recently-used cache keyed by month, days and hours; MSA subsets, limits and
+ * formats are cut from the cached result, so repeated questions cost a map lookup.
+ * <pre>
+ * GET /months                 ingested months, e.g. ["2015-05"]
+ * GET /peopleinches?month=201505[&amp;from=8&amp;to=24][&amp;start=1&amp;end=31][&amp;msa=name...][&amp;top=n][&amp;format=csv]
+ * GET /metrics                {@link PipelineMetrics} summary
+ * </pre>
+ * The hours are the hours ending at from ... to o'clock; the default is the daytime window.
+ * The days are the days of the month start ... end; the default is the whole month.
+ */
+public class WetService {
+	/** default number of cached results */
+	static final int DEFAULT_CACHE_SIZE = 256;
+
+	private final ReferenceData referenceData;
+	private final ConcurrentMap<YearMonth, PrecipCube> months = new ConcurrentHashMap<YearMonth, PrecipCube>();
+	private final Map<Query, Map<String, Double>> results;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * Usage: WetService &lt;directory or glob&gt; [-port n] [-threads n]
+	 * <p>
+	 * e.g. WetService data/2015*precip.txt -port 8080, then
+	 * curl 'localhost:8080/peopleinches?month=201505&amp;top=10'
+	 * @param args precip files, and options
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: WetService <directory or glob> [-port n] [-threads n]");
+			return;
+		}
+		int port = 8080;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 1; i < args.length - 1; i++) {
+			if (args[i].equals("-port"))
+				port = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+		}
+		Wet.registerMetrics();
+		WetService service = new WetService(new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv")), DEFAULT_CACHE_SIZE);
+		for (Path precipFile : WetBatch.findPrecipFiles(args[0])) {
+			System.out.println("ingested " + service.ingest(precipFile) + " from " + precipFile);
+		}
+		service.start(port, threads);
+		System.out.println("listening on http://localhost:" + service.getPort() + "/");
+	}
+
+	/**
+	 * @param referenceData WBAN, CSA and population tables
+	 * @param cacheSize most results to keep
+	 */
+	public WetService(ReferenceData referenceData, final int cacheSize) {
+		this.referenceData = referenceData;
+		results = Collections.synchronizedMap(new LinkedHashMap<Query, Map<String, Double>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Query, Map<String, Double>> eldest) {
+				return size() > cacheSize;
+			}
+		});
+	}
+
+	/**
+	 * Make a precip file queryable, writing its cache if it has no fresh one and building
+	 * its cube. Ingesting a month again replaces it and drops its cached results.
+	 * @param precipFile precip file, named like the QCLCD downloads, see {@link WetBatch#getMonth(Path)}
+	 * @return month of the data
+	 * @throws IOException if the file cannot be read or its cache written
+	 */
+	public YearMonth ingest(Path precipFile) throws IOException {
+		YearMonth month = WetBatch.getMonth(precipFile);
+		Path cache = PrecipCache.cachePath(precipFile);
+		if (!PrecipCache.isFresh(precipFile, cache))
+			PrecipCache.write(precipFile);
+		PrecipCube cube;
+		try (PrecipRecords records = PrecipCache.isFresh(precipFile, cache) ? PrecipCache.open(cache)
+				: new PrecipParser(PrecipArchive.open(precipFile))) {
+			cube = PrecipCube.build(records);
+		}
+		months.put(month, cube);
+		synchronized (results) {
+			for (Iterator<Query> queries = results.keySet().iterator(); queries.hasNext(); ) {
+				if (queries.next().month.equals(month))
+					queries.remove();
+			}
+		}
+		return month;
+	}
+
+	/** @return ingested months, in order */
+	public List<YearMonth> getMonths() {
+		List<YearMonth> list = new ArrayList<YearMonth>(months.keySet());
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Get people-inches for a whole month and window of hours, from the result cache if possible
+	 * @param month ingested month
+	 * @param firstHour first hour counted, 1 to 24
+	 * @param lastHour last hour counted, 1 to 24
+	 * @return Map of MSA to people-inches, sorted descending by wetness; not to be modified
+	 * @throws IllegalArgumentException if the month has not been ingested or the hours are out of range
+	 */
+	public Map<String, Double> getPersonWetness(YearMonth month, int firstHour, int lastHour) {
+		return getPersonWetness(month, 1, month.lengthOfMonth(), firstHour, lastHour);
+	}
+
+	/**
+	 * Get people-inches for days of a month and window of hours, from the result cache if possible
+	 * @param month ingested month
+	 * @param firstDay first day of the month counted
+	 * @param lastDay last day of the month counted
+	 * @param firstHour first hour counted, 1 to 24
+	 * @param lastHour last hour counted, 1 to 24
+	 * @return Map of MSA to people-inches, sorted descending by wetness; not to be modified
+	 * @throws IllegalArgumentException if the month has not been ingested or the days or hours are out of range
+	 */
+	public Map<String, Double> getPersonWetness(YearMonth month, int firstDay, int lastDay, int firstHour,
+			int lastHour) {
+		PrecipCube cube = months.get(month);
+		if (cube == null)
+			throw new IllegalArgumentException("month not ingested: " + month);
+		if (firstHour < 1 || lastHour > 24 || firstHour > lastHour)
+			throw new IllegalArgumentException("hours must satisfy 1 <= from <= to <= 24");
+		if (firstDay < 1 || lastDay > month.lengthOfMonth() || firstDay > lastDay)
+			throw new IllegalArgumentException("days must satisfy 1 <= start <= end <= " + month.lengthOfMonth());
+		Query query = new Query(month, firstDay, lastDay, firstHour, lastHour);
+		Map<String, Double> result = results.get(query);
+		if (result == null) {
+			// concurrent misses on the same query may both compute it; the results are equal
+			PipelineMetrics metrics = PipelineMetrics.getDefault();
+			long start = metrics.start();
+			StationTotals stationRain = cube.sum(month.atDay(firstDay), month.atDay(lastDay), firstHour, lastHour);
+			metrics.stop(PipelineMetrics.Stage.CUBE_QUERY, start, stationRain.size());
+			result = Collections.unmodifiableMap(Wet.getPersonWetness(referenceData, stationRain,
+					month.atDay(WetBatch.EXTRAPOLATION_DAY)));
+			// a month ingested again meanwhile has dropped its results; don't cache one from the old cube
+			synchronized (results) {
+				if (months.get(month) == cube)
+					results.put(query, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Start answering queries on the loopback interface
+	 * @param port port to listen on, 0 for any free port
+	 * @param threads number of request threads
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void start(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/months", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder json = new StringBuilder("[");
+				for (YearMonth month : getMonths()) {
+					json.append(json.length() > 1 ? ", \"" : "\"").append(month).append('"');
+				}
+				send(exchange, 200, "application/json", json.append("]\n").toString());
+			}
+		});
+		server.createContext("/peopleinches", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handlePeopleInches(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "application/json", PipelineMetrics.getDefault().getSummary());
+			}
+		});
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/** @return port the service listens on */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop answering queries
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+			server = null;
+		}
+	}
+
+	private void handlePeopleInches(HttpExchange exchange) throws IOException {
+		Map<String, List<String>> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+		Map<String, Double> result;
+		int top;
+		boolean csv;
+		try {
+			String month = getParameter(parameters, "month", null);
+			if (month == null)
+				throw new IllegalArgumentException("month is required, e.g. month=201505");
+			int firstHour = Integer.parseInt(getParameter(parameters, "from", Integer.toString(Data.LAST_NIGHT_HOUR + 1)));
+			int lastHour = Integer.parseInt(getParameter(parameters, "to", "24"));
+			int firstDay = Integer.parseInt(getParameter(parameters, "start", "1"));
+			int lastDay = Integer.parseInt(getParameter(parameters, "end", "31"));
+			top = Integer.parseInt(getParameter(parameters, "top", Integer.toString(Integer.MAX_VALUE)));
+			csv = "csv".equals(getParameter(parameters, "format", "json"));
+			YearMonth yearMonth = parseMonth(month);
+			result = getPersonWetness(yearMonth, firstDay, Math.min(lastDay, yearMonth.lengthOfMonth()), firstHour,
+					lastHour);
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, "text/plain", e.getMessage() + "\n");
+			return;
+		}
+
+		List<String> msaList = parameters.get("msa");
+		Set<String> msas = msaList == null ? null : new HashSet<String>(msaList);
+		StringBuilder body = new StringBuilder(csv ? "MSA,PeopleInches\n" : "{");
+		int count = 0;
+		for (Map.Entry<String, Double> entry : result.entrySet()) {
+			if (count == top)
+				break;
+			if (msas != null && !msas.contains(entry.getKey()))
+				continue;
+			if (csv) {
+				body.append('"').append(entry.getKey()).append("\",");
+				ResultExporter.appendScientific(body, entry.getValue()).append('\n');
+			} else {
+				ResultExporter.appendJsonString(body.append(count == 0 ? "\n  " : ",\n  "), entry.getKey())
+					.append(": ").append(entry.getValue());
+			}
+			count++;
+		}
+		if (!csv)
+			body.append("\n}\n");
+		send(exchange, 200, csv ? "text/csv" : "application/json", body.toString());
+	}
+
+	/*
+	 * Parse a month given as yyyyMM or yyyy-MM
+	 */
+	private static YearMonth parseMonth(String month) {
+		try {
+			if (month.length() == 6)
+				return YearMonth.of(Integer.parseInt(month.substring(0, 4)), Integer.parseInt(month.substring(4)));
+			return YearMonth.parse(month);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("month must be yyyyMM or yyyy-MM: " + month);
+		}
+	}
+
+	private static Map<String, List<String>> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+		if (rawQuery == null)
+			return parameters;
+		for (String pair : rawQuery.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+			String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+			List<String> values = parameters.get(name);
+			if (values == null) {
+				values = new ArrayList<String>();
+				parameters.put(name, values);
+			}
+			values.add(value);
+		}
+		return parameters;
+	}
+
+	private static String getParameter(Map<String, List<String>> parameters, String name, String defaultValue) {
+		List<String> values = parameters.get(name);
+		return values == null || values.isEmpty() ? defaultValue : values.get(0);
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/*
+	 * Cache key of a result
+	 */
+	private static final class Query {
+		final YearMonth month;
+		final int firstDay;
+		final int lastDay;
+		final int firstHour;
+		final int lastHour;
+
+		Query(YearMonth month, int firstDay, int lastDay, int firstHour, int lastHour) {
+			this.month = month;
+			this.firstDay = firstDay;
+			this.lastDay = lastDay;
+			this.firstHour = firstHour;
+			this.lastHour = lastHour;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Query))
+				return false;
+			Query other = (Query) o;
+			return month.equals(other.month) && firstDay == other.firstDay && lastDay == other.lastDay
+					&& firstHour == other.firstHour && lastHour == other.lastHour;
+		}
+
+		@Override
+		public int hashCode() {
+			return (((month.hashCode() * 31 + firstDay) * 31 + lastDay) * 31 + firstHour) * 31 + lastHour;
+		}
+	}
+}
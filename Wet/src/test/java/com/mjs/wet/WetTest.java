@@ -1,12 +1,52 @@
 package com.mjs.wet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -63,6 +103,43 @@ public class WetTest {
 		assertEquals(state, "Texas");		
 	}
 
+	@Test
+	public void testDelimitedTokenizer() throws IOException {
+		DelimitedTokenizer csv = new DelimitedTokenizer(',');
+		assertEquals(12, csv.tokenize("12420,,,\"Austin-Round Rock, TX\",Metropolitan Statistical Area,,,Bastrop County,Texas,48,021,Outlying"));
+		assertEquals("Austin-Round Rock, TX", csv.getString(3));
+		assertTrue(csv.fieldEquals(4, "Metropolitan Statistical Area"));
+		assertEquals(0, csv.getField(1).length());
+		assertEquals(21, csv.getInt(10, -1));
+		assertEquals(-1, csv.getInt(7, -1));
+
+		DelimitedTokenizer psv = new DelimitedTokenizer('|');
+		assertEquals(5, psv.tokenize("\"240/940\"|\"00000\"|\"48*05'40\"\"N\"||"));
+		assertEquals("48*05'40\"N", psv.getString(2));
+		assertEquals("", psv.getString(4));
+
+		BufferedReader reader = new BufferedReader(new StringReader("\"a\"|\"line\nbreak\"|c\nd|e\n"));
+		assertEquals(3, psv.readRecord(reader));
+		assertEquals("line\nbreak", psv.getString(1));
+		assertEquals(2, psv.readRecord(reader));
+		assertEquals(-1, psv.readRecord(reader));
+
+		// a record over several lines, with quotes and delimiters on the continuation lines
+		StringBuilder lines = new StringBuilder("1|\"first");
+		for (int i = 0; i < 300; i++) {
+			lines.append("\n\"\"").append(i).append("|");
+		}
+		lines.append("\"x|last\nnext\n");
+		reader = new BufferedReader(new StringReader(lines.toString()));
+		assertEquals(3, psv.readRecord(reader));
+		assertEquals("1", psv.getString(0));
+		assertTrue(psv.getString(1).startsWith("first\n\"0|\n\"1|"));
+		assertTrue(psv.getString(1).endsWith("\n\"299|x"));
+		assertEquals("last", psv.getString(2));
+		assertEquals(1, psv.readRecord(reader));
+		assertEquals("next", psv.getString(0));
+	}
+
 	@Test
 	public void testRainParsing() {
 		String precipHeader = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag";
@@ -101,6 +178,1144 @@ public class WetTest {
 
 	}
 	
+	@Test
+	public void testPrecipParser() throws IOException {
+		String precip = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\r\n" +
+				"00103,20150523,07,0.01,\r\n" +
+				"00103,20150523,08,0.07,\r\n" +
+				"00103,20150523,11,  T,\r\n" +
+				"00103,20150523,12, ,\r\n" +
+				"bad row\r\n" +
+				"94017,20150524,24,1.25,";
+		PrecipParser parser = new PrecipParser(new ByteArrayInputStream(precip.getBytes("US-ASCII")));
+		assertTrue(parser.next());
+		assertEquals(103, parser.wban());
+		assertEquals(20150523, parser.day());
+		assertEquals(7, parser.hour());
+		assertEquals(0.01d, parser.precip(), 0.0d);
+		assertTrue(parser.next());
+		assertEquals(0.07d, parser.precip(), 0.0d);
+		assertTrue(parser.next());
+		assertTrue(parser.isTrace());
+		assertEquals(0.0d, parser.precip(), 0.0d);
+		assertTrue(parser.next());
+		assertTrue(parser.isMissing());
+		assertTrue(parser.next());
+		assertEquals(94017, parser.wban());
+		assertEquals(24, parser.hour());
+		assertEquals(1.25d, parser.precip(), 0.0d);
+		assertFalse(parser.next());
+		assertEquals(5, parser.getRowCount());
+		assertEquals(1, parser.getRejectedCount());
+		assertEquals("00103", Data.formatWban(103));
+	}
+
+	@Test
+	public void testParallelPrecipReader() throws IOException {
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 400; wban++) {
+			for (int hour = 1; hour <= 24; hour++) {
+				precip.append(Data.formatWban(wban)).append(",20150523,").append(hour).append(",")
+					.append(hour % 3 == 0 ? "  T" : "0.0" + hour % 10).append(",\n");
+			}
+		}
+		byte[] bytes = precip.toString().getBytes("US-ASCII");
+		Path file = Files.createTempFile("precip", ".txt");
+		try {
+			Files.write(file, bytes);
+			StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)));
+			StationTotals actual = ParallelPrecipReader.sumDaytimePrecip(file, new ForkJoinPool(8));
+			assertEquals(300, expected.size());
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.wban(i), actual.wban(i));
+				assertEquals(expected.total(i), actual.total(i), 0.0d);
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testUnsortedAggregation() throws IOException {
+		String precip = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n"
+				+ "00103,20150523,09,0.10,\n"
+				+ "00103,20150523,10,0.20,\n"
+				+ "00200,20150523,09,0.40,\n"
+				+ "00103,20150523,03,0.80,\n"
+				+ "00103,20150523,11,1.00,\n"
+				+ "00300,20150523,02,0.50,\n";
+		byte[] bytes = precip.getBytes("US-ASCII");
+		for (Aggregation aggregation : new Aggregation[] { Aggregation.AUTO, Aggregation.HASH }) {
+			StationTotals totals = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)), aggregation);
+			assertEquals(3, totals.size());
+			assertEquals(103, totals.wban(0));
+			assertEquals(1.3d, totals.total(0), 1e-9);
+			assertEquals(200, totals.wban(1));
+			assertEquals(0.4d, totals.total(1), 1e-9);
+			assertEquals(300, totals.wban(2));
+			assertEquals(0.0d, totals.total(2), 0.0d);
+		}
+		// sorted aggregation keeps one total per run
+		StationTotals runs = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)), Aggregation.SORTED);
+		assertEquals(4, runs.size());
+		assertEquals(0.3d, runs.total(0), 1e-9);
+		assertEquals(1.0d, runs.total(2), 1e-9);
+	}
+
+	@Test
+	public void testPrecipGenerator() throws IOException {
+		PrecipGenerator generator = new PrecipGenerator(new int[] { 103, 3927, 13904, 23174 });
+		generator.setDays(5);
+		generator.setYears(2);
+		ByteArrayOutputStream sorted = new ByteArrayOutputStream();
+		long rows = generator.write(sorted);
+		generator.setShuffled(true);
+		ByteArrayOutputStream shuffled = new ByteArrayOutputStream();
+		assertEquals(rows, generator.write(shuffled));
+		assertTrue(rows > 0 && rows < 4 * 5 * 2 * 24);
+
+		// the same rows in a different order sum to the same totals
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(sorted.toByteArray())));
+		StationTotals actual = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(shuffled.toByteArray())));
+		assertEquals(4, expected.size());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			int j = actual.indexOf(expected.wban(i));
+			assertEquals(expected.total(i), actual.total(j), 1e-9);
+		}
+	}
+
+	@Test
+	public void testPrecipCube() throws IOException {
+		PrecipGenerator generator = new PrecipGenerator(new int[] { 103, 3927, 13904, 23174 });
+		generator.setDays(6);
+		generator.setShuffled(true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		generator.write(out);
+		byte[] bytes = out.toByteArray();
+		PrecipCube cube = PrecipCube.build(new PrecipParser(new ByteArrayInputStream(bytes)));
+		assertEquals(4, cube.getStationCount());
+
+		// any window of hours over all days matches summing the file
+		int[][] windows = { { 8, 24 }, { 1, 24 }, { 1, 7 }, { 12, 12 } };
+		for (int[] window : windows) {
+			StationTotals expected = new StationTotals();
+			Data.sumPrecip(new PrecipParser(new ByteArrayInputStream(bytes)), window[0], window[1], Aggregation.AUTO,
+					expected);
+			StationTotals actual = cube.sum(window[0], window[1]);
+			assertEquals(expected.size(), actual.size());
+			assertEquals(expected.getRowCount(), actual.getRowCount());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.wban(i), actual.wban(i));
+				assertEquals(expected.total(i), actual.total(i), 1e-9);
+			}
+		}
+
+		String precip = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n" +
+				"00103,20150501,09,0.10,\n" +
+				"00103,20150502,07,0.20,\n" +
+				"00103,20150502,09,0.40,\n" +
+				"00103,20150504,24,0.80,\n" +
+				"94017,20150503,10,  T,\n" +
+				"94017,20150503,11, ,\n";
+		cube = PrecipCube.build(new PrecipParser(new ByteArrayInputStream(precip.getBytes("US-ASCII"))));
+		assertEquals(LocalDate.of(2015, 5, 1), cube.getFirstDay());
+		assertEquals(LocalDate.of(2015, 5, 4), cube.getLastDay());
+		LocalDate may2 = LocalDate.of(2015, 5, 2);
+		assertEquals(0.60d, cube.sum(0, may2, may2, 1, 24), 1e-9);
+		assertEquals(0.40d, cube.sum(0, may2, may2, 8, 24), 1e-9);
+		assertEquals(1.20d, cube.sum(0, may2, LocalDate.of(2015, 5, 31), 8, 24), 1e-9);
+		assertEquals(0.70d, cube.sum(0, LocalDate.of(2015, 4, 1), may2, 1, 24), 1e-9);
+		assertEquals(0.0d, cube.sum(0, LocalDate.of(2015, 5, 3), LocalDate.of(2015, 5, 3), 1, 24), 0.0d);
+		// only stations that reported in the range, as summing the rows of those days would
+		StationTotals totals = cube.sum(LocalDate.of(2015, 5, 3), LocalDate.of(2015, 5, 3), 1, 24);
+		assertEquals(1, totals.size());
+		assertEquals(94017, totals.wban(0));
+		assertEquals(0.0d, totals.total(0), 0.0d);
+		assertEquals(2, cube.getRowCount(1, LocalDate.of(2015, 5, 3), LocalDate.of(2015, 5, 3)));
+		assertEquals(0, cube.getRowCount(0, LocalDate.of(2015, 5, 3), LocalDate.of(2015, 5, 3)));
+		assertEquals(2, cube.sum(8, 24).size());
+
+		// one day of the generated data against its rows alone
+		StringBuilder oneDay = new StringBuilder();
+		for (String line : new String(bytes, "US-ASCII").split("\n")) {
+			if (oneDay.length() == 0 || line.contains(",20150503,"))
+				oneDay.append(line).append('\n');
+		}
+		StationTotals expected = new StationTotals();
+		Data.sumPrecip(new PrecipParser(new ByteArrayInputStream(oneDay.toString().getBytes("US-ASCII"))), 8, 24,
+				Aggregation.AUTO, expected);
+		cube = PrecipCube.build(new PrecipParser(new ByteArrayInputStream(bytes)));
+		totals = cube.sum(LocalDate.of(2015, 5, 3), LocalDate.of(2015, 5, 3), 8, 24);
+		assertTrue(expected.size() > 0);
+		assertEquals(expected.size(), totals.size());
+		for (int i = 0; i < expected.size(); i++) {
+			int j = totals.indexOf(expected.wban(i));
+			assertTrue(j >= 0);
+			assertEquals(expected.total(i), totals.total(j), 1e-9);
+		}
+
+		// a stray date centuries away is refused rather than overflowing the cube
+		StringBuilder stray = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 300; wban++) {
+			stray.append(Data.formatWban(wban)).append(",20150501,09,0.10,\n");
+		}
+		stray.append("00100,00010101,09,0.10,\n");
+		try {
+			PrecipCube.build(new PrecipParser(new ByteArrayInputStream(stray.toString().getBytes("US-ASCII"))));
+			fail("the cube would not fit in an array");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPrecipSorter() throws IOException {
+		// ordered by date, as some feeds are
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int day = 1; day <= 5; day++) {
+			for (int hour = 1; hour <= 24; hour++) {
+				for (int wban = 149; wban >= 100; wban--) {
+					precip.append(Data.formatWban(wban)).append(",2015052").append(day).append(",")
+						.append(hour).append(",").append(wban % 7 == 0 ? "  T" : "0.0" + (wban + hour) % 10)
+						.append(",\n");
+				}
+			}
+		}
+		byte[] bytes = precip.toString().getBytes("US-ASCII");
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)), Aggregation.HASH);
+		Path dir = Files.createTempDirectory("runs");
+		try {
+			PrecipSorter sorter = new PrecipSorter(new ForkJoinPool(4));
+			sorter.setMaxMemory(500L * 5 * PrecipSorter.RUN_ROW_BYTES);	// 500-row runs
+			sorter.setTempDirectory(dir);
+			assertEquals(500, sorter.getRunRows());
+			try (PrecipRecords records = sorter.sort(new PrecipParser(new ByteArrayInputStream(bytes)))) {
+				assertEquals(12, dir.toFile().list().length);
+				long previous = -1;
+				int rows = 0;
+				while (records.next()) {
+					long key = PrecipSorter.key(records.wban(), records.day(),
+							PrecipCache.encodeHour(records.hour(), false, false));
+					assertTrue(key > previous);
+					previous = key;
+					assertEquals(records.wban() % 7 == 0, records.isTrace());
+					rows++;
+				}
+				assertEquals(6000, rows);
+			}
+			assertEquals(0, dir.toFile().list().length);
+
+			StationTotals sorted = Data.sumDaytimePrecip(
+					new PrecipSorter(null).sort(new PrecipParser(new ByteArrayInputStream(bytes))), Aggregation.SORTED);
+			assertEquals(0, dir.toFile().list().length);
+			assertEquals(expected.size(), sorted.size());
+			for (int i = 0; i < sorted.size(); i++) {
+				assertEquals(100 + i, sorted.wban(i));
+				assertEquals(expected.total(expected.indexOf(100 + i)), sorted.total(i), 1e-9d);
+			}
+		} finally {
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testPrecipPublisher() throws Exception {
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 150; wban++) {
+			for (int hour = 1; hour <= 24; hour++) {
+				precip.append(Data.formatWban(wban)).append(",20150523,").append(hour).append(",")
+					.append(hour % 3 == 0 ? "  T" : "0.0" + hour % 10).append(",\n");
+			}
+		}
+		final byte[] bytes = precip.toString().getBytes("US-ASCII");
+		final PrecipPublisher publisher = new PrecipPublisher(new PrecipParser(new ByteArrayInputStream(bytes)), 100);
+		StationTotalsSubscriber aggregation = new StationTotalsSubscriber();
+		publisher.subscribe(aggregation);
+		Map<String, String> counties = Data.loadMsaCountyMap(Wet.getReader("2013Feb_CSAList1.csv"));
+		Map<String, Pair<String, String>> wbanCounties = Data.loadWBANCountyMap(Wet.getReader("wbanmasterlist.psv"));
+		CompletableFuture<Map<String, List<Double>>> msaRain = Data.mergeRainWithCounties(counties, publisher, wbanCounties);
+		// a slow consumer that takes one block, then holds the stream back until it cancels
+		final AtomicInteger slowBlocks = new AtomicInteger();
+		final AtomicReference<PrecipPublisher.Subscription> slowSubscription = new AtomicReference<PrecipPublisher.Subscription>();
+		publisher.subscribe(new PrecipPublisher.Subscriber() {
+			public void onSubscribe(PrecipPublisher.Subscription subscription) {
+				slowSubscription.set(subscription);
+				subscription.request(1);
+			}
+			public void onNext(PrecipBlock block) {
+				assertEquals(100, block.size());
+				slowBlocks.incrementAndGet();
+			}
+			public void onError(Throwable error) {
+				fail(error.toString());
+			}
+			public void onComplete() {
+				fail("cancelled before the end");
+			}
+		});
+		// a consumer that asks for no blocks is told so and does not hold the stream back
+		final AtomicReference<Throwable> invalid = new AtomicReference<Throwable>();
+		publisher.subscribe(new PrecipPublisher.Subscriber() {
+			public void onSubscribe(PrecipPublisher.Subscription subscription) {
+				subscription.request(0);
+			}
+			public void onNext(PrecipBlock block) {
+				fail("no blocks were requested");
+			}
+			public void onError(Throwable error) {
+				invalid.set(error);
+			}
+			public void onComplete() {
+				fail("the stream had failed");
+			}
+		});
+
+		Thread reader = new Thread(publisher);
+		reader.start();
+		for (int i = 0; i < 500 && slowBlocks.get() == 0; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(1, slowBlocks.get());
+		assertFalse(aggregation.getResult().isDone());
+		assertTrue(invalid.get() instanceof IllegalArgumentException);
+		slowSubscription.get().cancel();
+		reader.join(5000);
+		assertEquals(1, slowBlocks.get());
+
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)));
+		StationTotals actual = aggregation.getResult().join();
+		assertEquals(expected.size(), actual.size());
+		assertEquals(1200, actual.getRowCount());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.wban(i), actual.wban(i));
+			assertEquals(expected.total(i), actual.total(i), 1e-9d);
+		}
+		assertEquals(Data.mergeRainWithCounties(counties, new ByteArrayInputStream(bytes), wbanCounties), msaRain.join());
+
+		final AtomicReference<Throwable> late = new AtomicReference<Throwable>();
+		publisher.subscribe(new StationTotalsSubscriber() {
+			@Override
+			public void onError(Throwable error) {
+				late.set(error);
+			}
+		});
+		assertTrue(late.get() instanceof IllegalStateException);
+
+		// a subscriber that throws is dropped and told why; the others still complete
+		PrecipPublisher throwing = new PrecipPublisher(new PrecipParser(new ByteArrayInputStream(bytes)), 100);
+		StationTotalsSubscriber broken = new StationTotalsSubscriber() {
+			@Override
+			public void onNext(PrecipBlock block) {
+				throw new IllegalStateException("broken subscriber");
+			}
+		};
+		StationTotalsSubscriber healthy = new StationTotalsSubscriber();
+		throwing.subscribe(broken);
+		throwing.subscribe(healthy);
+		throwing.run();
+		assertTrue(broken.getResult().isCompletedExceptionally());
+		assertEquals(expected.size(), healthy.getResult().join().size());
+
+		// a source that throws fails the stream, even when read on an executor
+		PrecipPublisher failing = new PrecipPublisher(new PrecipRecords() {
+			public boolean next() { throw new IllegalStateException("malformed source"); }
+			public int wban() { return 0; }
+			public int day() { return 0; }
+			public int hour() { return 0; }
+			public double precip() { return 0.0d; }
+			public boolean isTrace() { return false; }
+			public boolean isMissing() { return false; }
+			public void close() { }
+		});
+		StationTotalsSubscriber waiting = new StationTotalsSubscriber();
+		failing.subscribe(waiting);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(failing);
+			waiting.getResult().handle(new BiFunction<StationTotals, Throwable, Void>() {
+				public Void apply(StationTotals stationRain, Throwable error) {
+					return null;
+				}
+			}).get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(waiting.getResult().isCompletedExceptionally());
+	}
+
+	@Test
+	public void testMsaRainfall() {
+		MsaRainfall msaRain = new MsaRainfall(3, true);
+		// more values than the initial capacity
+		double[] rains = { 0.5d, 2.0d, 0.25d, 1.0d, 3.0d, 0.75d };
+		for (double rain : rains) {
+			msaRain.add(0, rain);
+		}
+		msaRain.add(1, 1.0d, 1.0d);
+		msaRain.add(1, 4.0d, 0.5d);
+		msaRain.add(1, 2.0d, 0.5d);
+
+		assertEquals(3, msaRain.size());
+		assertTrue(msaRain.hasValues());
+		assertEquals(6, msaRain.getCount(0));
+		assertEquals(7.5d, msaRain.getSum(0), 1e-9d);
+		assertEquals(1.25d, msaRain.getMean(0), 1e-9d);
+		assertEquals(0.25d, msaRain.getMin(0), 1e-9d);
+		assertEquals(3.0d, msaRain.getMax(0), 1e-9d);
+		assertEquals(0.875d, msaRain.getMedian(0), 1e-9d);
+		assertTrue(Arrays.equals(rains, msaRain.getValues(0)));
+		assertEquals(2.0d, msaRain.getMedian(1), 1e-9d);
+		assertEquals(2.0d, msaRain.getWeightedMean(1), 1e-9d);
+		assertEquals(7.0d / 3.0d, msaRain.getMean(1), 1e-9d);
+		assertEquals(0, msaRain.getCount(2));
+		assertEquals(0.0d, msaRain.getMedian(2), 1e-9d);
+		assertEquals(0, msaRain.getValues(2).length);
+
+		assertEquals(7.0d / 3.0d, RainStrategy.MEAN.combine(msaRain, 1), 1e-9d);
+		assertEquals(4.0d, RainStrategy.MAX.combine(msaRain, 1), 1e-9d);
+		assertEquals(2.0d, RainStrategy.MEDIAN.combine(msaRain, 1), 1e-9d);
+		assertEquals(2.0d, RainStrategy.WEIGHTED.combine(msaRain, 1), 1e-9d);
+		assertTrue(RainStrategy.MEDIAN.needsValues());
+		assertFalse(RainStrategy.MAX.needsValues());
+
+		double[] peopleInches = Wet.multiplyRainTimesPeople(msaRain, new int[] { 10, 100, 1000 }, RainStrategy.MAX);
+		assertEquals(30.0d, peopleInches[0], 1e-9d);
+		assertEquals(400.0d, peopleInches[1], 1e-9d);
+		assertTrue(Double.isNaN(peopleInches[2]));
+
+		MsaRainfall noValues = new MsaRainfall(1);
+		noValues.add(0, -1.0d);
+		assertFalse(noValues.hasValues());
+		assertEquals(-1.0d, noValues.getMax(0), 1e-9d);
+		try {
+			noValues.getMedian(0);
+			fail("median without the station values");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPrecipCache() throws IOException {
+		String precip = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n" +
+				"00200,20150523,09,0.25,\n" +
+				"00103,20150523,08,0.07,\n" +
+				"00200,20150523,10,  T,\n" +
+				"00103,20150524,11, ,\n";
+		Path file = Files.createTempFile("precip", ".txt");
+		Path cache = PrecipCache.cachePath(file);
+		try {
+			Files.write(file, precip.getBytes("US-ASCII"));
+			assertFalse(PrecipCache.isFresh(file, cache));
+			PrecipCache.write(file);
+			assertTrue(PrecipCache.isFresh(file, cache));
+			assertTrue(PrecipCache.verify(file, cache));
+			try (PrecipRecords records = PrecipCache.open(cache)) {
+				assertTrue(records.next());
+				assertEquals(103, records.wban());
+				assertEquals(20150523, records.day());
+				assertEquals(8, records.hour());
+				assertEquals(0.07d, records.precip(), 0.0d);
+				assertTrue(records.next());
+				assertEquals(103, records.wban());
+				assertTrue(records.isMissing());
+				assertTrue(records.next());
+				assertEquals(200, records.wban());
+				assertEquals(0.25d, records.precip(), 0.0d);
+				assertTrue(records.next());
+				assertTrue(records.isTrace());
+				assertFalse(records.next());
+			}
+			StationTotals totals = Data.sumDaytimePrecip(file, null);
+			assertEquals(2, totals.size());
+			assertEquals(0.25d, totals.total(1), 0.0d);
+		} finally {
+			Files.deleteIfExists(cache);
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testOffHeapPrecipStore() throws IOException {
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 200; wban++) {
+			for (int hour = 1; hour <= 24; hour++) {
+				precip.append(Data.formatWban(wban)).append(",20150523,").append(hour).append(",")
+					.append(hour % 3 == 0 ? "  T" : hour % 5 == 0 ? " " : "0.0" + hour % 10).append(",\n");
+			}
+		}
+		byte[] bytes = precip.toString().getBytes("US-ASCII");
+		// small segments, so parts and stations straddle segment boundaries
+		OffHeapPrecipStore store = new OffHeapPrecipStore(1000);
+		assertEquals(0, store.append(new PrecipParser(new ByteArrayInputStream(bytes))));
+		assertEquals(1, store.append(new PrecipParser(new ByteArrayInputStream(bytes))));
+		assertEquals(2, store.getPartCount());
+		assertEquals(4800, store.getRowCount());
+		assertEquals(2400, store.getPartStart(1));
+		assertEquals(5 * 1000 * OffHeapPrecipStore.ROW_BYTES, store.getOffHeapBytes());
+
+		try (PrecipParser parser = new PrecipParser(new ByteArrayInputStream(bytes));
+				PrecipRecords records = store.records(1)) {
+			while (parser.next()) {
+				assertTrue(records.next());
+				assertEquals(parser.wban(), records.wban());
+				assertEquals(parser.day(), records.day());
+				assertEquals(parser.hour(), records.hour());
+				assertEquals(parser.precip(), records.precip(), 0.0d);
+				assertEquals(parser.isTrace(), records.isTrace());
+				assertEquals(parser.isMissing(), records.isMissing());
+			}
+			assertFalse(records.next());
+		}
+
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)));
+		StationTotals sequential = Data.sumDaytimePrecip(store, 1, null);
+		StationTotals parallel = Data.sumDaytimePrecip(store, 1, new ForkJoinPool(4));
+		StationTotals both = Data.sumPrecip(store, 0, store.getRowCount(), 8, 24, new ForkJoinPool(4));
+		assertEquals(100, expected.size());
+		assertEquals(expected.size(), parallel.size());
+		assertEquals(expected.size(), both.size());
+		assertEquals(2400, parallel.getRowCount());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.wban(i), sequential.wban(i));
+			assertEquals(expected.total(i), sequential.total(i), 0.0d);
+			assertEquals(expected.wban(i), parallel.wban(i));
+			assertEquals(expected.total(i), parallel.total(i), 1e-9d);
+			assertEquals(2 * expected.total(i), both.total(i), 1e-9d);
+		}
+	}
+
+	@Test
+	public void testPrecipArchive() throws IOException {
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 2100; wban++) {
+			for (int hour = 6; hour <= 12; hour++) {
+				precip.append(Data.formatWban(wban)).append(",20150523,").append(hour).append(",0.0")
+					.append(wban % 10).append(",\n");
+			}
+		}
+		byte[] bytes = precip.toString().getBytes("US-ASCII");
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)));
+
+		// the read-ahead stream hands over every byte, across many small blocks
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		try (InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(bytes), 1000, 2, "test")) {
+			byte[] buffer = new byte[777];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				copy.write(buffer, 0, n);
+			}
+		}
+		assertTrue(Arrays.equals(bytes, copy.toByteArray()));
+
+		// a RuntimeException on the reader thread reaches the consumer rather than leaving it waiting
+		InputStream failing = new InputStream() {
+			private int left = 1500;
+
+			@Override
+			public int read() {
+				if (left == 0)
+					throw new IllegalStateException("inflater failed");
+				left--;
+				return 'x';
+			}
+		};
+		try (InputStream in = new ReadAheadInputStream(failing, 1000, 2, "failing")) {
+			byte[] buffer = new byte[1000];
+			assertEquals(1000, in.read(buffer));
+			try {
+				while (in.read(buffer) >= 0) {
+				}
+				fail("expected the reader thread's exception");
+			} catch (IOException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+
+		Path dir = Files.createTempDirectory("archive");
+		Path zip = dir.resolve("QCLCD201505.zip");
+		Path gz = dir.resolve("201505precip.txt.gz");
+		try {
+			try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+				out.putNextEntry(new ZipEntry("201505station.txt"));
+				out.write("not precip".getBytes("US-ASCII"));
+				out.putNextEntry(new ZipEntry("201505precip.txt"));
+				out.write(bytes);
+				out.putNextEntry(new ZipEntry("201505hourly.txt"));
+				out.write("not precip either".getBytes("US-ASCII"));
+			}
+			try (GZIPOutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+				out.write(bytes);
+			}
+			for (Path archive : Arrays.asList(zip, gz)) {
+				StationTotals actual = Data.sumDaytimePrecip(archive, new ForkJoinPool(2));
+				assertEquals(expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertEquals(expected.wban(i), actual.wban(i));
+					assertEquals(expected.total(i), actual.total(i), 0.0d);
+				}
+			}
+			Path cache = PrecipCache.write(zip);
+			try {
+				assertTrue(PrecipCache.verify(zip, cache));
+			} finally {
+				Files.delete(cache);
+			}
+		} finally {
+			Files.deleteIfExists(zip);
+			Files.deleteIfExists(gz);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testPipelineMetrics() throws Exception {
+		PipelineMetrics metrics = PipelineMetrics.getDefault();
+		metrics.reset();
+		String precip = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n"
+				+ "00103,20150523,09,0.10,\n"
+				+ "00103,20150523,10,  T,\n"
+				+ "WBAN?,20150523,10,0.10,\n"
+				+ "00200,20150523,09,0.40,\n"
+				+ "00300,20150523,09,0.50,\n";
+		StationTotals stationRain = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(precip.getBytes("US-ASCII"))));
+		assertEquals(4, stationRain.getRowCount());
+		StationTable stations = new StationTable();
+		stations.put(103, "TRAVIS", "TX");
+		stations.put(200, "LOVING", "TX");
+		stations.putWithoutCounty(300);
+		stations.putWithoutCounty(103);
+		assertEquals(1, stations.getStationsWithoutCounty());
+		int[] msaIds = { 0, CountyMsaTable.NO_MSA };
+		MsaRainfall msaRain = Data.mergeRainByMsa(stationRain, stations, msaIds, 1);
+		assertEquals(1, msaRain.getCount(0));
+
+		assertEquals(4, metrics.getRowsRead());
+		assertEquals(1, metrics.getRejectedRows());
+		assertEquals(1, metrics.getTraceValues());
+		assertEquals(0, metrics.getWbansWithoutCounty());
+		// WBAN 300 has precip data but is not in the station table
+		assertEquals(1, metrics.getPrecipWbansWithoutCounty());
+		Data.mergeRainByMsa(stationRain, stations, msaIds, 1);
+		assertEquals(1, metrics.getPrecipWbansWithoutCounty());
+
+		// unmatched stations are counted once per load of the reference tables, not per join
+		StationTable listed = Data.loadStationTable(Wet.getReader("wbanmasterlist.psv"));
+		int countiesWithoutMsa = 0;
+		for (int msaId : listed.getMsaIds(Data.loadCountyMsaTable(Wet.getReader("2013Feb_CSAList1.csv")))) {
+			if (msaId == CountyMsaTable.NO_MSA)
+				countiesWithoutMsa++;
+		}
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		referenceData.getMsaRainfall(stationRain);
+		referenceData.getMsaRainfall(stationRain);
+		assertTrue(listed.getStationsWithoutCounty() > 0);
+		assertEquals(listed.getStationsWithoutCounty(), metrics.getWbansWithoutCounty());
+		assertEquals(countiesWithoutMsa, metrics.getCountiesWithoutMsa());
+		assertTrue(metrics.getSummary().contains("\"rowsRead\": 4"));
+
+		metrics.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(4L, server.getAttribute(new ObjectName(PipelineMetrics.OBJECT_NAME), "RowsRead"));
+		metrics.reset();
+		assertEquals(0, metrics.getRowsRead());
+	}
+
+	@Test
+	public void testTopK() throws IOException {
+		Random random = new Random(42);
+		double[] values = new double[500];
+		TopK top = new TopK(10, values.length);
+		for (int id = 0; id < values.length; id++) {
+			values[id] = random.nextInt(1000);
+			top.set(id, values[id]);
+		}
+		assertRanking(values, 10, top);
+
+		// rising and falling values, and ids leaving the ranking
+		for (int i = 0; i < 2000; i++) {
+			int id = random.nextInt(values.length);
+			if (i % 100 == 0) {
+				values[id] = Double.NaN;
+				top.set(id, Double.NaN);
+			} else {
+				double delta = random.nextInt(200) - (i % 3 == 0 ? 150 : 0);
+				values[id] = (Double.isNaN(values[id]) ? 0 : values[id]) + delta;
+				top.add(id, delta);
+			}
+			if (i % 50 == 0)
+				assertRanking(values, 10, top);
+		}
+		assertRanking(values, 10, top);
+
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		PrecipGenerator generator = new PrecipGenerator(PrecipGenerator.getStationWbans(referenceData.getStations(), 200));
+		generator.setDays(3);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		generator.write(out);
+		StationTotals stationRain = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(out.toByteArray())));
+		LocalDate date = LocalDate.of(2015, 5, 15);
+		Map<String, Double> all = Wet.getPersonWetness(referenceData, stationRain, date);
+		Map<String, Double> top5 = Wet.getTopPersonWetness(referenceData, stationRain, date, 5);
+		assertEquals(5, top5.size());
+		Iterator<Map.Entry<String, Double>> expected = all.entrySet().iterator();
+		for (Map.Entry<String, Double> entry : top5.entrySet()) {
+			assertEquals(expected.next().getValue(), entry.getValue());
+			assertEquals(all.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/*
+	 * Check a ranking against sorting all values
+	 */
+	private static void assertRanking(double[] values, int k, TopK top) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int id = 0; id < values.length; id++) {
+			if (!Double.isNaN(values[id]))
+				ids.add(id);
+		}
+		final double[] v = values;
+		Collections.sort(ids, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(v[b], v[a]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		int[] ranked = top.getTop();
+		assertEquals(Math.min(k, ids.size()), ranked.length);
+		for (int i = 0; i < ranked.length; i++) {
+			assertEquals((int) ids.get(i), ranked[i]);
+			assertEquals(values[ranked[i]], top.get(ranked[i]), 0.0d);
+		}
+	}
+
+	@Test
+	public void testPopulationTable() throws IOException {
+		String table = "CBSA Code,Metro Division Code,Metropolitan statistical areas,Census,Estimates base,2010,2011,2012\n"
+				+ "10180,,\"Abilene, TX\",\"165,252\",\"165,252\",\"165,578\",\"166,481\",\"166,963\"\n"
+				+ "12420,,\"Austin-Round Rock, TX\",\"1,716,289\",\"1,716,323\",\"1,727,703\",\"1,780,608\",\"1,834,303\"\n"
+				+ "14460,14454,\"Boston, MA\",\"1,887,792\",\"1,887,792\",\"1,889,847\",\"1,905,815\",\"1,928,007\"\n";
+		SymbolTable msas = new SymbolTable();
+		int abilene = msas.intern("Abilene, TX");
+		int austin = msas.intern("Austin-Round Rock, TX");
+		int unknown = msas.intern("Nowhere, TX");
+		PopulationTable populations = new PopulationTable(new BufferedReader(new StringReader(table)), msas);
+
+		LocalDate may2015 = LocalDate.of(2015, 5, 15);
+		int[] latest = populations.getPopulations(may2015, PopulationModel.LATEST);
+		assertEquals(166963, latest[abilene]);
+		assertEquals(1834303, latest[austin]);
+		assertEquals(-1, latest[unknown]);
+		assertTrue(latest == populations.getPopulations(may2015, PopulationModel.LATEST));
+
+		// at July 1, 2011 the line passes through the mean and the parabola through the 2011 estimate
+		LocalDate july2011 = LocalDate.of(2011, 7, 1);
+		assertEquals(1780871, populations.getPopulations(july2011, PopulationModel.LINEAR)[austin]);
+		assertEquals(1780608, populations.getPopulations(july2011, PopulationModel.QUADRATIC)[austin]);
+		double t = (may2015.toEpochDay() - july2011.toEpochDay()) / 365.25d;
+		int[] linear = populations.getPopulations(may2015, PopulationModel.LINEAR);
+		assertEquals(Math.round((1727703 + 1780608 + 1834303) / 3.0d + t * (1834303 - 1727703) / 2.0d), linear[austin]);
+		int[] quadratic = populations.getPopulations(may2015, PopulationModel.QUADRATIC);
+		assertTrue(quadratic[austin] > latest[austin]);
+		assertEquals(-1, quadratic[unknown]);
+
+		Map<String, Integer> byName = Data.getExtrapolatedPopulations(new BufferedReader(new StringReader(table)), may2015);
+		assertEquals(Integer.valueOf(166963), byName.get("Abilene, TX"));
+		assertEquals(Integer.valueOf(1928007), byName.get("Boston, MA"));
+		assertEquals(3, byName.size());
+
+		// a table that names its own MSAs, growing past its initial capacity
+		StringBuilder many = new StringBuilder(table);
+		for (int i = 0; i < 40; i++) {
+			many.append("99").append(i).append(",,\"Place ").append(i).append(", TX\",\"1,000\",\"1,000\",\"1,000\",\"1,000\",\"")
+					.append(1000 + i).append("\"\n");
+		}
+		PopulationTable named = new PopulationTable(new BufferedReader(new StringReader(many.toString())));
+		assertEquals(43, named.getMsas().size());
+		int[] namedLatest = named.getPopulations(may2015, PopulationModel.LATEST);
+		assertEquals(43, namedLatest.length);
+		assertEquals(1834303, namedLatest[named.getMsas().getId("Austin-Round Rock, TX")]);
+		assertEquals(1039, namedLatest[named.getMsas().getId("Place 39, TX")]);
+
+		// indexed by another dictionary, as if parsed against it
+		PopulationTable reindexed = named.reindex(msas);
+		for (PopulationModel model : PopulationModel.values()) {
+			assertTrue(Arrays.equals(populations.getPopulations(may2015, model), reindexed.getPopulations(may2015, model)));
+		}
+	}
+
+	@Test
+	public void testResultExporter() throws IOException {
+		Random random = new Random(7);
+		double[] values = { 0.0d, -0.0d, 1.0d, 1.125d, 2.675d, 9.995d, 9.9949d, 999.5d, 0.001d, 1e-5d, -3.2e8d,
+				123456789.0d, Double.NaN, Double.POSITIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE };
+		for (double value : values) {
+			assertEquals(String.format("%5.2E", value), ResultExporter.appendScientific(new StringBuilder(), value).toString());
+		}
+		assertEquals("\"Coeur d'Alene, ID \\\"x\\\" \\\\ \\u000a\"",
+				ResultExporter.appendJsonString(new StringBuilder(), "Coeur d'Alene, ID \"x\" \\ \n").toString());
+		for (int i = 0; i < 100000; i++) {
+			double value = Math.pow(10, random.nextInt(40) - 20) * random.nextDouble();
+			assertEquals(String.format("%5.2E", value), ResultExporter.appendScientific(new StringBuilder(), value).toString());
+		}
+
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		result.put("Austin-Round Rock, TX", 3.216e8d);
+		result.put("Say \"Cheese\", WI", 1.0d);
+		StringWriter csv = new StringWriter();
+		try (ResultExporter exporter = new ResultExporter(csv, ResultExporter.Format.CSV, "MSA,PeopleInches")) {
+			exporter.writeAll(result);
+		}
+		String newline = System.lineSeparator();
+		assertEquals("MSA,PeopleInches" + newline + "\"Austin-Round Rock, TX\",3.22E+08" + newline
+				+ "\"Say \"Cheese\", WI\",1.00E+00" + newline, csv.toString());
+
+		StringWriter json = new StringWriter();
+		try (ResultExporter exporter = new ResultExporter(json, ResultExporter.Format.JSON, "Month,MSA,PeopleInches")) {
+			exporter.write("2015-05", "Austin-Round Rock, TX", 3.216e8d);
+			exporter.write("2015-06", "Say \"Cheese\", WI", Double.NaN);
+		}
+		assertEquals("[\n  {\"Month\": \"2015-05\", \"MSA\": \"Austin-Round Rock, TX\", \"PeopleInches\": 3.22E+08},"
+				+ "\n  {\"Month\": \"2015-06\", \"MSA\": \"Say \\\"Cheese\\\", WI\", \"PeopleInches\": null}\n]\n",
+				json.toString());
+
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		try (ResultExporter exporter = new ResultExporter(binary, ResultExporter.Format.BINARY, "MSA,PeopleInches")) {
+			exporter.writeAll(result);
+			assertEquals(2, exporter.getRowCount());
+		}
+		assertEquals(result, ResultExporter.readBinary(new ByteArrayInputStream(binary.toByteArray())));
+		assertEquals(ResultExporter.Format.JSON, ResultExporter.Format.forFileName("peopleinches.JSON"));
+	}
+
+	@Test
+	public void testReferenceDataLoad() throws IOException {
+		ReferenceData sequential = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			ReferenceData concurrent = ReferenceData.load(Wet.getReader("wbanmasterlist.psv"),
+					Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"), executor).join();
+			assertEquals(sequential.getMsas().size(), concurrent.getMsas().size());
+			LocalDate date = LocalDate.of(2015, 5, 15);
+			assertTrue(Arrays.equals(sequential.getPopulations(date), concurrent.getPopulations(date)));
+			StationTotals stationRain = new StationTotals();
+			stationRain.add(13904, 1.0d);
+			stationRain.add(23174, 2.0d);
+			assertEquals(Wet.getPersonWetness(sequential, stationRain, date),
+					Wet.getPersonWetness(concurrent, stationRain, date));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIncrementalWetness() throws IOException {
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		LocalDate date = LocalDate.of(2015, 5, 15);
+		String header = "Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n";
+		StringBuilder firstDays = new StringBuilder(header);
+		StringBuilder allDays = new StringBuilder(header);
+		for (int wban : new int[] { 121, 124, 130, 99999 }) {
+			for (int day = 1; day <= 5; day++) {
+				for (int hour = 6; hour <= 10; hour++) {
+					String row = Data.formatWban(wban) + ",2015050" + day + "," + hour + ",0.0" + (wban + day + hour) % 10 + ",\n";
+					if (day <= 3)
+						firstDays.append(row);
+					allDays.append(row);
+				}
+			}
+		}
+		Path checkpoint = Files.createTempFile("wetness", ".ckpt");
+		try {
+			Files.delete(checkpoint);
+			IncrementalWetness wetness = IncrementalWetness.load(checkpoint, referenceData, date);
+			assertEquals(60, wetness.ingest("201505precip.txt",
+					new PrecipParser(new ByteArrayInputStream(firstDays.toString().getBytes("US-ASCII")))));
+			assertEquals(20150503, wetness.getLastDay("201505precip.txt"));
+			wetness.save(checkpoint);
+
+			// the month file is republished with two more days; only those are read
+			IncrementalWetness resumed = IncrementalWetness.load(checkpoint, referenceData, date);
+			assertEquals(20150503, resumed.getLastDay("201505precip.txt"));
+			assertEquals(40, resumed.ingest("201505precip.txt",
+					new PrecipParser(new ByteArrayInputStream(allDays.toString().getBytes("US-ASCII")))));
+			assertEquals(0, resumed.ingest("201505precip.txt",
+					new PrecipParser(new ByteArrayInputStream(allDays.toString().getBytes("US-ASCII")))));
+			assertEquals(100, resumed.getStationRain().getRowCount());
+
+			StationTotals stationRain = Data.sumDaytimePrecip(
+					new PrecipParser(new ByteArrayInputStream(allDays.toString().getBytes("US-ASCII"))));
+			Map<String, Double> expected = Wet.getPersonWetness(referenceData, stationRain, date);
+			Map<String, Double> actual = resumed.getPersonWetness();
+			assertEquals(expected.keySet(), actual.keySet());
+			assertFalse(expected.isEmpty());
+			for (Map.Entry<String, Double> entry : expected.entrySet()) {
+				assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-6d * entry.getValue());
+			}
+		} finally {
+			Files.deleteIfExists(checkpoint);
+		}
+
+		// every strategy, over an MSA with several stations, two of them in one county
+		StringBuilder earlier = new StringBuilder(header);
+		StringBuilder later = new StringBuilder(header);
+		StringBuilder all = new StringBuilder(header);
+		for (int wban : new int[] { 191, 198, 218, 390, 121 }) {
+			for (int day = 1; day <= 4; day++) {
+				if (wban == 390 && day <= 2)
+					continue;
+				String row = Data.formatWban(wban) + ",2015050" + day + ",12,0." + (wban * day) % 97 + ",\n";
+				(day <= 2 ? earlier : later).append(row);
+				all.append(row);
+			}
+		}
+		StationTotals stationRain = Data.sumDaytimePrecip(
+				new PrecipParser(new ByteArrayInputStream(all.toString().getBytes("US-ASCII"))));
+		Map<RainStrategy, Double> charleston = new HashMap<RainStrategy, Double>();
+		try {
+			for (RainStrategy strategy : RainStrategy.values()) {
+				referenceData.setRainStrategy(strategy);
+				IncrementalWetness wetness = new IncrementalWetness(referenceData, date);
+				wetness.ingest("earlier.txt", new PrecipParser(new ByteArrayInputStream(earlier.toString().getBytes("US-ASCII"))));
+				wetness.ingest("later.txt", new PrecipParser(new ByteArrayInputStream(later.toString().getBytes("US-ASCII"))));
+				Map<String, Double> expected = Wet.getPersonWetness(referenceData, stationRain, date);
+				Map<String, Double> actual = wetness.getPersonWetness();
+				assertEquals(expected.keySet(), actual.keySet());
+				for (Map.Entry<String, Double> entry : expected.entrySet()) {
+					assertEquals(entry.getValue(), actual.get(entry.getKey()), 1e-6d * entry.getValue());
+				}
+				charleston.put(strategy, actual.get("Charleston-North Charleston, SC"));
+			}
+		} finally {
+			referenceData.setRainStrategy(RainStrategy.MEAN);
+		}
+		assertEquals(RainStrategy.values().length, new HashSet<Double>(charleston.values()).size());
+	}
+
+	@Test
+	public void testPartialAggregate() throws IOException {
+		StringBuilder precip = new StringBuilder("Wban,YearMonthDay,Hour,Precipitation,PrecipitationFlag\n");
+		for (int wban = 100; wban < 400; wban += 3) {
+			for (int hour = 1; hour <= 24; hour++) {
+				precip.append(Data.formatWban(wban)).append(",2015052").append(hour % 3 + 1).append(",").append(hour)
+					.append(",").append(hour % 4 == 0 ? "  T" : "0.0" + (wban + hour) % 10).append(",\n");
+			}
+		}
+		byte[] bytes = precip.toString().getBytes("US-ASCII");
+		StationTotals expected = Data.sumDaytimePrecip(new PrecipParser(new ByteArrayInputStream(bytes)));
+		PartialAggregate[] partials = new PartialAggregate[3];
+		int[] bounds = { 0, 200, 300, Integer.MAX_VALUE };
+		for (int i = 0; i < partials.length; i++) {
+			partials[i] = PartialAggregate.compute("precip#" + i, new PrecipParser(new ByteArrayInputStream(bytes)),
+					bounds[i], bounds[i + 1]);
+		}
+		assertEquals(34, partials[0].size());
+		assertEquals(17, partials[0].getCount(100));
+		assertEquals(0, partials[1].getCount(100));
+
+		// saved and read back, merged in two different orders and groupings
+		ByteArrayOutputStream saved = new ByteArrayOutputStream();
+		partials[2].write(saved);
+		PartialAggregate read = PartialAggregate.read(new ByteArrayInputStream(saved.toByteArray()));
+		PartialAggregate left = PartialAggregate.read(new ByteArrayInputStream(saved.toByteArray()))
+				.merge(partials[1]).merge(partials[0]);
+		PartialAggregate right = PartialAggregate.compute("precip#0", new PrecipParser(new ByteArrayInputStream(bytes)), 0, 200)
+				.merge(PartialAggregate.compute("precip#1", new PrecipParser(new ByteArrayInputStream(bytes)), 200, 300)
+						.merge(read));
+		ByteArrayOutputStream leftBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream rightBytes = new ByteArrayOutputStream();
+		left.write(leftBytes);
+		right.write(rightBytes);
+		assertTrue(Arrays.equals(leftBytes.toByteArray(), rightBytes.toByteArray()));
+		assertEquals(3, left.getPartitions().size());
+		assertEquals(20150521, left.getFirstDay());
+		assertEquals(20150523, left.getLastDay());
+		assertEquals(expected.getRowCount(), left.getRowCount());
+
+		StationTotals merged = left.toStationTotals();
+		assertEquals(expected.size(), merged.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.wban(i), merged.wban(i));
+			assertEquals(expected.total(i), merged.total(i), 1e-9d);
+		}
+		try {
+			left.merge(partials[1]);
+			fail("a partition was merged twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertTrue(Arrays.equals(new int[] { 0, 50000, Integer.MAX_VALUE }, PartitionedWet.splitWbans(2)));
+
+		// each worker reads only the rows of its own range
+		Path file = Files.createTempFile("precip", ".txt");
+		Path cache = PrecipCache.cachePath(file);
+		try {
+			Files.write(file, bytes);
+			long[] byteBounds = PartitionedWet.splitFile(file, 3);
+			assertEquals(4, byteBounds.length);
+			PartialAggregate chunks = null;
+			for (int i = 0; i + 1 < byteBounds.length; i++) {
+				long rows = 0;
+				try (PrecipParser parser = ParallelPrecipReader.openChunk(file, byteBounds[i], byteBounds[i + 1])) {
+					while (parser.next()) {
+						rows++;
+					}
+				}
+				PartialAggregate chunk = PartitionedWet.computeChunkPartial(file, byteBounds[i], byteBounds[i + 1]);
+				assertEquals(rows, chunk.getRowCount());
+				assertTrue(rows < expected.getRowCount());
+				chunks = chunks == null ? chunk : chunks.merge(chunk);
+			}
+			assertEquals(expected.getRowCount(), chunks.getRowCount());
+			assertEquals(expected.size(), chunks.size());
+
+			PrecipCache.write(file);
+			long rows = 0;
+			try (PrecipRecords records = PrecipCache.open(cache, 200, 300)) {
+				while (records.next()) {
+					assertTrue(records.wban() >= 200 && records.wban() < 300);
+					rows++;
+				}
+			}
+			assertEquals(33 * 24, rows);
+			PartialAggregate range = PartitionedWet.computePartial(file, 200, 300);
+			assertEquals(rows, range.getRowCount());
+			assertEquals(partials[1].getCount(202), range.getCount(202));
+		} finally {
+			Files.deleteIfExists(cache);
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testStationTable() {
+		Map<String, Pair<String, String>> wbanCounties = Data.loadWBANCountyMap(Wet.getReader("wbanmasterlist.psv"));
+		StationTable stations = Data.loadStationTable(Wet.getReader("wbanmasterlist.psv"));
+		assertTrue(stations.getCountyCount() > 0);
+		for (Map.Entry<String, Pair<String, String>> entry : wbanCounties.entrySet()) {
+			int countyId = stations.getCountyId(Integer.parseInt(entry.getKey()));
+			assertEquals(entry.getValue().getElement0(), stations.getCounty(countyId));
+			assertEquals(entry.getValue().getElement1(), stations.getState(countyId));
+		}
+		assertEquals(StationTable.NO_COUNTY, stations.getCountyId(StationTable.MAX_WBAN + 1));
+	}
+
+	@Test
+	public void testCountyMsaTable() {
+		Map<String, String> msaCounties = Data.loadMsaCountyMap(Wet.getReader("2013Feb_CSAList1.csv"));
+		CountyMsaTable countyMsas = Data.loadCountyMsaTable(Wet.getReader("2013Feb_CSAList1.csv"));
+		int travis = countyMsas.getCountyId("TRAVIS", "TX");
+		assertEquals(48453, countyMsas.getFips(travis));
+		assertEquals("Austin-Round Rock, TX", countyMsas.getMsas().getName(countyMsas.getMsaId(travis)));
+		int metroCounties = 0;
+		for (int countyId = 0; countyId < countyMsas.getCountyCount(); countyId++) {
+			if (countyMsas.getMsaId(countyId) != CountyMsaTable.NO_MSA)
+				metroCounties++;
+		}
+		assertEquals(msaCounties.size(), metroCounties);
+	}
+
+	@Test
+	public void testBatchMonths() throws IOException {
+		assertEquals(YearMonth.of(2015, 5), WetBatch.getMonth(Paths.get("data", "201505precip.txt")));
+		assertEquals(YearMonth.of(2015, 5), WetBatch.getMonth(Paths.get("data", "QCLCD201505.zip")));
+		Map<YearMonth, Map<String, Double>> monthly = new HashMap<YearMonth, Map<String, Double>>();
+		Map<String, Double> may = new HashMap<String, Double>();
+		may.put("Austin-Round Rock, TX", 2.0d);
+		may.put("Abilene, TX", 1.0d);
+		Map<String, Double> june = new HashMap<String, Double>();
+		june.put("Abilene, TX", 4.0d);
+		monthly.put(YearMonth.of(2015, 5), may);
+		monthly.put(YearMonth.of(2015, 6), june);
+		Map<String, Double> total = WetBatch.cumulative(monthly);
+		assertEquals(Arrays.asList("Abilene, TX", "Austin-Round Rock, TX"), new ArrayList<String>(total.keySet()));
+		assertEquals(5.0d, total.get("Abilene, TX"), 0.0d);
+	}
+
+	@Test
+	public void testWetService() throws IOException {
+		ReferenceData referenceData = new ReferenceData(Wet.getReader("wbanmasterlist.psv"),
+				Wet.getReader("2013Feb_CSAList1.csv"), Wet.getReader("CBSA-EST2012-01.csv"));
+		StationTable stations = referenceData.getStations();
+		PrecipGenerator generator = new PrecipGenerator(PrecipGenerator.getStationWbans(stations, 200));
+		generator.setDays(3);
+		Path dir = Files.createTempDirectory("service");
+		Path precipFile = dir.resolve("201505precip.txt");
+		WetService service = new WetService(referenceData, 4);
+		try {
+			generator.write(precipFile);
+			assertEquals(YearMonth.of(2015, 5), service.ingest(precipFile));
+			long precipMergeRows = PipelineMetrics.getDefault().getStageRows()[PipelineMetrics.Stage.PRECIP_MERGE.ordinal()];
+			long cubeQueryRows = PipelineMetrics.getDefault().getStageRows()[PipelineMetrics.Stage.CUBE_QUERY.ordinal()];
+			Map<String, Double> daytime = service.getPersonWetness(YearMonth.of(2015, 5), 8, 24);
+			assertTrue(daytime == service.getPersonWetness(YearMonth.of(2015, 5), 8, 24));
+			// a query is timed as its own stage, not as a merge of no rows
+			assertEquals(precipMergeRows, PipelineMetrics.getDefault().getStageRows()[PipelineMetrics.Stage.PRECIP_MERGE.ordinal()]);
+			assertTrue(PipelineMetrics.getDefault().getStageRows()[PipelineMetrics.Stage.CUBE_QUERY.ordinal()] > cubeQueryRows);
+			Map<String, Double> allDay = service.getPersonWetness(YearMonth.of(2015, 5), 1, 24);
+			assertFalse(daytime.isEmpty());
+			Map<String, Double> firstDay = service.getPersonWetness(YearMonth.of(2015, 5), 1, 1, 1, 24);
+			for (Map.Entry<String, Double> entry : daytime.entrySet()) {
+				assertTrue(allDay.get(entry.getKey()) >= entry.getValue());
+				// MSAs whose stations did not report on the first day are left out
+				Double first = firstDay.get(entry.getKey());
+				assertTrue(first == null || allDay.get(entry.getKey()) >= first);
+			}
+			assertTrue(daytime.keySet().containsAll(firstDay.keySet()));
+
+			service.start(0, 2);
+			String msa = daytime.keySet().iterator().next();
+			URL url = new URL("http://localhost:" + service.getPort() + "/peopleinches?month=201505&format=csv&msa="
+					+ URLEncoder.encode(msa, "UTF-8"));
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			assertEquals(200, connection.getResponseCode());
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+				assertEquals("MSA,PeopleInches", reader.readLine());
+				assertEquals("\"" + msa + "\"," + String.format("%5.2E", daytime.get(msa)), reader.readLine());
+				assertEquals(null, reader.readLine());
+			}
+			url = new URL("http://localhost:" + service.getPort() + "/peopleinches?month=201506");
+			assertEquals(400, ((HttpURLConnection) url.openConnection()).getResponseCode());
+		} finally {
+			service.stop();
+			Files.deleteIfExists(PrecipCache.cachePath(precipFile));
+			Files.deleteIfExists(precipFile);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testFieldNormalizer() {
+		String[] raws = { "\"Travis County\"", " travis county ", "\"", "\"\"", "", "Foo\"", "\"Foo", "Texas", "\"TX\"",
+				"Atlantis", " Miami-Dade ", "\"DeKalb\"" };
+		FieldNormalizer normalizer = new FieldNormalizer(4);
+		for (int pass = 0; pass < 3; pass++) {
+			for (String raw : raws) {
+				// the regex the normalization used to be
+				String field = raw.replaceAll("^\"|\"$", "");
+				assertEquals(field, normalizer.field(new StringBuilder(raw)));
+				assertEquals(Data.normalizeField(raw), normalizer.field(raw));
+				assertEquals(Data.normalizeCounty(raw), normalizer.county(new StringBuilder(raw)));
+				assertEquals(Data.normalizeState(raw), normalizer.state(new StringBuilder(raw)));
+			}
+		}
+		assertEquals(null, normalizer.state("Atlantis"));
+
+		// repeated raw values give the same instance
+		normalizer = new FieldNormalizer();
+		String county = normalizer.county(new StringBuilder("\"Travis County\""));
+		assertEquals("TRAVIS", county);
+		assertTrue(county == normalizer.county(new StringBuilder("\"Travis County\"")));
+	}
+
 	@Test
 	public void testNormalizeCounty() {
 		assertEquals("TRAVIS", Data.normalizeCounty("Travis County"));